@@ -0,0 +1,59 @@
+/*
+ * /home/grant/JavaClasses/Comp213/MetaClient/AsyncProxy.java
+ *
+ * Created: Mon Oct 19 22:17:40 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.MetaClient;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+   A {@link Proxy Proxy} that can also handle requests without blocking
+   the caller.
+   This allows a client GUI to send requests from the Swing event thread:
+   the request is sent in the background, and the GUI is updated when
+   the returned future completes.
+   <p>
+   The future completes with the server's response, as for
+   {@link Proxy#handleRequest(String) handleRequest()};
+   with <code>null</code> if the server's address is not known;
+   or exceptionally if the connection fails or the request takes longer
+   than the given timeout, in which case the exception is a
+   {@link java.util.concurrent.TimeoutException TimeoutException}.
+   Cancelling the future abandons the request and closes the connection
+   to the server.
+   </p>
+
+   @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+   @version 1.0
+ */
+public interface AsyncProxy extends Proxy {
+
+   /**
+      Default time, in milliseconds, to wait for a complete response.
+      This value is set to 10000.
+    */
+   public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+   /**
+      Connect to a server, send data, and give a future that completes
+      with the server's response.
+      This method returns without waiting for the connection to be made.
+
+      @param data the string to send to the server
+      @param timeout the time to wait for the complete response
+      @param unit the unit of <code>timeout</code>
+      @return a future that completes with the server's response
+   */
+   public CompletableFuture<String> handleRequestAsync(String data,
+                                                       long timeout,
+                                                       TimeUnit unit);
+}
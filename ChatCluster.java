@@ -0,0 +1,728 @@
+/*
+ * /home/grant/JavaClasses/Comp213/ChatServer/ChatCluster.java
+ *
+ * Created: Mon Oct 19 21:08:36 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.ChatServer;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Links between the nodes of a clustered chatroom.
+ * <p>
+ * Each node is a {@link Chatroom Chatroom} with its own users;
+ * every broadcast in a room on one node is relayed to every other node,
+ * which delivers it to its own users in the room of the same name.
+ * Each node listens for links from the other nodes, and opens a link to
+ * each of them; a node only sends on the links it opened, and only
+ * receives on the links it accepted, so no two nodes ever have to agree
+ * on who opens a link.
+ * Broadcasts are relayed directly to every node, never passed on,
+ * so a broadcast reaches each node at most once over each link.
+ * </p><p>
+ * Links are re-opened if they fail, so a node can be restarted without
+ * restarting the rest of the cluster.
+ * When a link is re-opened, the broadcasts of the last
+ * {@link #RELAY_MILLIS few seconds} are sent again, in case they were
+ * lost with the old link; each broadcast carries an ID, made up of the
+ * node it came from, the time that node started, and a sequence number,
+ * so that a node can ignore broadcasts it has already delivered.
+ * </p><p>
+ * The link protocol is binary.
+ * A link starts with {@link #MAGIC MAGIC} (an int), the
+ * {@link #VERSION protocol version} (a byte), and the ID of the node
+ * opening the link (an int).
+ * Each broadcast is then sent as a frame consisting of its length
+ * in bytes (an int, not counting itself), its type (a byte:
+ * {@link #MESSAGE MESSAGE} or {@link #NOTICE NOTICE}), the ID of the
+ * node it came from (an int), the start time of that node (a long),
+ * its sequence number (a long), the length of the room name (a short),
+ * the room name, and the broadcast, exactly as it is sent to users.
+ * </p>
+ *
+ * @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+ * @version 1.0
+ */
+public class ChatCluster
+{
+   /**
+    * First four bytes of every link: "CHAT" in ASCII.
+    *
+    */
+   public static final int MAGIC = 0x43484154;
+
+   /**
+    * Version of the link protocol.
+    *
+    */
+   public static final byte VERSION = 1;
+
+   /**
+    * Frame type for chat messages, which are kept in the room's
+    * {@link ChatHistory history} and {@link ChatLog log}.
+    *
+    */
+   public static final byte MESSAGE = 1;
+
+   /**
+    * Frame type for other broadcasts, such as users joining and leaving.
+    *
+    */
+   public static final byte NOTICE = 2;
+
+   /**
+    * Time, in milliseconds, that a broadcast is worth relaying.
+    * Broadcasts are sent again on a re-opened link if they are younger
+    * than this, and broadcasts that have waited longer than this for a
+    * link to open are not sent at all.
+    *
+    */
+   public static final long RELAY_MILLIS = 5000;
+
+   /**
+    * Size, in bytes, of the fixed part of a frame, after its length.
+    *
+    */
+   private static final int FRAME_HEADER = 1 + 4 + 8 + 8 + 2;
+
+   /**
+    * Maximum length of a frame; a longer frame is bad protocol.
+    *
+    */
+   private static final int MAX_FRAME = 4 * 1024 * 1024;
+
+   /**
+    * Maximum number of broadcasts waiting to be sent to each node.
+    *
+    */
+   private static final int QUEUE_SIZE = 16 * 1024;
+
+   /**
+    * Maximum number of sent broadcasts kept for sending again.
+    *
+    */
+   private static final int RESEND_FRAMES = 4096;
+
+   /**
+    * Time, in milliseconds, to wait for a link to open.
+    *
+    */
+   private static final int CONNECT_MILLIS = 2000;
+
+   /**
+    * Longest time, in milliseconds, between attempts to open a link.
+    *
+    */
+   private static final long MAX_BACKOFF_MILLIS = 2000;
+
+   /**
+    * A broadcast, framed for sending over the links.
+    *
+    */
+   private static class Frame
+   {
+      /**
+       * The frame, including its length.
+       *
+       */
+      final byte[] bytes;
+
+      /**
+       * Time, in milliseconds, that the broadcast was made.
+       *
+       */
+      final long time;
+
+      /**
+       * Creates a new <code>Frame</code> instance.
+       *
+       * @param b the framed broadcast
+       * @param t the time the broadcast was made
+       */
+      Frame(byte[] b, long t)
+      {
+         bytes = b;
+         time = t;
+      }
+   }
+
+   /**
+    * The link to one other node, over which this node's broadcasts
+    * are sent.
+    * The link is opened, and re-opened whenever it fails,
+    * by its own thread.
+    *
+    */
+   private class Peer implements Runnable
+   {
+      /**
+       * Address of the other node's link port.
+       *
+       */
+      private final InetSocketAddress address;
+
+      /**
+       * Broadcasts waiting to be sent.
+       *
+       */
+      private final BlockingQueue<Frame> queue =
+         new ArrayBlockingQueue<Frame>(QUEUE_SIZE);
+
+      /**
+       * The broadcasts most recently sent, oldest first.
+       * Only used by this link's thread.
+       *
+       */
+      private final ArrayDeque<Frame> sent = new ArrayDeque<Frame>();
+
+      /**
+       * The thread running this link.
+       *
+       */
+      private final Thread thread;
+
+      /**
+       * The current connection; null if the link is not open.
+       *
+       */
+      private volatile Socket socket = null;
+
+      /**
+       * Creates a new <code>Peer</code> instance, ready to be started.
+       *
+       * @param addr the address of the other node's link port
+       */
+      Peer(InetSocketAddress addr)
+      {
+         address = addr;
+         thread = new Thread(this, "chat-link-" + addr);
+      }
+
+      /**
+       * Open the link, and send broadcasts, until the cluster is
+       * shut down.
+       *
+       */
+      public void run()
+      {
+         long backoff = 100;
+         while (running)
+         {
+            Socket s = new Socket();
+            try
+            {
+               s.connect(address, CONNECT_MILLIS);
+               s.setTcpNoDelay(true);
+               socket = s;
+               backoff = 100;
+               System.out.println("Chat cluster: linked to " + address);
+               send(new DataOutputStream(new BufferedOutputStream(
+                       s.getOutputStream())));
+            }
+            catch (IOException ioe)
+            {
+               // not there, or the link has failed; try again later
+            }
+            catch (InterruptedException ie)
+            {
+               // shutting down
+            }
+            finally
+            {
+               socket = null;
+               close(s);
+            }
+            if (running)
+            {
+               try
+               {
+                  Thread.sleep(backoff);
+               }
+               catch (InterruptedException ie)
+               {
+                  // shutting down
+               }
+               backoff = Math.min(2 * backoff, MAX_BACKOFF_MILLIS);
+            }
+         }
+      }
+
+      /**
+       * Send broadcasts over an open link, starting with the recent ones,
+       * which may have been lost by the last link.
+       *
+       * @param out the link
+       * @exception IOException if the link fails
+       * @exception InterruptedException if the cluster is shut down
+       */
+      private void send(DataOutputStream out)
+         throws IOException, InterruptedException
+      {
+         out.writeInt(MAGIC);
+         out.writeByte(VERSION);
+         out.writeInt(nodeId);
+         long oldest = System.currentTimeMillis() - RELAY_MILLIS;
+         for (Frame f : sent)
+         {
+            if (f.time >= oldest)
+            {
+               out.write(f.bytes);
+            }
+         }
+         out.flush();
+         while (running)
+         {
+            Frame f = queue.take();
+            if (f.time < System.currentTimeMillis() - RELAY_MILLIS)
+            {
+               // waited too long for the link
+               continue;
+            }
+            keep(f);
+            out.write(f.bytes);
+            if (queue.isEmpty())
+            {
+               // send everything written so far in one go
+               out.flush();
+            }
+         }
+      }
+
+      /**
+       * Keep a broadcast to be sent again if the link fails.
+       *
+       * @param f the broadcast
+       */
+      private void keep(Frame f)
+      {
+         if (sent.size() == RESEND_FRAMES)
+         {
+            sent.removeFirst();
+         }
+         sent.addLast(f);
+      }
+
+      /**
+       * Close the link, and stop its thread.
+       *
+       */
+      void shutDown()
+      {
+         thread.interrupt();
+         close(socket);
+      }
+   }
+
+   /**
+    * The ID of this node; should be different for each node in the
+    * cluster.
+    *
+    */
+   private final int nodeId;
+
+   /**
+    * The time this node started, in milliseconds.
+    * A node that restarts gets a new epoch, so its sequence numbers
+    * can start again.
+    *
+    */
+   private final long epoch = System.currentTimeMillis();
+
+   /**
+    * Sequence number of the last broadcast from this node.
+    * All accesses are synchronized on {@link #peers peers}, so that
+    * broadcasts are queued for each link in the order of their
+    * sequence numbers.
+    *
+    */
+   private long lastSeq = 0;
+
+   /**
+    * For each other node, the epoch and sequence number of the last
+    * broadcast delivered from that node.
+    * All accesses are synchronized on the map.
+    *
+    */
+   private final Map<Integer, long[]> delivered =
+      new HashMap<Integer, long[]>();
+
+   /**
+    * The server socket for links from other nodes.
+    *
+    */
+   private final ServerSocket linkSocket;
+
+   /**
+    * The links to the other nodes.
+    *
+    */
+   private final Peer[] peers;
+
+   /**
+    * The connections for the links from other nodes.
+    *
+    */
+   private final Set<Socket> incoming =
+      Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+   /**
+    * Number of broadcasts not relayed to a node because its queue was full.
+    *
+    */
+   private final AtomicLong dropped = new AtomicLong(0);
+
+   /**
+    * Number of frames from other nodes that were not delivered because
+    * they were malformed.
+    *
+    */
+   private final AtomicLong badFrames = new AtomicLong(0);
+
+   /**
+    * The rooms that broadcasts from other nodes are delivered to.
+    *
+    */
+   private volatile ChatRooms rooms = null;
+
+   /**
+    * Whether the cluster is running.
+    *
+    */
+   private volatile boolean running = true;
+
+
+   /**
+    * Creates a new <code>ChatCluster</code> instance, listening for links
+    * from other nodes.
+    * Nothing is sent or received until the cluster is
+    * {@link #start(ChatRooms) started}.
+    *
+    * @param id the ID of this node; should be different for each node
+    * @param linkPort the port to listen on for links from other nodes
+    * @param peerAddresses the link ports of the other nodes
+    * @exception IOException if the link port cannot be opened
+    */
+   public ChatCluster(int id, int linkPort, InetSocketAddress[] peerAddresses)
+      throws IOException
+   {
+      nodeId = id;
+      linkSocket = new ServerSocket(linkPort);
+      peers = new Peer[peerAddresses.length];
+      for (int i = 0; i < peers.length; i++)
+      {
+         peers[i] = new Peer(peerAddresses[i]);
+      }
+   }
+
+   /**
+    * Start relaying broadcasts to and from the other nodes.
+    *
+    * @param cr the rooms that broadcasts from other nodes are delivered to
+    */
+   public void start(ChatRooms cr)
+   {
+      rooms = cr;
+      for (Peer p : peers)
+      {
+         p.thread.start();
+      }
+      new Thread(new Runnable()
+         {
+            public void run()
+            {
+               acceptLinks();
+            }
+         }, "chat-link-accept").start();
+   }
+
+   /**
+    * Relay a broadcast from this node to all other nodes.
+    * This does not block: the broadcast is framed once, and queued for
+    * each link.
+    * Broadcasts may be relayed from several threads at once, so the
+    * sequence number is taken and the frame queued for every link in one
+    * step; otherwise a later broadcast could overtake an earlier one, and
+    * the other nodes would take the earlier one as already delivered.
+    *
+    * @param room the name of the room
+    * @param type {@link #MESSAGE MESSAGE} or {@link #NOTICE NOTICE}
+    * @param msg the broadcast, between position and limit;
+    *            the buffer is not modified
+    */
+   public void relay(String room, byte type, ByteBuffer msg)
+   {
+      if (peers.length == 0)
+      {
+         return;
+      }
+      byte[] roomBytes = room.getBytes(ChatterList.CHARSET);
+      ByteBuffer m = msg.duplicate();
+      int len = FRAME_HEADER + roomBytes.length + m.remaining();
+      ByteBuffer frame = ByteBuffer.allocate(4 + len);
+      frame.putInt(len);
+      frame.put(type);
+      frame.putInt(nodeId);
+      frame.putLong(epoch);
+      int seqAt = frame.position();
+      frame.putLong(0); // set below
+      frame.putShort((short) roomBytes.length);
+      frame.put(roomBytes);
+      frame.put(m);
+      synchronized (peers)
+      {
+         frame.putLong(seqAt, ++lastSeq);
+         Frame f = new Frame(frame.array(), System.currentTimeMillis());
+         for (Peer p : peers)
+         {
+            if (! p.queue.offer(f))
+            {
+               // that node is too far behind, or has been away too long
+               dropped.incrementAndGet();
+            }
+         }
+      }
+   }
+
+   /**
+    * Accept links from other nodes, until the cluster is shut down.
+    *
+    */
+   private void acceptLinks()
+   {
+      while (running)
+      {
+         final Socket s;
+         try
+         {
+            s = linkSocket.accept();
+         }
+         catch (IOException ioe)
+         {
+            if (running)
+            {
+               System.err.println("Chat cluster: can't accept links: "
+                                  + ioe.getMessage());
+            }
+            return;
+         }
+         incoming.add(s);
+         new Thread(new Runnable()
+            {
+               public void run()
+               {
+                  receive(s);
+               }
+            }, "chat-link-from-" + s.getRemoteSocketAddress()).start();
+      }
+   }
+
+   /**
+    * Receive broadcasts over a link from another node, and deliver them,
+    * until the link fails or the cluster is shut down.
+    *
+    * @param s the link
+    */
+   private void receive(Socket s)
+   {
+      try
+      {
+         DataInputStream in = new DataInputStream(
+            new BufferedInputStream(s.getInputStream()));
+         if (in.readInt() != MAGIC || in.readByte() != VERSION)
+         {
+            System.err.println("Chat cluster: bad link from "
+                               + s.getRemoteSocketAddress());
+            return;
+         }
+         int from = in.readInt();
+         while (running)
+         {
+            int len = in.readInt();
+            if (len < FRAME_HEADER || len > MAX_FRAME)
+            {
+               System.err.println("Chat cluster: bad frame from node " + from);
+               return;
+            }
+            byte[] frame = new byte[len];
+            in.readFully(frame);
+            deliver(ByteBuffer.wrap(frame));
+         }
+      }
+      catch (IOException ioe)
+      {
+         // link has failed; the other node will open a new one
+      }
+      finally
+      {
+         incoming.remove(s);
+         close(s);
+      }
+   }
+
+   /**
+    * Deliver a broadcast from another node to the local users in its room,
+    * unless it has been delivered already.
+    * A frame whose room name does not fit in it is not delivered, but
+    * counted, so that one corrupt frame does not bring down the link.
+    *
+    * @param frame the frame, after its length; at least
+    *              {@link #FRAME_HEADER FRAME_HEADER} bytes
+    */
+   private void deliver(ByteBuffer frame)
+   {
+      byte type = frame.get();
+      int origin = frame.getInt();
+      long originEpoch = frame.getLong();
+      long seq = frame.getLong();
+      int roomLength = frame.getShort() & 0xFFFF;
+      if (roomLength > frame.remaining())
+      {
+         badFrames.incrementAndGet();
+         return;
+      }
+      byte[] room = new byte[roomLength];
+      frame.get(room);
+      if (origin == nodeId || ! isNew(origin, originEpoch, seq))
+      {
+         return;
+      }
+      ByteBuffer msg = ChatterList.share(frame);
+      rooms.receiveRelayed(new String(room, ChatterList.CHARSET),
+                           type == MESSAGE, msg);
+   }
+
+   /**
+    * Check whether a broadcast from another node has not yet been
+    * delivered, and if so, record that it is being delivered.
+    * Each node queues its broadcasts for each link in the order of their
+    * sequence numbers (see {@link #relay(String,byte,ByteBuffer) relay()}),
+    * and a link sends them, and re-sends them when it is re-opened,
+    * in that order, so it is enough to remember the last one delivered.
+    *
+    * @param origin the node the broadcast came from
+    * @param originEpoch the time that node started
+    * @param seq the sequence number of the broadcast
+    * @return true if the broadcast should be delivered
+    */
+   private boolean isNew(int origin, long originEpoch, long seq)
+   {
+      synchronized (delivered)
+      {
+         long[] last = delivered.get(origin);
+         if (last == null || originEpoch > last[0])
+         {
+            // first from that node, or it has restarted
+            delivered.put(origin, new long[] {originEpoch, seq});
+            return true;
+         }
+         if (originEpoch < last[0] || seq <= last[1])
+         {
+            // from before a restart, or already delivered
+            return false;
+         }
+         last[1] = seq;
+         return true;
+      }
+   }
+
+   /**
+    * Close all links, and stop relaying.
+    *
+    */
+   public void shutDown()
+   {
+      running = false;
+      close(linkSocket);
+      for (Peer p : peers)
+      {
+         p.shutDown();
+      }
+      for (Socket s : incoming)
+      {
+         close(s);
+      }
+      if (dropped.get() > 0)
+      {
+         System.err.println("Chat cluster: " + dropped.get()
+                            + " broadcasts could not be relayed");
+      }
+      if (badFrames.get() > 0)
+      {
+         System.err.println("Chat cluster: " + badFrames.get()
+                            + " bad frames from other nodes were ignored");
+      }
+   }
+
+   /**
+    * Close a socket, ignoring errors.
+    *
+    * @param s the socket; may be null
+    */
+   private static void close(Closeable s)
+   {
+      if (s != null)
+      {
+         try
+         {
+            s.close();
+         }
+         catch (IOException ioe)
+         {
+            // nothing useful to do
+         }
+      }
+   }
+
+   /**
+    * Parse a comma-separated list of addresses of the form
+    * <code>host:port</code>.
+    *
+    * @param list the list
+    * @return the addresses
+    *
+    * @throws IllegalArgumentException if an address is not of that form
+    */
+   public static InetSocketAddress[] parsePeers(String list)
+   {
+      String[] parts = list.split(",");
+      InetSocketAddress[] addrs = new InetSocketAddress[parts.length];
+      for (int i = 0; i < parts.length; i++)
+      {
+         int colon = parts[i].lastIndexOf(':');
+         if (colon <= 0)
+         {
+            throw new IllegalArgumentException(
+               "peer should be host:port: " + parts[i]);
+         }
+         addrs[i] = new InetSocketAddress(
+            parts[i].substring(0, colon),
+            Integer.parseInt(parts[i].substring(colon + 1)));
+      }
+      return addrs;
+   }
+}
@@ -0,0 +1,288 @@
+/*
+ * /home/grant/JavaClasses/Comp213/MetaClient/ChatDecoder.java
+ *
+ * Created: Tue Oct 20 15:48:56 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.MetaClient;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+import Comp213.ChatServer.ChatterList;
+
+/**
+   Decodes a persistent connection to a chatroom server, following the
+   prefixes in {@link ChatterList ChatterList}.
+   Each message, notice, room list and presence digest is described in a
+   line as soon as its last line has been received.
+   The time taken by the server is shown for messages, which are
+   broadcast back to their sender, and for room changes and room lists,
+   which the server answers directly.
+
+   @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+   @version 1.0
+ */
+public class ChatDecoder extends TrafficDecoder {
+
+   /**
+      Maximum number of messages sent but not yet broadcast back
+      whose times are kept; if the server drops messages,
+      the oldest times are forgotten.
+      This value is set to 1000.
+    */
+   public static final int MAX_PENDING = 1000;
+
+   /**
+      Kinds of multi-line block.
+    */
+   private static final int NONE = 0, MESSAGE = 1, PRIVATE = 2,
+      LIST = 3, DIGEST = 4;
+
+   /**
+      The user's name: the first line sent; null until it is sent.
+    */
+   private String name = null;
+
+   /**
+      Kind of the block being sent.
+    */
+   private int sending = NONE;
+
+   /**
+      Recipient of the private message being sent.
+    */
+   private String recipient;
+
+   /**
+      Number of lines, and bytes, of the message being sent.
+    */
+   private int sentLines, sentBytes;
+
+   /**
+      Times that messages were sent, that have not yet been broadcast back.
+    */
+   private final ArrayDeque<Long> pending = new ArrayDeque<Long>();
+
+   /**
+      Time a room change was requested; 0 if none is outstanding.
+    */
+   private long roomSentAt = 0;
+
+   /**
+      Time the room list was requested; 0 if none is outstanding.
+    */
+   private long listSentAt = 0;
+
+   /**
+      Kind of the block being received.
+    */
+   private int receiving = NONE;
+
+   /**
+      Sender of the message being received.
+    */
+   private String sender;
+
+   /**
+      Number of lines, and bytes, of the block being received.
+    */
+   private int receivedLines, receivedBytes;
+
+   /**
+      Numbers of presence and typing lines in the digest being received.
+    */
+   private int presence, typing;
+
+
+   /**
+      Creates a new <code>ChatDecoder</code> instance.
+
+      @param out where to send descriptions of the traffic
+    */
+   public ChatDecoder(final Consumer<String> out) {
+      super(out);
+   }
+
+   protected void sentLine(final String start, final int length,
+                           final long nanos) {
+      if (name == null) {
+         name = start;
+         describe("logged in as " + name);
+         return;
+      }
+      char prefix = (length == 0) ? 0 : start.charAt(0);
+      String rest = (length == 0) ? "" : start.substring(1);
+      if (sending != NONE) {
+         if (prefix == ChatterList.MSG_END) {
+            if (sending == MESSAGE) {
+               describe("sent message: " + sentLines + " lines, "
+                        + sentBytes + " B");
+               if (pending.size() == MAX_PENDING) {
+                  pending.poll();
+               }
+               pending.add(nanos);
+            } else {
+               describe("sent private message to " + recipient + ": "
+                        + sentLines + " lines, " + sentBytes + " B");
+            }
+            sending = NONE;
+         } else {
+            sentLines++;
+            sentBytes += length + 1;
+         }
+         return;
+      }
+      switch (prefix) {
+      case ChatterList.MSG_PREFIX:
+         sending = MESSAGE;
+         sentLines = 1;
+         sentBytes = length + 1;
+         break;
+      case ChatterList.PRIVATE_MSG:
+         sending = PRIVATE;
+         recipient = rest;
+         sentLines = 0;
+         sentBytes = 0;
+         break;
+      case ChatterList.ROOM_JOIN:
+      case ChatterList.ROOM_LEAVE:
+         roomSentAt = nanos;
+         break;
+      case ChatterList.ROOM_LIST:
+         listSentAt = nanos;
+         break;
+      case ChatterList.PRESENCE:
+         describe("set presence " + rest);
+         break;
+      case ChatterList.TYPING:
+         break; // sent too often to be worth describing
+      case ChatterList.LEAVE_PREFIX:
+         describe("logged out");
+         break;
+      default:
+         describe("sent unknown line " + start);
+         break;
+      }
+   }
+
+   protected void receivedLine(final String start, final int length,
+                               final long nanos) {
+      char prefix = (length == 0) ? 0 : start.charAt(0);
+      String rest = (length == 0) ? "" : start.substring(1);
+      if (receiving != NONE) {
+         if (prefix == ChatterList.MSG_END) {
+            endBlock(nanos);
+         } else {
+            receivedLines++;
+            receivedBytes += length + 1;
+            if (prefix == ChatterList.PRESENCE) {
+               presence++;
+            } else if (prefix == ChatterList.TYPING) {
+               typing++;
+            }
+         }
+         return;
+      }
+      switch (prefix) {
+      case ChatterList.JOIN_PREFIX:
+         describe(rest + " joined");
+         break;
+      case ChatterList.LEAVE_PREFIX:
+         describe(rest + " left");
+         break;
+      case ChatterList.ROOM_JOIN:
+         if (roomSentAt == 0) {
+            describe("in room " + rest);
+         } else {
+            describe("moved to room " + rest + " in "
+                     + millis(roomSentAt, nanos));
+            roomSentAt = 0;
+         }
+         break;
+      case ChatterList.MSG_PREFIX:
+         startBlock(MESSAGE, rest);
+         break;
+      case ChatterList.PRIVATE_MSG:
+         startBlock(PRIVATE, rest);
+         break;
+      case ChatterList.ROOM_LIST:
+         startBlock(LIST, null);
+         receivedLines = 1;
+         break;
+      case ChatterList.PRESENCE:
+         startBlock(DIGEST, null);
+         presence = 1;
+         break;
+      case ChatterList.TYPING:
+         startBlock(DIGEST, null);
+         typing = 1;
+         break;
+      case ChatterList.MSG_END:
+         break; // end of an empty block
+      default:
+         describe("received unknown line " + start);
+         break;
+      }
+   }
+
+   protected void ended(final long nanos) {
+      describe("connection closed");
+   }
+
+   /**
+      Start receiving a multi-line block.
+
+      @param kind the kind of block
+      @param from the sender of a message
+    */
+   private void startBlock(final int kind, final String from) {
+      receiving = kind;
+      sender = from;
+      receivedLines = 0;
+      receivedBytes = 0;
+      presence = 0;
+      typing = 0;
+   }
+
+   /**
+      Describe the multi-line block that has just been received.
+
+      @param nanos the time the block ended
+    */
+   private void endBlock(final long nanos) {
+      switch (receiving) {
+      case MESSAGE:
+         String line = "message from " + sender + ": " + receivedLines
+            + " lines, " + receivedBytes + " B";
+         if (sender.equals(name) && ! pending.isEmpty()) {
+            line += ", broadcast in " + millis(pending.poll(), nanos);
+         }
+         describe(line);
+         break;
+      case PRIVATE:
+         describe("private message from " + sender + ": "
+                  + receivedLines + " lines, " + receivedBytes + " B");
+         break;
+      case LIST:
+         if (listSentAt == 0) {
+            describe("room list: " + receivedLines + " rooms");
+         } else {
+            describe("room list: " + receivedLines + " rooms in "
+                     + millis(listSentAt, nanos));
+            listSentAt = 0;
+         }
+         break;
+      default:
+         describe("presence digest: " + presence + " changes, "
+                  + typing + " typing");
+         break;
+      }
+      receiving = NONE;
+   }
+}
@@ -0,0 +1,526 @@
+/*
+ * /home/grant/JavaClasses/Comp213/ChatServer/ChatEngine.java
+ *
+ * Created: Mon Oct 19 17:02:13 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.ChatServer;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Network engine for the chatroom.
+ * All reading and writing for all {@link Chatter Chatters} is done by
+ * a small, fixed number of selector loops, each running in its own thread,
+ * so the number of threads does not grow with the number of users.
+ * Each new connection is given to one of the loops, which serves it
+ * for the whole of its session.
+ * <p>
+ * Messages are not written as soon as they are queued: each loop
+ * collects the connections with messages waiting, and writes to each of
+ * them once per tick, at most {@link #DEFAULT_FLUSH_MILLIS a few
+ * milliseconds} after the first message was queued, so a busy
+ * connection gets one write for many messages rather than one write
+ * per message.
+ * </p>
+ *
+ * @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+ * @version 1.0
+ */
+public class ChatEngine
+{
+   /**
+    * Size of each loop's buffer for reading from connections.
+    * Bytes are handed on to the Chatter as soon as they are read,
+    * so one buffer serves all the connections of a loop.
+    *
+    */
+   private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+   /**
+    * Time, in milliseconds, to wait for each loop to end on shutdown.
+    *
+    */
+   private static final long END_MILLIS = 1000;
+
+   /**
+    * Default maximum time, in milliseconds, that a queued message waits
+    * before it is written.
+    * This value is set to 2.
+    *
+    */
+   public static final long DEFAULT_FLUSH_MILLIS = 2;
+
+   /**
+    * Value of a loop's {@link Loop#flushDue flush deadline} when there is
+    * nothing waiting to be written.
+    *
+    */
+   private static final long NO_FLUSH = Long.MIN_VALUE;
+
+   /**
+    * One selector loop, serving some of the chatroom's connections.
+    *
+    */
+   class Loop implements Runnable
+   {
+      /**
+       * The selector for this loop's connections.
+       *
+       */
+      private final Selector selector;
+
+      /**
+       * Buffer for reading from connections.
+       *
+       */
+      private final ByteBuffer readBuffer =
+         ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+      /**
+       * Chatters waiting to be registered with the selector.
+       *
+       */
+      private final Queue<Chatter> newChatters =
+         new ConcurrentLinkedQueue<Chatter>();
+
+      /**
+       * Chatters with messages waiting to be sent.
+       *
+       */
+      private final Queue<Chatter> writeRequests =
+         new ConcurrentLinkedQueue<Chatter>();
+
+      /**
+       * Time, as given by <code>System.nanoTime()</code>, by which the
+       * {@link #writeRequests requested writes} should be carried out;
+       * {@link #NO_FLUSH NO_FLUSH} if there are none.
+       * Set by the first request after each flush.
+       *
+       */
+      private final AtomicLong flushDue = new AtomicLong(NO_FLUSH);
+
+      /**
+       * Chatters whose sessions are to be ended.
+       *
+       */
+      private final Queue<Chatter> endRequests =
+         new ConcurrentLinkedQueue<Chatter>();
+
+      /**
+       * The thread running this loop.
+       *
+       */
+      private final Thread thread;
+
+      /**
+       * Creates a new <code>Loop</code> instance, ready to be started.
+       *
+       * @param id number of the loop, used to name its thread
+       * @exception IOException if the selector cannot be opened
+       */
+      Loop(int id) throws IOException
+      {
+         selector = Selector.open();
+         thread = new Thread(this, "chat-selector-" + id);
+      }
+
+      /**
+       * Serve a new connection.
+       *
+       * @param c the Chatter for the connection
+       */
+      void register(Chatter c)
+      {
+         c.setLoop(this);
+         newChatters.add(c);
+         selector.wakeup();
+      }
+
+      /**
+       * Ask the loop to send a Chatter's queued messages on its next flush.
+       * Only the first request after a flush wakes the loop up,
+       * to set its deadline.
+       *
+       * @param c the Chatter
+       */
+      void requestWrite(Chatter c)
+      {
+         writeRequests.add(c);
+         if (flushDue.compareAndSet(NO_FLUSH, System.nanoTime() + flushNanos))
+         {
+            selector.wakeup();
+         }
+      }
+
+      /**
+       * Bring the next flush forward to now, because a Chatter has
+       * enough messages waiting that there is nothing to gain by waiting
+       * for more.
+       *
+       */
+      void flushNow()
+      {
+         long due = flushDue.get();
+         long now = System.nanoTime();
+         if ((due == NO_FLUSH || due - now > 0)
+             && flushDue.compareAndSet(due, now))
+         {
+            selector.wakeup();
+         }
+      }
+
+      /**
+       * Ask the loop to end a Chatter's session.
+       *
+       * @param c the Chatter
+       */
+      void requestEnd(Chatter c)
+      {
+         endRequests.add(c);
+         selector.wakeup();
+      }
+
+      /**
+       * Serve connections until the engine is shut down.
+       *
+       */
+      public void run()
+      {
+         while (running)
+         {
+            try
+            {
+               long due = flushDue.get();
+               if (due == NO_FLUSH)
+               {
+                  // nothing to write: wait for input
+                  selector.select();
+               }
+               else
+               {
+                  // wait for input, but no later than the flush deadline
+                  long wait = TimeUnit.NANOSECONDS.toMillis(
+                                 due - System.nanoTime() + 999999);
+                  if (wait > 0)
+                  {
+                     selector.select(wait);
+                  }
+                  else
+                  {
+                     selector.selectNow();
+                  }
+               }
+            }
+            catch (IOException ioe)
+            {
+               System.err.println("Chatroom selector failed: "
+                                  + ioe.getMessage());
+               return;
+            }
+            registerNewChatters();
+            endRequested();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext())
+            {
+               SelectionKey key = keys.next();
+               keys.remove();
+               Chatter c = (Chatter) key.attachment();
+               try
+               {
+                  if (key.isReadable())
+                  {
+                     read(c);
+                  }
+                  if (key.isValid() && key.isWritable())
+                  {
+                     flush(c, key);
+                  }
+               }
+               catch (CancelledKeyException cke)
+               {
+                  // session has ended
+               }
+            }
+
+            // write everything queued this tick, if it's time
+            long due = flushDue.get();
+            if (due != NO_FLUSH && due - System.nanoTime() <= 0)
+            {
+               // requests from now on go in the next tick
+               flushDue.set(NO_FLUSH);
+               writeRequested();
+            }
+         }
+      }
+
+      /**
+       * Register new connections with the selector.
+       *
+       */
+      private void registerNewChatters()
+      {
+         Chatter c;
+         while ((c = newChatters.poll()) != null)
+         {
+            try
+            {
+               SocketChannel ch = c.getClient();
+               ch.configureBlocking(false);
+               ch.register(selector, SelectionKey.OP_READ, c);
+            }
+            catch (IOException ioe)
+            {
+               // connection has failed already
+               c.end();
+            }
+         }
+      }
+
+      /**
+       * End the sessions that other threads have asked to end.
+       *
+       */
+      private void endRequested()
+      {
+         Chatter c;
+         while ((c = endRequests.poll()) != null)
+         {
+            // the request may be from an earlier session
+            if (ours(c) && c.isEndRequested())
+            {
+               c.end();
+            }
+         }
+      }
+
+      /**
+       * Send messages for the Chatters that have asked for a write.
+       *
+       */
+      private void writeRequested()
+      {
+         Chatter c;
+         while ((c = writeRequests.poll()) != null)
+         {
+            if (c.getLoop() != this)
+            {
+               /*
+                * the Chatter's session ended and it has been re-used
+                * on another loop; pass the request on
+                */
+               Loop other = c.getLoop();
+               if (other != null)
+               {
+                  other.requestWrite(c);
+               }
+            }
+            else if (ours(c))
+            {
+               flush(c, c.getClient().keyFor(selector));
+            }
+         }
+      }
+
+      /**
+       * Test whether a Chatter's connection is registered with this loop.
+       *
+       * @param c the Chatter
+       * @return true if the Chatter's connection is open and registered
+       *         with this loop's selector
+       */
+      private boolean ours(Chatter c)
+      {
+         if (c.getLoop() != this)
+         {
+            return false;
+         }
+         SocketChannel ch = c.getClient();
+         SelectionKey key = (ch == null) ? null : ch.keyFor(selector);
+         return key != null && key.isValid();
+      }
+
+      /**
+       * Read from a connection, and pass the bytes on to its Chatter.
+       *
+       * @param c the Chatter
+       */
+      private void read(Chatter c)
+      {
+         readBuffer.clear();
+         try
+         {
+            if (c.getClient().read(readBuffer) < 0)
+            {
+               // input closed; end session
+               c.end();
+               return;
+            }
+         }
+         catch (IOException ioe)
+         {
+            System.out.println("IOException: " + ioe.getMessage());
+            c.end();
+            return;
+         }
+         readBuffer.flip();
+         if (! c.received(readBuffer))
+         {
+            c.end();
+         }
+      }
+
+      /**
+       * Send a Chatter's queued messages, and watch for the connection
+       * becoming writable if they could not all be sent.
+       *
+       * @param c the Chatter
+       * @param key the Chatter's selection key
+       */
+      private void flush(Chatter c, SelectionKey key)
+      {
+         try
+         {
+            if (c.write())
+            {
+               key.interestOps(SelectionKey.OP_READ);
+            }
+            else
+            {
+               key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+         }
+         catch (IOException ioe)
+         {
+            c.end();
+         }
+      }
+
+      /**
+       * Stop the loop, and close its selector.
+       *
+       */
+      private void shutDown()
+      {
+         selector.wakeup();
+         try
+         {
+            thread.join(END_MILLIS);
+            selector.close();
+         }
+         catch (InterruptedException ie)
+         {
+            Thread.currentThread().interrupt();
+         }
+         catch (IOException ioe)
+         {
+            // nothing useful to do
+         }
+      }
+   }
+
+   /**
+    * The selector loops.
+    *
+    */
+   private final Loop[] loops;
+
+   /**
+    * Used to choose the loop for each new connection in turn.
+    *
+    */
+   private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+   /**
+    * Whether the loops should keep running.
+    *
+    */
+   private volatile boolean running = true;
+
+   /**
+    * Maximum time, in nanoseconds, that a queued message waits
+    * before it is written.
+    *
+    */
+   private final long flushNanos;
+
+
+   /**
+    * Creates a new <code>ChatEngine</code> instance, and starts its loops.
+    *
+    * @param nLoops the number of selector loops; should be positive
+    * @param flushMillis the maximum time in milliseconds that a queued
+    *                    message waits before it is written;
+    *                    0 to write at the end of every tick
+    * @exception IOException if a selector cannot be opened
+    *
+    * @throws IllegalArgumentException if <code>nLoops</code> is not positive
+    *         or <code>flushMillis</code> is negative
+    */
+   public ChatEngine(int nLoops, long flushMillis) throws IOException
+   {
+      if (nLoops <= 0)
+      {
+         throw new IllegalArgumentException(
+            "number of selector loops should be positive");
+      }
+      if (flushMillis < 0)
+      {
+         throw new IllegalArgumentException(
+            "flush time should not be negative");
+      }
+      flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+      loops = new Loop[nLoops];
+      for (int i = 0; i < nLoops; i++)
+      {
+         loops[i] = new Loop(i);
+         loops[i].thread.start();
+      }
+   }
+
+   /**
+    * Start serving a new connection.
+    * The Chatter should already have its
+    * {@link Chatter#setClient(SocketChannel) connection set}.
+    *
+    * @param c the Chatter for the new connection
+    */
+   public void register(Chatter c)
+   {
+      int i = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+      loops[i].register(c);
+   }
+
+   /**
+    * Stop all selector loops.
+    * Connections should be closed first, by
+    * {@link ChatRooms#shutDown() shutting down the rooms}.
+    *
+    */
+   public void shutDown()
+   {
+      running = false;
+      for (Loop l : loops)
+      {
+         l.shutDown();
+      }
+   }
+}
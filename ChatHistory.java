@@ -0,0 +1,165 @@
+/*
+ * /home/grant/JavaClasses/Comp213/ChatServer/ChatHistory.java
+ *
+ * Created: Mon Oct 19 18:41:07 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.ChatServer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The most recent messages broadcast in a room.
+ * Messages are kept in a ring buffer, bounded both by the number of
+ * messages and by their total size in bytes; once either bound is
+ * reached, the oldest messages are forgotten to make room for new ones.
+ * The messages are kept as the encoded buffers that were broadcast,
+ * so they can be sent again to new users without being re-encoded.
+ * <p>
+ * Each message is given a sequence number when it is recorded, so that
+ * a {@link ChatterList ChatterList} can tell which messages a new
+ * Chatter has already been sent from the history.
+ * All methods are synchronized on this instance.
+ * </p>
+ *
+ * @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+ * @version 1.0
+ */
+public class ChatHistory
+{
+   /**
+    * Default maximum number of messages kept.
+    * This value is set to 50.
+    *
+    */
+   public static final int DEFAULT_COUNT = 50;
+
+   /**
+    * Default maximum number of bytes kept.
+    * This value is set to 65536.
+    *
+    */
+   public static final int DEFAULT_BYTES = 64 * 1024;
+
+   /**
+    * The messages, oldest first, starting at {@link #first first}
+    * and wrapping round.
+    *
+    */
+   private final ByteBuffer[] ring;
+
+   /**
+    * Maximum total size, in bytes, of the messages kept.
+    *
+    */
+   private final int maxBytes;
+
+   /**
+    * Index in {@link #ring ring} of the oldest message.
+    *
+    */
+   private int first = 0;
+
+   /**
+    * Number of messages in {@link #ring ring}.
+    *
+    */
+   private int count = 0;
+
+   /**
+    * Total size, in bytes, of the messages in {@link #ring ring}.
+    *
+    */
+   private int bytes = 0;
+
+   /**
+    * Sequence number of the last message recorded; 0 if none.
+    *
+    */
+   private long lastSeq = 0;
+
+
+   /**
+    * Creates a new, empty <code>ChatHistory</code> instance.
+    *
+    * @param maxCount the maximum number of messages kept; should be positive
+    * @param maxSize the maximum total size, in bytes, of the messages kept;
+    *                should be positive
+    *
+    * @throws IllegalArgumentException if <code>maxCount</code> or
+    *         <code>maxSize</code> is not positive
+    */
+   public ChatHistory(int maxCount, int maxSize)
+   {
+      if (maxCount <= 0 || maxSize <= 0)
+      {
+         throw new IllegalArgumentException(
+            "history size should be positive");
+      }
+      ring = new ByteBuffer[maxCount];
+      maxBytes = maxSize;
+   }
+
+   /**
+    * Record a message that is about to be broadcast.
+    * A message larger than the whole history is given a sequence
+    * number, but not kept.
+    *
+    * @param msg the encoded message, between position and limit;
+    *            it is kept, so should not be modified
+    * @return the sequence number of the message
+    */
+   public synchronized long record(ByteBuffer msg)
+   {
+      lastSeq++;
+      int size = msg.remaining();
+      if (size > maxBytes)
+      {
+         return lastSeq;
+      }
+      // forget the oldest messages until there is room
+      while (count == ring.length || bytes + size > maxBytes)
+      {
+         bytes -= ring[first].remaining();
+         ring[first] = null;
+         first = (first + 1) % ring.length;
+         count--;
+      }
+      ring[(first + count) % ring.length] = msg;
+      count++;
+      bytes += size;
+      return lastSeq;
+   }
+
+   /**
+    * The sequence number of the last message recorded.
+    *
+    * @return the sequence number; 0 if no message has been recorded
+    */
+   public synchronized long lastSeq()
+   {
+      return lastSeq;
+   }
+
+   /**
+    * The messages kept, oldest first.
+    *
+    * @return the messages; each buffer is shared, so should be
+    *         {@link ByteBuffer#duplicate() duplicated} before it is read
+    */
+   public synchronized ByteBuffer[] messages()
+   {
+      ByteBuffer[] msgs = new ByteBuffer[count];
+      for (int i = 0; i < count; i++)
+      {
+         msgs[i] = ring[(first + i) % ring.length];
+      }
+      return msgs;
+   }
+}
@@ -0,0 +1,697 @@
+/*
+ * /home/grant/JavaClasses/Comp213/ChatServer/ChatLog.java
+ *
+ * Created: Mon Oct 19 19:26:52 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.ChatServer;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent, append-only log of the messages said in the chatroom.
+ * <p>
+ * Messages are {@link #append(String, ByteBuffer) appended} by the
+ * threads that broadcast them, but are written by a single writer thread,
+ * so logging never holds up a broadcast: appending only puts the shared
+ * encoded buffer in a queue.
+ * The writer copies each message into a memory-mapped segment file;
+ * when a segment is full, it is trimmed to the bytes used and a new
+ * segment is started.
+ * </p><p>
+ * Each segment is named after the time of its first record,
+ * and has an index file listing the time and offset of a record every
+ * {@link #INDEX_INTERVAL few kilobytes}, so that the log can be
+ * {@link #scan(File, long, ChatLog.Handler) scanned} from any time
+ * without reading everything before it.
+ * Each record consists of its length in bytes (an int), the time it was
+ * logged (a long, in milliseconds), the length of the room name
+ * (a short), the room name, and the message, as it was broadcast,
+ * all in UTF-8.
+ * </p>
+ *
+ * @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+ * @version 1.0
+ */
+public class ChatLog implements Runnable
+{
+   /**
+    * Default size, in bytes, of each segment file.
+    * This value is set to 64 megabytes.
+    *
+    */
+   public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+   /**
+    * Maximum number of messages waiting to be written.
+    * If the writer falls this far behind, further messages are not logged,
+    * and are {@link #lost counted} instead.
+    *
+    */
+   private static final int QUEUE_SIZE = 64 * 1024;
+
+   /**
+    * Number of bytes of a segment between entries in its index.
+    *
+    */
+   private static final int INDEX_INTERVAL = 16 * 1024;
+
+   /**
+    * Time, in milliseconds, between forcing the current segment
+    * out to disk.
+    *
+    */
+   private static final long FORCE_MILLIS = 1000;
+
+   /**
+    * Size, in bytes, of the fixed part of a record: its length,
+    * its time, and the length of its room name.
+    *
+    */
+   private static final int HEADER = 4 + 8 + 2;
+
+   /**
+    * File name suffix of segment files.
+    *
+    */
+   private static final String LOG_SUFFIX = ".log";
+
+   /**
+    * File name suffix of index files.
+    *
+    */
+   private static final String INDEX_SUFFIX = ".idx";
+
+   /**
+    * Receives the records read by {@link ChatLog#scan(File, long,
+    * ChatLog.Handler) scan()}.
+    *
+    */
+   public interface Handler
+   {
+      /**
+       * Handle one record of the log.
+       *
+       * @param time the time the message was logged, in milliseconds
+       * @param room the name of the room the message was said in
+       * @param msg the message, as it was broadcast,
+       *            between position and limit
+       */
+      void record(long time, String room, ByteBuffer msg);
+   }
+
+   /**
+    * A message waiting to be written.
+    *
+    */
+   private static class Entry
+   {
+      /**
+       * The name of the room the message was said in.
+       *
+       */
+      final String room;
+
+      /**
+       * The encoded message.
+       *
+       */
+      final ByteBuffer msg;
+
+      /**
+       * Creates a new <code>Entry</code> instance.
+       *
+       * @param r the name of the room
+       * @param m the encoded message
+       */
+      Entry(String r, ByteBuffer m)
+      {
+         room = r;
+         msg = m;
+      }
+   }
+
+   /**
+    * Put in the queue to tell the writer to finish.
+    *
+    */
+   private static final Entry CLOSE = new Entry(null, null);
+
+   /**
+    * The directory containing the segment files.
+    *
+    */
+   private final File dir;
+
+   /**
+    * Size, in bytes, of each segment file.
+    *
+    */
+   private final long segmentBytes;
+
+   /**
+    * Messages waiting to be written.
+    *
+    */
+   private final BlockingQueue<Entry> queue =
+      new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+
+   /**
+    * Number of messages that could not be logged.
+    *
+    */
+   private final AtomicLong lost = new AtomicLong(0);
+
+   /**
+    * The writer thread.
+    *
+    */
+   private final Thread writer;
+
+   /**
+    * Set when the writer thread stops, whether because the log has been
+    * closed or because writing failed; messages appended after that are
+    * {@link #lost counted} instead of queued.
+    *
+    */
+   private volatile boolean stopped = false;
+
+   /**
+    * The current segment file; null if none is open.
+    * This and the following fields are only used by the writer thread.
+    *
+    */
+   private FileChannel segmentFile = null;
+
+   /**
+    * The current segment, mapped into memory.
+    *
+    */
+   private MappedByteBuffer segment = null;
+
+   /**
+    * The index of the current segment.
+    *
+    */
+   private DataOutputStream index = null;
+
+   /**
+    * Offset in the current segment of the last record indexed.
+    *
+    */
+   private int lastIndexed = 0;
+
+   /**
+    * Name, as a time, of the last segment started.
+    *
+    */
+   private long lastName = 0;
+
+   /**
+    * Time, in milliseconds, that the current segment was last forced
+    * out to disk.
+    *
+    */
+   private long lastForce = 0;
+
+
+   /**
+    * Creates a new <code>ChatLog</code> instance, and starts its writer.
+    * Messages are logged to a new segment in the given directory;
+    * any segments already there are kept.
+    *
+    * @param directory the directory for segment files;
+    *                  created if it does not exist
+    * @param segBytes the size in bytes of each segment file
+    * @exception IOException if the directory cannot be created
+    *
+    * @throws IllegalArgumentException if <code>segBytes</code> is too small
+    *         to hold a record, or too large to be mapped
+    */
+   public ChatLog(File directory, long segBytes) throws IOException
+   {
+      if (segBytes < INDEX_INTERVAL || segBytes > Integer.MAX_VALUE)
+      {
+         throw new IllegalArgumentException(
+            "segment size should be between " + INDEX_INTERVAL
+            + " and " + Integer.MAX_VALUE);
+      }
+      directory.mkdirs();
+      if (! directory.isDirectory())
+      {
+         throw new IOException("can't create log directory " + directory);
+      }
+      dir = directory;
+      segmentBytes = segBytes;
+      writer = new Thread(this, "chat-log");
+      writer.start();
+   }
+
+   /**
+    * Log a message.
+    * This does not block: the message is queued for the writer thread.
+    * If the writer has stopped, the message is not logged.
+    *
+    * @param room the name of the room the message was said in
+    * @param msg the encoded message, between position and limit;
+    *            the buffer is shared, and is not modified
+    */
+   public void append(String room, ByteBuffer msg)
+   {
+      if (stopped || ! queue.offer(new Entry(room, msg.duplicate())))
+      {
+         // the writer has fallen too far behind
+         lost.incrementAndGet();
+      }
+   }
+
+   /**
+    * Write queued messages until the log is closed.
+    *
+    */
+   public void run()
+   {
+      try
+      {
+         while (true)
+         {
+            Entry e = queue.poll(FORCE_MILLIS, TimeUnit.MILLISECONDS);
+            if (e == CLOSE)
+            {
+               break;
+            }
+            if (e != null)
+            {
+               write(e);
+            }
+            if (segment != null
+                && System.currentTimeMillis() - lastForce >= FORCE_MILLIS)
+            {
+               force();
+            }
+         }
+      }
+      catch (InterruptedException ie)
+      {
+         // stop writing
+      }
+      catch (IOException ioe)
+      {
+         System.err.println("Chat log failed: " + ioe.getMessage());
+      }
+      finally
+      {
+         stopped = true;
+         // anything still queued will never be written
+         lost.addAndGet(queue.size());
+         queue.clear();
+         closeSegment();
+      }
+   }
+
+   /**
+    * Write a message to the current segment, starting a new segment
+    * if it does not fit.
+    *
+    * @param e the message
+    * @exception IOException if a new segment cannot be started
+    */
+   private void write(Entry e) throws IOException
+   {
+      byte[] room = e.room.getBytes(ChatterList.CHARSET);
+      long len = (long) HEADER + room.length + e.msg.remaining();
+      if (len > segmentBytes)
+      {
+         // will never fit
+         lost.incrementAndGet();
+         return;
+      }
+      long now = System.currentTimeMillis();
+      if (segment == null || segment.remaining() < len)
+      {
+         roll(now);
+      }
+      int pos = segment.position();
+      if (pos == 0 || pos - lastIndexed >= INDEX_INTERVAL)
+      {
+         index.writeLong(now);
+         index.writeInt(pos);
+         lastIndexed = pos;
+      }
+      segment.putInt((int) len);
+      segment.putLong(now);
+      segment.putShort((short) room.length);
+      segment.put(room);
+      segment.put(e.msg);
+   }
+
+   /**
+    * Close the current segment, if any, and start a new one.
+    *
+    * @param now the current time, which names the new segment
+    * @exception IOException if the segment cannot be created
+    */
+   private void roll(long now) throws IOException
+   {
+      closeSegment();
+      // names must be unique, even if segments fill up quickly
+      lastName = Math.max(now, lastName + 1);
+      File log = segmentFile(lastName, LOG_SUFFIX);
+      while (log.exists())
+      {
+         log = segmentFile(++lastName, LOG_SUFFIX);
+      }
+      segmentFile = FileChannel.open(log.toPath(),
+                                     StandardOpenOption.CREATE_NEW,
+                                     StandardOpenOption.READ,
+                                     StandardOpenOption.WRITE);
+      segment = segmentFile.map(FileChannel.MapMode.READ_WRITE,
+                                0, segmentBytes);
+      index = new DataOutputStream(new BufferedOutputStream(
+                 new FileOutputStream(segmentFile(lastName, INDEX_SUFFIX))));
+      lastIndexed = 0;
+      lastForce = now;
+   }
+
+   /**
+    * The file for part of a segment.
+    *
+    * @param name the name of the segment
+    * @param suffix {@link #LOG_SUFFIX LOG_SUFFIX} or
+    *               {@link #INDEX_SUFFIX INDEX_SUFFIX}
+    * @return the file
+    */
+   private File segmentFile(long name, String suffix)
+   {
+      // fixed width, so names sort in time order
+      return new File(dir, String.format("%019d", name) + suffix);
+   }
+
+   /**
+    * Force the current segment and its index out to disk.
+    *
+    * @exception IOException if the index cannot be written
+    */
+   private void force() throws IOException
+   {
+      segment.force();
+      index.flush();
+      lastForce = System.currentTimeMillis();
+   }
+
+   /**
+    * Force the current segment out to disk, trim it to the bytes used,
+    * and close it.
+    *
+    */
+   private void closeSegment()
+   {
+      if (segment == null)
+      {
+         return;
+      }
+      try
+      {
+         force();
+         index.close();
+         segmentFile.truncate(segment.position());
+      }
+      catch (IOException ioe)
+      {
+         /*
+          * the segment may be left untrimmed, which scan() allows for
+          */
+         System.err.println("Chat log: can't close segment: "
+                            + ioe.getMessage());
+      }
+      try
+      {
+         segmentFile.close();
+      }
+      catch (IOException ioe)
+      {
+         // nothing useful to do
+      }
+      segment = null;
+      segmentFile = null;
+      index = null;
+   }
+
+   /**
+    * Write all queued messages, close the current segment,
+    * and stop the writer.
+    * If the writer has already stopped because writing failed,
+    * this returns at once.
+    *
+    */
+   public void close()
+   {
+      try
+      {
+         // the queue may be full; stop waiting if the writer dies
+         while (writer.isAlive()
+                && ! queue.offer(CLOSE, FORCE_MILLIS, TimeUnit.MILLISECONDS))
+         {
+            // try again
+         }
+         writer.join();
+      }
+      catch (InterruptedException ie)
+      {
+         writer.interrupt();
+         Thread.currentThread().interrupt();
+      }
+      if (lost.get() > 0)
+      {
+         System.err.println("Chat log: " + lost.get()
+                            + " messages could not be logged");
+      }
+   }
+
+   /**
+    * Read the records in a log, in the order they were written,
+    * starting from a given time.
+    * Only the segments and parts of segments that may contain records
+    * from that time onwards are read.
+    *
+    * @param directory the directory containing the segment files
+    * @param from the time, in milliseconds, of the first record wanted
+    * @param h receives the records
+    * @exception IOException if a segment cannot be read
+    */
+   public static void scan(File directory, long from, Handler h)
+      throws IOException
+   {
+      String[] logs = directory.list();
+      if (logs == null)
+      {
+         throw new IOException("can't read log directory " + directory);
+      }
+      Arrays.sort(logs);
+      // find the last segment starting no later than from
+      int first = -1;
+      int last = -1;
+      for (int i = 0; i < logs.length; i++)
+      {
+         if (! logs[i].endsWith(LOG_SUFFIX))
+         {
+            continue;
+         }
+         if (first < 0 || segmentName(logs[i]) <= from)
+         {
+            first = i;
+         }
+         last = i;
+      }
+      for (int i = first; i >= 0 && i <= last; i++)
+      {
+         if (logs[i].endsWith(LOG_SUFFIX))
+         {
+            scanSegment(new File(directory, logs[i]), from, h);
+         }
+      }
+   }
+
+   /**
+    * The name of a segment, as a time.
+    *
+    * @param fileName the name of the segment file
+    * @return the time of the first record in the segment
+    */
+   private static long segmentName(String fileName)
+   {
+      try
+      {
+         return Long.parseLong(
+            fileName.substring(0, fileName.length() - LOG_SUFFIX.length()));
+      }
+      catch (NumberFormatException nfe)
+      {
+         // not a segment: sort it first
+         return Long.MIN_VALUE;
+      }
+   }
+
+   /**
+    * Read the records in one segment, starting from a given time.
+    *
+    * @param log the segment file
+    * @param from the time, in milliseconds, of the first record wanted
+    * @param h receives the records
+    * @exception IOException if the segment cannot be read
+    */
+   private static void scanSegment(File log, long from, Handler h)
+      throws IOException
+   {
+      int start = indexedOffset(log, from);
+      FileChannel ch = FileChannel.open(log.toPath(),
+                                        StandardOpenOption.READ);
+      try
+      {
+         ByteBuffer seg = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+         seg.position(Math.min(start, seg.limit()));
+         while (seg.remaining() >= HEADER)
+         {
+            int pos = seg.position();
+            int len = seg.getInt();
+            if (len < HEADER || len > seg.remaining() + 4)
+            {
+               // end of the records, in an untrimmed segment
+               break;
+            }
+            long time = seg.getLong();
+            int roomLen = seg.getShort();
+            byte[] room = new byte[roomLen];
+            seg.get(room);
+            ByteBuffer msg = seg.slice();
+            msg.limit(len - HEADER - roomLen);
+            if (time >= from)
+            {
+               h.record(time, new String(room, ChatterList.CHARSET),
+                        msg.asReadOnlyBuffer());
+            }
+            seg.position(pos + len);
+         }
+      }
+      finally
+      {
+         ch.close();
+      }
+   }
+
+   /**
+    * Find where to start reading a segment, using its index.
+    *
+    * @param log the segment file
+    * @param from the time, in milliseconds, of the first record wanted
+    * @return the offset of the last indexed record logged before
+    *         <code>from</code>; 0 if there is none, or no index
+    */
+   private static int indexedOffset(File log, long from)
+   {
+      String name = log.getName();
+      File idx = new File(log.getParentFile(),
+         name.substring(0, name.length() - LOG_SUFFIX.length())
+         + INDEX_SUFFIX);
+      int offset = 0;
+      DataInputStream in = null;
+      try
+      {
+         in = new DataInputStream(new BufferedInputStream(
+                 new FileInputStream(idx)));
+         while (true)
+         {
+            long time = in.readLong();
+            int pos = in.readInt();
+            if (time >= from)
+            {
+               break;
+            }
+            offset = pos;
+         }
+      }
+      catch (EOFException eofe)
+      {
+         // read the whole index
+      }
+      catch (IOException ioe)
+      {
+         // no usable index: read the whole segment
+      }
+      finally
+      {
+         if (in != null)
+         {
+            try
+            {
+               in.close();
+            }
+            catch (IOException ioe)
+            {
+               // nothing useful to do
+            }
+         }
+      }
+      return offset;
+   }
+
+   /**
+    * Print the records in a log.
+    *
+    * @param args the log directory, optionally followed by the time,
+    *             in milliseconds, of the first record to print
+    */
+   public static void main(String[] args)
+   {
+      if (args.length < 1 || args.length > 2)
+      {
+         System.err.println("usage: ChatLog directory [from]");
+         System.exit(2);
+      }
+      try
+      {
+         long from = (args.length == 2) ? Long.parseLong(args[1]) : 0;
+         scan(new File(args[0]), from, new Handler()
+            {
+               public void record(long time, String room, ByteBuffer msg)
+               {
+                  System.out.println(time + " " + room);
+                  System.out.print(ChatterList.CHARSET.decode(msg));
+               }
+            });
+      }
+      catch (NumberFormatException nfe)
+      {
+         System.err.println("usage: ChatLog directory [from]");
+         System.exit(2);
+      }
+      catch (IOException ioe)
+      {
+         System.err.println("Can't read log: " + ioe.getMessage());
+         System.exit(1);
+      }
+   }
+}
@@ -0,0 +1,751 @@
+/*
+ * /home/grant/JavaClasses/Comp213/ChatServer/ChatRooms.java
+ *
+ * Created: Mon Oct 19 15:20:44 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.ChatServer;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The rooms of the chat server.
+ * Every user starts in the {@link #DEFAULT_ROOM default room},
+ * and can move to other rooms, which are created when they are first
+ * joined and closed when they become empty.
+ * Each room is a separate {@link ChatterList ChatterList}, so traffic in
+ * one room does not slow down any other room.
+ * <p>
+ * This class also keeps a bounded pool of {@link Chatter Chatter}
+ * instances, which are re-used by all rooms, together with their
+ * buffers, so a storm of reconnections does not mean a storm of
+ * allocations.
+ * </p>
+ *
+ * @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+ * @version 1.0
+ */
+public class ChatRooms
+{
+   /**
+    * The name of the room that users join when they log in,
+    * and return to when they leave any other room.
+    *
+    */
+   public static final String DEFAULT_ROOM = "lobby";
+
+   /**
+    * Default maximum number of Chatter instances kept for re-use.
+    * This value is set to 1024.
+    *
+    */
+   public static final int DEFAULT_POOL_SIZE = 1024;
+
+   /**
+    * Maximum number of messages queued for each Chatter.
+    *
+    */
+   private final int queueSize;
+
+   /**
+    * Maximum size, in bytes, of a message from a remote user.
+    *
+    */
+   private final int maxMessage;
+
+   /**
+    * Maximum number of messages kept in each room's
+    * {@link ChatHistory history}; 0 if no history is kept.
+    *
+    */
+   private final int historyCount;
+
+   /**
+    * Maximum number of bytes kept in each room's
+    * {@link ChatHistory history}.
+    *
+    */
+   private final int historyBytes;
+
+   /**
+    * Persistent log of the messages in all rooms;
+    * null if messages are not logged.
+    *
+    */
+   private final ChatLog log;
+
+   /**
+    * Links to the other nodes of a clustered chatroom;
+    * null if not clustered.
+    *
+    */
+   private final ChatCluster cluster;
+
+   /**
+    * What to do when a Chatter's queue is full.
+    *
+    */
+   private final ChatterList.OverflowPolicy overflowPolicy;
+
+   /**
+    * Number of bytes queued for a Chatter above which it is a slow consumer.
+    *
+    */
+   private final long highWater;
+
+   /**
+    * Number of bytes queued for a slow consumer at or below which it has
+    * caught up.
+    *
+    */
+   private final long lowWater;
+
+   /**
+    * The open rooms, by name.
+    *
+    */
+   private final ConcurrentMap<String, ChatterList> rooms =
+      new ConcurrentHashMap<String, ChatterList>();
+
+   /**
+    * The {@link #DEFAULT_ROOM default room}, which is never closed.
+    *
+    */
+   private final ChatterList lobby;
+
+   /**
+    * Chatter instances whose sessions have ended,
+    * available for re-use.
+    *
+    */
+   private final Queue<Chatter> deadChatters =
+      new ConcurrentLinkedQueue<Chatter>();
+
+   /**
+    * Maximum number of Chatter instances in
+    * {@link #deadChatters deadChatters}.
+    *
+    */
+   private final int poolSize;
+
+   /**
+    * Number of Chatter instances in {@link #deadChatters deadChatters}.
+    * This may briefly exceed {@link #poolSize poolSize} as instances
+    * are returned, but the instances beyond the limit are not kept.
+    *
+    */
+   private final AtomicInteger pooled = new AtomicInteger(0);
+
+   /**
+    * Number of connections served by a re-used Chatter.
+    *
+    */
+   private final AtomicLong poolHits = new AtomicLong(0);
+
+   /**
+    * Number of connections for which a new Chatter had to be created.
+    *
+    */
+   private final AtomicLong poolMisses = new AtomicLong(0);
+
+   /**
+    * Number of Chatters not kept for re-use because the pool was full.
+    *
+    */
+   private final AtomicLong poolDiscards = new AtomicLong(0);
+
+   /**
+    * Chatter instances that have not yet joined a room
+    * because they are waiting for a
+    * {@link Chatter#name user name} to be supplied by the remote user.
+    *
+    */
+   private final Set<Chatter> pendingChatters =
+      Collections.newSetFromMap(new ConcurrentHashMap<Chatter, Boolean>());
+
+   /**
+    * The users in all rooms, by name, for
+    * {@link #sendPrivate(Chatter, String, byte[], int) private messages}.
+    * Names need not be unique: if several users have the same name,
+    * the first to log in is the one indexed, until they log out,
+    * when the next to log in with that name takes their place.
+    * Changes are synchronized on {@link #sameName sameName}.
+    *
+    */
+   private final ConcurrentMap<String, Chatter> byName =
+      new ConcurrentHashMap<String, Chatter>();
+
+   /**
+    * The users who are not in {@link #byName byName} because another
+    * user with the same name was there first, by name, in the order
+    * they logged in.
+    * All accesses are synchronized on the map.
+    *
+    */
+   private final Map<String, Queue<Chatter>> sameName =
+      new HashMap<String, Queue<Chatter>>();
+
+   /**
+    * The number of users in all rooms.
+    *
+    */
+   private final AtomicInteger online = new AtomicInteger(0);
+
+   /**
+    * Number of times a Chatter has become a slow consumer.
+    *
+    */
+   private final AtomicLong slowConsumers = new AtomicLong(0);
+
+   /**
+    * Number of messages not sent to slow consumers.
+    *
+    */
+   private final AtomicLong skippedMessages = new AtomicLong(0);
+
+   /**
+    * Number of slow consumers that have been disconnected.
+    *
+    */
+   private final AtomicLong disconnected = new AtomicLong(0);
+
+
+   /**
+    * Creates a new <code>ChatRooms</code> instance,
+    * containing only the (empty) default room.
+    *
+    * @param qSize the maximum number of messages queued for each Chatter;
+    *              should be positive
+    * @param policy what to do with a Chatter that is a slow consumer
+    * @param high the number of bytes queued for a Chatter above which it
+    *             is a slow consumer; should be positive
+    * @param low the number of bytes queued for a slow consumer at or below
+    *            which it has caught up; should not be negative,
+    *            and should be less than <code>high</code>
+    * @param maxMsg the maximum size, in bytes, of a message from a remote
+    *               user, including its header and final
+    *               {@link ChatterList#MSG_END MSG_END};
+    *               should be positive
+    * @param histCount the maximum number of messages kept in each room's
+    *                  history, and sent to users joining the room;
+    *                  0 to keep no history
+    * @param histBytes the maximum number of bytes kept in each room's
+    *                  history; should be positive
+    * @param chatLog the log to write the messages in all rooms to;
+    *                null if messages are not to be logged
+    * @param pool the maximum number of Chatter instances kept for re-use;
+    *             should not be negative
+    * @param links the links to the other nodes of a clustered chatroom;
+    *              null if not clustered
+    *
+    * @throws IllegalArgumentException if <code>qSize</code>,
+    *         <code>maxMsg</code> or <code>histBytes</code> is not positive,
+    *         <code>histCount</code> or <code>pool</code> is negative,
+    *         or the watermarks are out of order
+    */
+   public ChatRooms(int qSize, ChatterList.OverflowPolicy policy,
+                    long high, long low, int maxMsg,
+                    int histCount, int histBytes, ChatLog chatLog,
+                    int pool, ChatCluster links)
+   {
+      if (qSize <= 0)
+      {
+         throw new IllegalArgumentException("queue size should be positive");
+      }
+      if (maxMsg <= 0)
+      {
+         throw new IllegalArgumentException(
+            "maximum message size should be positive");
+      }
+      if (pool < 0)
+      {
+         throw new IllegalArgumentException(
+            "pool size should not be negative");
+      }
+      if (low < 0 || low >= high)
+      {
+         throw new IllegalArgumentException(
+            "low watermark should be between 0 and the high watermark");
+      }
+      if (histCount < 0 || histBytes <= 0)
+      {
+         throw new IllegalArgumentException(
+            "history count should not be negative,"
+            + " and history bytes should be positive");
+      }
+      queueSize = qSize;
+      maxMessage = maxMsg;
+      historyCount = histCount;
+      historyBytes = histBytes;
+      log = chatLog;
+      poolSize = pool;
+      cluster = links;
+      overflowPolicy = policy;
+      highWater = high;
+      lowWater = low;
+      lobby = newRoom(DEFAULT_ROOM);
+      rooms.put(DEFAULT_ROOM, lobby);
+   }
+
+   /**
+    * The maximum number of messages queued for each Chatter.
+    *
+    * @return the size of each Chatter's queue
+    */
+   int getQueueSize()
+   {
+      return queueSize;
+   }
+
+   /**
+    * The number of bytes queued for a Chatter above which it is a
+    * slow consumer.
+    *
+    * @return the high watermark
+    */
+   long getHighWater()
+   {
+      return highWater;
+   }
+
+   /**
+    * The number of bytes queued for a slow consumer at or below which
+    * it has caught up.
+    *
+    * @return the low watermark
+    */
+   long getLowWater()
+   {
+      return lowWater;
+   }
+
+   /**
+    * Count a Chatter becoming a slow consumer.
+    *
+    */
+   void countSlowConsumer()
+   {
+      slowConsumers.incrementAndGet();
+   }
+
+   /**
+    * Count a message not sent to a slow consumer.
+    *
+    */
+   void countSkipped()
+   {
+      skippedMessages.incrementAndGet();
+   }
+
+   /**
+    * Count a slow consumer being disconnected.
+    *
+    */
+   void countDisconnected()
+   {
+      disconnected.incrementAndGet();
+   }
+
+   /**
+    * Statistics on slow consumers since the server started.
+    *
+    * @return the number of times a Chatter has become a slow consumer,
+    *         the number of messages not sent to slow consumers,
+    *         and the number of slow consumers disconnected
+    */
+   public String slowConsumerStats()
+   {
+      return slowConsumers.get() + " slow consumers, "
+         + skippedMessages.get() + " messages skipped, "
+         + disconnected.get() + " disconnected";
+   }
+
+   /**
+    * The maximum size, in bytes, of a message from a remote user,
+    * including its header and final {@link ChatterList#MSG_END MSG_END}.
+    *
+    * @return the maximum message size
+    */
+   int getMaxMessage()
+   {
+      return maxMessage;
+   }
+
+   /**
+    * Get a Chatter instance for a new connection.
+    * To avoid creating unnecessary objects, we re-use Chatter instances.
+    * The queue {@link #deadChatters deadChatters} stores old Chatter
+    * instances; we either re-use one of these, or, if there are none,
+    * create a new Chatter instance.
+    * A re-used Chatter keeps its buffers, which are reset for the
+    * new session.
+    *
+    * @param sock the SocketChannel representing the connection
+    *             to the remote user
+    * @return a <code>Chatter</code> value
+    */
+   public Chatter getChatter(SocketChannel sock)
+   {
+      // get (and remove) a dead chatter, if there is one
+      Chatter nextChatter = deadChatters.poll();
+
+      if (nextChatter == null)
+      {
+         // no dead chatters available, so create a new one
+         poolMisses.incrementAndGet();
+         nextChatter = new Chatter(this);
+      }
+      else
+      {
+         poolHits.incrementAndGet();
+         pooled.decrementAndGet();
+      }
+
+      // attach the chatter to the remote client
+      nextChatter.setClient(sock);
+
+      // add the chatter to the pending set
+      pendingChatters.add(nextChatter);
+
+      return nextChatter;
+   }
+
+   /**
+    * Log a Chatter in, once it has a name.
+    * The Chatter joins the {@link #DEFAULT_ROOM default room}.
+    *
+    * @param c the Chatter
+    * @return the default room
+    */
+   public ChatterList login(Chatter c)
+   {
+      pendingChatters.remove(c);
+      online.incrementAndGet();
+      index(c);
+      lobby.connect(c);
+      return lobby;
+   }
+
+   /**
+    * Move a Chatter from one room to another.
+    * The Chatter leaves its current room, which is closed if it is now
+    * empty, and joins the named room, which is opened if necessary.
+    *
+    * @param c the Chatter
+    * @param from the room the Chatter is in
+    * @param roomName the name of the room to join
+    * @return the room the Chatter has joined
+    */
+   public ChatterList move(Chatter c, ChatterList from, String roomName)
+   {
+      if (from.getName().equals(roomName))
+      {
+         // already there
+         return from;
+      }
+      leaveRoom(c, from);
+      while (true)
+      {
+         ChatterList room = rooms.get(roomName);
+         if (room == null)
+         {
+            // open a new room; someone else may get there first
+            ChatterList fresh = newRoom(roomName);
+            room = rooms.putIfAbsent(roomName, fresh);
+            if (room == null)
+            {
+               room = fresh;
+            }
+         }
+         synchronized (room)
+         {
+            if (! room.closed)
+            {
+               room.connect(c);
+               return room;
+            }
+         }
+         // the room closed before we got in; try again
+      }
+   }
+
+   /**
+    * Create an empty room, with an empty history if histories are kept.
+    *
+    * @param roomName the name of the room
+    * @return the new room
+    */
+   private ChatterList newRoom(String roomName)
+   {
+      ChatHistory history = (historyCount == 0)
+         ? null : new ChatHistory(historyCount, historyBytes);
+      return new ChatterList(roomName, overflowPolicy, history, log,
+                             cluster);
+   }
+
+   /**
+    * Log a Chatter out at the end of its session.
+    * The Chatter leaves its room, if it has joined one,
+    * and is kept for re-use, unless the pool is full.
+    *
+    * @param c the Chatter
+    * @param room the room the Chatter is in;
+    *             null if it never logged in
+    */
+   public void logout(Chatter c, ChatterList room)
+   {
+      if (room == null)
+      {
+         // never joined
+         pendingChatters.remove(c);
+      }
+      else
+      {
+         leaveRoom(c, room);
+         online.decrementAndGet();
+         unindex(c);
+      }
+      // c can now be re-used: no other thread is still queueing for it
+      if (pooled.incrementAndGet() <= poolSize)
+      {
+         deadChatters.offer(c);
+      }
+      else
+      {
+         // enough in the pool already; let c be garbage-collected
+         pooled.decrementAndGet();
+         poolDiscards.incrementAndGet();
+      }
+   }
+
+   /**
+    * Index a Chatter that has logged in by its name,
+    * for private messages.
+    *
+    * @param c the Chatter
+    */
+   private void index(Chatter c)
+   {
+      String name = c.getName();
+      synchronized (sameName)
+      {
+         if (byName.putIfAbsent(name, c) != null)
+         {
+            // someone of that name is already here; c is next in line
+            Queue<Chatter> waiting = sameName.get(name);
+            if (waiting == null)
+            {
+               waiting = new ArrayDeque<Chatter>();
+               sameName.put(name, waiting);
+            }
+            waiting.add(c);
+         }
+      }
+   }
+
+   /**
+    * Remove a Chatter that is logging out from the index of names.
+    * If it was indexed, the next user to log in with the same name,
+    * if any are still logged in, is indexed in its place.
+    *
+    * @param c the Chatter
+    */
+   private void unindex(Chatter c)
+   {
+      String name = c.getName();
+      synchronized (sameName)
+      {
+         Queue<Chatter> waiting = sameName.get(name);
+         if (byName.remove(name, c))
+         {
+            if (waiting != null)
+            {
+               byName.put(name, waiting.remove());
+            }
+         }
+         else if (waiting != null)
+         {
+            waiting.remove(c);
+         }
+         if (waiting != null && waiting.isEmpty())
+         {
+            sameName.remove(name);
+         }
+      }
+   }
+
+   /**
+    * Statistics on re-use of Chatter instances since the server started.
+    *
+    * @return the number of connections served by re-used and by new
+    *         Chatters, the number of Chatters not kept because the pool
+    *         was full, and the number in the pool now
+    */
+   public String poolStats()
+   {
+      return poolHits.get() + " pool hits, "
+         + poolMisses.get() + " misses, "
+         + poolDiscards.get() + " discarded, "
+         + pooled.get() + " pooled";
+   }
+
+   /**
+    * Send a private message from one user to another, in any room.
+    * The recipient is found by name in constant time,
+    * without touching any room.
+    *
+    * @param from the sender
+    * @param to the name of the recipient
+    * @param msg the encoded message, as described for
+    *            {@link ChatterList#PRIVATE_MSG PRIVATE_MSG},
+    *            with the name of the sender
+    * @param length the number of bytes of the message, from the start of
+    *               <code>msg</code>
+    */
+   public void sendPrivate(Chatter from, String to, byte[] msg, int length)
+   {
+      Chatter c = byName.get(to);
+      /*
+       * c may have logged out and been re-used since it was looked up:
+       * take its session before checking its name, so that a re-used
+       * Chatter is either passed over here or drops the message
+       */
+      int session = (c == null) ? 0 : c.getSession();
+      if (c == null || ! to.equals(c.getName()))
+      {
+         // nobody of that name; tell the sender
+         from.sendToUser(ChatterList.encode(
+            ChatterList.MSG_PREFIX + ChatterList.SERVER_NAME + "\n"
+            + ChatterList.MSG_PREFIX + "no such user: " + to + "\n"
+            + ChatterList.MSG_END));
+         return;
+      }
+      ByteBuffer m = ChatterList.share(ByteBuffer.wrap(msg, 0, length));
+      if (! c.sendToUser(m, session))
+      {
+         c.overflowed(overflowPolicy, session);
+      }
+   }
+
+   /**
+    * Deliver a broadcast relayed from another node of the cluster to the
+    * users of this node in the room of the same name.
+    * If this node has no such room, it has no users to deliver to.
+    *
+    * @param roomName the name of the room
+    * @param isMessage true for a message; false for other broadcasts
+    * @param m the encoded broadcast
+    */
+   void receiveRelayed(String roomName, boolean isMessage, ByteBuffer m)
+   {
+      ChatterList room = rooms.get(roomName);
+      if (room != null)
+      {
+         room.receiveRelayed(isMessage, m);
+      }
+   }
+
+   /**
+    * Remove a Chatter from a room, closing the room if it is now empty.
+    * The default room is never closed.
+    *
+    * @param c the Chatter
+    * @param room the room the Chatter is in
+    */
+   private void leaveRoom(Chatter c, ChatterList room)
+   {
+      room.leave(c);
+      if (room != lobby && room.length() == 0)
+      {
+         synchronized (room)
+         {
+            // check again: someone may have joined in the meantime
+            if (! room.closed && room.length() == 0)
+            {
+               room.closed = true;
+               rooms.remove(room.getName(), room);
+            }
+         }
+      }
+   }
+
+   /**
+    * The list of open rooms, encoded as described for
+    * {@link ChatterList#ROOM_LIST ROOM_LIST}.
+    *
+    * @return a buffer containing the list of rooms
+    */
+   public ByteBuffer listRooms()
+   {
+      StringBuilder list = new StringBuilder();
+      for (ChatterList room : rooms.values())
+      {
+         list.append(ChatterList.ROOM_LIST).append(room.length())
+             .append(' ').append(room.getName()).append('\n');
+      }
+      list.append(ChatterList.MSG_END);
+      return ChatterList.encode(list.toString());
+   }
+
+   /**
+    * Broadcast a presence digest in each room in which presence has
+    * changed since the last digest.
+    * This should be called every {@link ChatterList#PRESENCE_TICK tick},
+    * so presence traffic depends on the number of rooms,
+    * not on the number of users.
+    *
+    */
+   public void sendPresenceDigests()
+   {
+      for (ChatterList room : rooms.values())
+      {
+         room.sendPresenceDigest();
+      }
+   }
+
+   /**
+    * The number of users in all rooms.
+    *
+    * @return the number of users logged in
+    */
+   public int length()
+   {
+      return online.get();
+   }
+
+   /**
+    * Close all connections to all remote clients.
+    *
+    */
+   public void shutDown()
+   {
+      for (ChatterList room : rooms.values())
+      {
+         room.shutDown();
+      }
+
+      // don't forget the pending chatters
+      for (Chatter c : pendingChatters)
+      {
+         c.close();
+      }
+   }
+}
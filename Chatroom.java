@@ -12,14 +12,15 @@
 
 package Comp213.ChatServer;
 
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.lang.Thread.State;
-import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -27,6 +28,14 @@ import java.util.List;
  * Sets up a server socket on port 12000 by default;
  * specify a port nnnn by using <code>-port nnn</code>
  * as a command-line option.
+ * Users start in the room <code>lobby</code>, and can move to other
+ * rooms; see {@link ChatterList#ROOM_JOIN ChatterList}.
+ * Messages to each user are queued; the size of the queues, the
+ * watermarks at which a user becomes and stops being a slow consumer,
+ * and what to do with slow consumers can be set with the
+ * <code>-queue n</code>, <code>-highwater n</code>,
+ * <code>-lowwater n</code> and
+ * <code>-overflow drop|summarise|disconnect</code> options.
  * Shut the server down by connecting to the port,
  * entering any non-empty line, followed by the line
  * <code>.die</code>.
@@ -42,6 +51,18 @@ public class Chatroom
     */
    public static final String QUITC = ".die";
 
+   /**
+    * Usage message for command-line options.
+    *
+    */
+   private static final String USAGE =
+      "usage: [-port n] [-queue n] [-overflow drop|summarise|disconnect]"
+      + " [-highwater n] [-lowwater n]"
+      + " [-selectors n] [-flush ms] [-maxmsg n]"
+      + " [-history n] [-historybytes n] [-log dir] [-segment n]"
+      + " [-pool n] [-presence ms]"
+      + " [-node n -link port [-peers host:port,...]]";
+
 
    /**
     * Port number for the server socket. Default is 12000.
@@ -49,12 +70,128 @@ public class Chatroom
     */
    private static int portNum = 12000;
 
+   /**
+    * Maximum number of messages queued for each user.
+    * Default is {@link ChatterList#DEFAULT_QUEUE_SIZE 256}.
+    *
+    */
+   private static int queueSize = ChatterList.DEFAULT_QUEUE_SIZE;
+
+   /**
+    * What to do when a user's queue is full. Default is to drop
+    * the message for that user.
+    *
+    */
+   private static ChatterList.OverflowPolicy overflow =
+      ChatterList.OverflowPolicy.DROP;
+
+   /**
+    * Number of bytes queued for a user above which the user is a slow
+    * consumer.
+    * Default is {@link ChatterList#DEFAULT_HIGH_WATER 262144}.
+    *
+    */
+   private static long highWater = ChatterList.DEFAULT_HIGH_WATER;
+
+   /**
+    * Number of bytes queued for a slow consumer at or below which the
+    * user has caught up.
+    * Default is {@link ChatterList#DEFAULT_LOW_WATER 65536}.
+    *
+    */
+   private static long lowWater = ChatterList.DEFAULT_LOW_WATER;
+
+   /**
+    * Number of selector loops serving connections.
+    * Default is the number of available processors.
+    *
+    */
+   private static int selectors = Runtime.getRuntime().availableProcessors();
+
+   /**
+    * Maximum time, in milliseconds, that a message waits to be written.
+    * Default is {@link ChatEngine#DEFAULT_FLUSH_MILLIS 2}.
+    *
+    */
+   private static long flushMillis = ChatEngine.DEFAULT_FLUSH_MILLIS;
+
+   /**
+    * Maximum size, in bytes, of a message from a user.
+    * Default is {@link ChatterList#DEFAULT_MAX_MESSAGE 65536}.
+    *
+    */
+   private static int maxMessage = ChatterList.DEFAULT_MAX_MESSAGE;
+
+   /**
+    * Maximum number of messages each room keeps to send to new users.
+    * Default is {@link ChatHistory#DEFAULT_COUNT 50}.
+    *
+    */
+   private static int historyCount = ChatHistory.DEFAULT_COUNT;
+
+   /**
+    * Maximum number of bytes each room keeps to send to new users.
+    * Default is {@link ChatHistory#DEFAULT_BYTES 65536}.
+    *
+    */
+   private static int historyBytes = ChatHistory.DEFAULT_BYTES;
+
+   /**
+    * Directory for the persistent log of messages.
+    * Default is null: messages are not logged.
+    *
+    */
+   private static File logDir = null;
+
+   /**
+    * Size, in bytes, of each segment file of the log.
+    * Default is {@link ChatLog#DEFAULT_SEGMENT_BYTES 64 megabytes}.
+    *
+    */
+   private static long segmentBytes = ChatLog.DEFAULT_SEGMENT_BYTES;
+
+   /**
+    * Maximum number of idle Chatters kept for re-use.
+    * Default is {@link ChatRooms#DEFAULT_POOL_SIZE 1024}.
+    *
+    */
+   private static int poolSize = ChatRooms.DEFAULT_POOL_SIZE;
+
+   /**
+    * Time, in milliseconds, between presence digests.
+    * Default is {@link ChatterList#PRESENCE_TICK 500}.
+    *
+    */
+   private static long presenceMillis = ChatterList.PRESENCE_TICK;
+
+   /**
+    * ID of this node in a clustered chatroom. Default is 0.
+    *
+    */
+   private static int nodeId = 0;
+
+   /**
+    * Port for links from other nodes in a clustered chatroom.
+    * Default is 0: not clustered.
+    *
+    */
+   private static int linkPort = 0;
+
+   /**
+    * Link ports of the other nodes in a clustered chatroom.
+    * Default is none.
+    *
+    */
+   private static InetSocketAddress[] peers = new InetSocketAddress[0];
+
 
    /**
     * The server socket.
+    * Connections are accepted as channels, and served by the
+    * selector loops of a {@link ChatEngine ChatEngine}.
     *
     */
-   public static ServerSocket theSocket;
+   public static ServerSocketChannel theSocket;
 
 
    /**
@@ -84,7 +221,7 @@ public class Chatroom
       }
       catch (IOException ioe)
       {
-         if (theSocket != null && !theSocket.isClosed())
+         if (theSocket != null && theSocket.isOpen())
          {
             // something's gone badly wrong
             System.out.println("Can't close the Server Socket");
@@ -102,45 +239,276 @@ public class Chatroom
     *  <ul>
     *   <li> <code>-port nnn</code> - run server on port number nnn;
     *     default is 12000
+    *   <li> <code>-queue n</code> - queue at most n messages for each user;
+    *     default is 256
+    *   <li> <code>-overflow drop|summarise|disconnect</code> - when a user
+    *     is a slow consumer, skip messages, skip messages and say how many
+    *     were skipped once the user catches up, or disconnect the user;
+    *     default is drop
+    *   <li> <code>-highwater n</code> - a user with more than n bytes
+    *     queued is a slow consumer; default is 262144
+    *   <li> <code>-lowwater n</code> - a slow consumer has caught up
+    *     when n bytes or fewer are queued; default is 65536
+    *   <li> <code>-selectors n</code> - serve all connections from
+    *     n selector threads; default is the number of processors
+    *   <li> <code>-flush ms</code> - write queued messages at most
+    *     ms milliseconds after they are queued; default is 2
+    *   <li> <code>-maxmsg n</code> - end the session of a user who sends
+    *     a message of more than n bytes; default is 65536
+    *   <li> <code>-history n</code> - send users joining a room the last
+    *     n messages in the room; default is 50; 0 to keep no history
+    *   <li> <code>-historybytes n</code> - keep at most n bytes of
+    *     messages in each room's history; default is 65536
+    *   <li> <code>-log dir</code> - log all messages to segment files in
+    *     directory dir; default is not to log messages
+    *   <li> <code>-segment n</code> - start a new segment file after
+    *     n bytes; default is 64 megabytes
+    *   <li> <code>-pool n</code> - keep at most n idle Chatters, with
+    *     their buffers, for re-use by new connections; default is 1024
+    *   <li> <code>-presence ms</code> - broadcast changes of presence
+    *     every ms milliseconds; default is 500
+    *   <li> <code>-node n</code> - in a clustered chatroom, the ID of
+    *     this node, which should be different for each node; default is 0
+    *   <li> <code>-link port</code> - run as a node of a clustered
+    *     chatroom, listening on port for links from the other nodes;
+    *     default is not to be clustered
+    *   <li> <code>-peers host:port,...</code> - the link ports of the
+    *     other nodes in the cluster
     *  </ul>
     */
    public static void main(String[] args)
    {
-      // check if port number is specified
-      if (args.length > 0)
+      // check if options are specified
+      if (args.length % 2 != 0)
       {
-         if (args.length == 2 && args[0].equals("-port"))
+         // options come in pairs
+         System.err.println(USAGE);
+         System.exit(2);
+      }
+      for (int i = 0; i < args.length; i += 2)
+      {
+         try 
          {
-            try 
+            if (args[i].equals("-port"))
+            {
+               // next argument should be the port number
+               portNum = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("-queue"))
+            {
+               // next argument should be the queue size
+               queueSize = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("-selectors"))
+            {
+               // next argument should be the number of selector loops
+               selectors = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("-flush"))
+            {
+               // next argument should be the flush time
+               flushMillis = Long.parseLong(args[i + 1]);
+            }
+            else if (args[i].equals("-maxmsg"))
+            {
+               // next argument should be the maximum message size
+               maxMessage = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("-history"))
+            {
+               // next argument should be the number of messages kept
+               historyCount = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("-historybytes"))
+            {
+               // next argument should be the number of bytes kept
+               historyBytes = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("-highwater"))
+            {
+               // next argument should be the high watermark
+               highWater = Long.parseLong(args[i + 1]);
+            }
+            else if (args[i].equals("-lowwater"))
+            {
+               // next argument should be the low watermark
+               lowWater = Long.parseLong(args[i + 1]);
+            }
+            else if (args[i].equals("-log"))
+            {
+               // next argument should be the log directory
+               logDir = new File(args[i + 1]);
+            }
+            else if (args[i].equals("-segment"))
+            {
+               // next argument should be the segment size
+               segmentBytes = Long.parseLong(args[i + 1]);
+            }
+            else if (args[i].equals("-pool"))
+            {
+               // next argument should be the pool size
+               poolSize = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("-presence"))
             {
-               // 2nd argument should be the port number
-               portNum = Integer.parseInt(args[1]);
+               // next argument should be the presence tick
+               presenceMillis = Long.parseLong(args[i + 1]);
             }
-            catch (NumberFormatException nfe)
+            else if (args[i].equals("-node"))
             {
-               // bad command-line arguments
-               System.err.println("invalid port number");
+               // next argument should be the node ID
+               nodeId = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("-link"))
+            {
+               // next argument should be the link port
+               linkPort = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("-peers"))
+            {
+               // next argument should be the list of peers
+               peers = ChatCluster.parsePeers(args[i + 1]);
+            }
+            else if (args[i].equals("-overflow"))
+            {
+               // next argument should be the policy name
+               overflow = ChatterList.OverflowPolicy.valueOf(
+                             args[i + 1].toUpperCase());
+            }
+            else
+            {
+               // not a recognised option
+               System.err.println(USAGE);
                System.exit(2);
             }
          }
-         else
+         catch (IllegalArgumentException iae)
          {
-            // only accept "-port nnn" as valid command-line arguments
-            System.err.println("usage: -port n");
+            // bad command-line arguments (including NumberFormatException)
+            System.err.println("invalid " + args[i].substring(1) + " value");
             System.exit(2);
          }
       }
+      if (queueSize <= 0 || selectors <= 0 || maxMessage <= 0
+          || historyBytes <= 0)
+      {
+         System.err.println("queue size, selectors, message size"
+                            + " and history bytes should be positive");
+         System.exit(2);
+      }
+      if (historyCount < 0 || historyCount > queueSize)
+      {
+         System.err.println(
+            "history should be between 0 and the queue size");
+         System.exit(2);
+      }
+      if (flushMillis < 0)
+      {
+         System.err.println("flush time should not be negative");
+         System.exit(2);
+      }
+      if (presenceMillis <= 0)
+      {
+         System.err.println("presence tick should be positive");
+         System.exit(2);
+      }
+      if (poolSize < 0)
+      {
+         System.err.println("pool size should not be negative");
+         System.exit(2);
+      }
+      if (lowWater < 0 || lowWater >= highWater)
+      {
+         System.err.println(
+            "low watermark should be between 0 and the high watermark");
+         System.exit(2);
+      }
 
-       // set up ChatterList
+       // set up the log, if any
       //
-      ChatterList chatters = new ChatterList();
+      ChatLog log = null;
+      if (logDir != null)
+      {
+         try
+         {
+            log = new ChatLog(logDir, segmentBytes);
+         }
+         catch (IllegalArgumentException iae)
+         {
+            System.err.println(iae.getMessage());
+            System.exit(2);
+         }
+         catch (IOException ioe)
+         {
+            // fatal error; print info...
+            System.err.println("Comp213 Chatroom: could not open log");
+            System.err.println(ioe.getMessage());
+            System.exit(1);
+         }
+      }
+
+       // set up the links to the rest of the cluster, if any
+      //
+      ChatCluster cluster = null;
+      if (linkPort != 0)
+      {
+         try
+         {
+            cluster = new ChatCluster(nodeId, linkPort, peers);
+         }
+         catch (IOException ioe)
+         {
+            // fatal error; print info...
+            System.err.println("Comp213 Chatroom: could not open link port");
+            System.err.println(ioe.getMessage());
+            System.exit(1);
+         }
+      }
+
+       // set up the rooms
+      //
+      ChatRooms chatters = new ChatRooms(queueSize, overflow,
+                                         highWater, lowWater, maxMessage,
+                                         historyCount, historyBytes, log,
+                                         poolSize, cluster);
+      if (cluster != null)
+      {
+         cluster.start(chatters);
+      }
+
+
+       // broadcast presence changes at a fixed rate
+      //
+      final ChatRooms rooms = chatters;
+      ScheduledExecutorService ticker =
+         Executors.newSingleThreadScheduledExecutor();
+      ticker.scheduleAtFixedRate(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  rooms.sendPresenceDigests();
+               }
+               catch (RuntimeException re)
+               {
+                  /*
+                   * an exception would cancel all later ticks;
+                   * report it, and try again at the next tick
+                   */
+                  System.err.println("Comp213 Chatroom: "
+                                     + "presence digest failed: " + re);
+               }
+            }
+         }, presenceMillis, presenceMillis, TimeUnit.MILLISECONDS);
 
 
        // set up server socket
       //
       try  // set up server
       {
-         theSocket = new ServerSocket(portNum);
+         theSocket = ServerSocketChannel.open();
+         theSocket.socket().bind(new InetSocketAddress(portNum));
       }
       catch (IOException ioe)
       {
@@ -152,16 +520,27 @@ public class Chatroom
       }
       System.out.println("Server socket has been started on port "+portNum);
 
-       // Thread-pool for session-handlers
+       // selector loops to serve all connections
       //
-      ExecutorService threadPool = Executors.newCachedThreadPool();
+      ChatEngine engine = null;
+      try
+      {
+         engine = new ChatEngine(selectors, flushMillis);
+      }
+      catch (IOException ioe)
+      {
+         // fatal error; print info...
+         System.err.println("Comp213 Chatroom: could not open selectors");
+         System.err.println(ioe.getMessage());
+         System.exit(1);
+      }
 
       /*
        * Start loop to accept incoming connections.
        * For each incoming socket connection, start up a Chatter.
        *
        */
-      Socket incoming = null;     // new connection.
+      SocketChannel incoming = null;     // new connection.
 
       boolean incomingOK = true;  // is connection established?
                                  // Keep this true by default;
@@ -177,75 +556,33 @@ public class Chatroom
          catch (IOException ioe)
          {
             // Is error fatal?
-            if (theSocket == null || theSocket.isClosed())
+            if (theSocket == null || ! theSocket.isOpen())
             {
                // no server socket: shut the chatroom down
 
-               /*
-                * wait for any recent connections to be processed
-                */
-               int repeatWaits = 0;  // timeout
-               while (Thread.activeCount() > chatters.length() + 1
-                      && repeatWaits < 2) // do this at most twice
+               // close connections, then stop the selector loops
+               System.out.println("Comp213 Chatroom: closing "
+                                  + chatters.length() + " connections");
+               System.out.println("Comp213 Chatroom: "
+                                  + chatters.slowConsumerStats());
+               System.out.println("Comp213 Chatroom: "
+                                  + chatters.poolStats());
+               ticker.shutdownNow();
+               if (cluster != null)
                {
-                  System.out.println((repeatWaits > 0) ?
-                                     "waiting for queued logins to complete" :
-                                     "last chance for queued logins");
-                  try 
-                  {
-                     Thread.sleep(100);
-                  }
-                  catch (InterruptedException ie)
-                  {
-                     // shouldn't happen
-                  }
-                  repeatWaits++;
-               } // all connections should now be processed
-
-               // close connections
+                  cluster.shutDown();
+               }
                chatters.shutDown();
+               engine.shutDown();
+               if (log != null)
+               {
+                  // write out everything said
+                  log.close();
+               }
 
                if (closeReq) // chatroom has been asked to shut down
                {
-                  if (Thread.activeCount() == 1)
-                  {
-                     // only main thread left
-                     System.out.println("Comp213 Chatroom: closed.");
-                     return;
-                  }
-                  List<Runnable> laggards = threadPool.shutdownNow();
-                  System.out.println(laggards.size() + " threads left");
-                  // else: still some threads to shut down
-                  System.out.println("Comp213 Chatroom: closing connections");
-
-                  int ts = Thread.activeCount();
-                  Thread[] ats = new Thread[ts];
-                  Thread.enumerate(ats);
-                  // give each thread a chance to end
-                  for (int i = 0 ; i < ts ; i++)
-                  {
-                     if (! ats[i].getName().equals("main"))
-                     {
-                        System.out.println("found thread: " + ats[i].getName());
-                        System.out.println("it is: " + ats[i].getState());
-                        ats[i].interrupt();
-                        try{
-                           ats[i].setPriority(Thread.MAX_PRIORITY);
-                           Thread.sleep(100);
-                        } catch (InterruptedException ieee) {}
-                     }
-                  }
-
-                  // in case this hasn't worked
-                  if (Thread.activeCount() > 1)
-                  {
-                     System.out.println("Comp213 Chatroom: "
-                                        +"some threads have not ended...");
-                     System.out.println("...exiting java interpreter");
-                     System.exit(1);
-                  }
-
-                  // else: everything as it should be
+                  // everything as it should be
                   System.out.println("Comp213 Chatroom: closed.");
                   return;
                }
@@ -267,8 +604,8 @@ public class Chatroom
          //
          if (incomingOK)
          {
-            // start new thread to serve new client
-            threadPool.execute(chatters.getChatter(incoming));
+            // hand the new client to a selector loop
+            engine.register(chatters.getChatter(incoming));
          }
          else // there was an IOException; wait for new incoming
          {
@@ -278,4 +615,3 @@ public class Chatroom
    } // end main
    
 } // Chatroom
-
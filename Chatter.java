@@ -12,48 +12,149 @@
 
 package Comp213.ChatServer;
 
-import java.net.Socket;
-import java.io.PrintWriter;
-import java.io.BufferedReader;
-import java.io.OutputStreamWriter;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Chatters in a chatroom.
- * This class also provides a linked list structure.
+ * <p>
+ * A Chatter holds the state of one session with a remote user;
+ * it has no thread of its own.
+ * Its connection is served by one of the selector loops of the
+ * {@link ChatEngine ChatEngine}, which passes it the bytes read from the
+ * connection, and asks it to write when the connection can take more data.
+ * Bytes are assembled into lines as they arrive, and each complete line
+ * is handled according to the chatroom protocol, so an idle user
+ * costs no more than the bytes of a partly received line.
+ * </p><p>
+ * Messages to the remote user are not written directly:
+ * {@link #sendToUser(ByteBuffer) sendToUser} puts them in a bounded
+ * queue, and asks the selector loop to send them when it can,
+ * so a slow remote user never holds up the chatroom.
+ * The bytes waiting in the queue are counted; a Chatter whose queue
+ * grows beyond the {@link ChatRooms#getHighWater() high watermark}
+ * is a slow consumer, and is sent no more messages until its queue has
+ * fallen to the {@link ChatRooms#getLowWater() low watermark}.
+ * Messages arrive already encoded, and the same buffer is shared by
+ * all the Chatters a message is broadcast to.
+ * The loop sends all the messages queued for a Chatter in a single
+ * gathering write, once per {@link ChatEngine flush}.
+ * </p>
  *
  * @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
- * @version 1.0
+ * @version 2.0
  */
 public class Chatter
-   implements Runnable
 {
 
    /**
-    * The next chatter in a list.
-    * This field provides the linked-list structure.
+    * Maximum length, in bytes, of a line from the remote user.
+    * A longer line is bad protocol, and ends the session.
     *
     */
-   private Chatter next = null;
+   public static final int MAX_LINE = 8192;
 
    /**
-    * The Socket connection to the remote client.
+    * Initial size of the buffer for a partly received line.
     *
     */
-   private Socket client = null;
+   private static final int INITIAL_LINE = 128;
 
    /**
-    * The output stream to the remote client.
+    * Initial size of the buffer for a message being received.
+    * The buffer grows as needed, up to the
+    * {@link ChatRooms#getMaxMessage() maximum message size}.
     *
     */
-   private PrintWriter out;
+   private static final int INITIAL_MESSAGE = 1024;
 
    /**
-    * The input stream from the remote client.
+    * Largest line buffer kept when the chatter is pooled for re-use.
+    * A larger buffer, grown for an unusually long line, is replaced by
+    * a buffer of the initial size, so pooled chatters hold little memory.
     *
     */
-   private BufferedReader in;
+   private static final int RETAINED_LINE = 1024;
+
+   /**
+    * Largest message buffer kept when the chatter is pooled for re-use.
+    *
+    */
+   private static final int RETAINED_MESSAGE = 8 * 1024;
+
+   /**
+    * End of a framed message: {@link ChatterList#MSG_END MSG_END}
+    * and a newline.
+    *
+    */
+   private static final byte[] MESSAGE_END = {ChatterList.MSG_END, '\n'};
+
+   /**
+    * End of each line of a framed message.
+    *
+    */
+   private static final byte[] NEWLINE = {'\n'};
+
+   /**
+    * Maximum number of queued messages sent in one gathering write.
+    *
+    */
+   private static final int MAX_GATHER = 64;
+
+   /**
+    * The connection to the remote client, in non-blocking mode.
+    *
+    */
+   private volatile SocketChannel client = null;
+
+   /**
+    * The selector loop serving this chatter's connection.
+    *
+    */
+   private volatile ChatEngine.Loop loop = null;
+
+   /**
+    * Whether the session is in progress.
+    * Once this is false, no further writes are requested.
+    *
+    */
+   private volatile boolean open = false;
+
+   /**
+    * Number of the current session.
+    * A Chatter is re-used for many sessions, so other threads that may
+    * still hold a reference from an earlier session say which session a
+    * message is for, and messages for an earlier session are dropped.
+    *
+    */
+   private volatile int session = 0;
+
+   /**
+    * Number of holds on the current session: one for the session itself,
+    * until it {@link #end() ends}, and one for each thread in
+    * {@link #sendToUser(ByteBuffer, int) sendToUser}.
+    * Whichever thread releases the last hold logs the Chatter out and
+    * pools it for re-use, so the selector loop never waits for a thread
+    * that is still queueing a message; once this is 0, it stays 0 until
+    * the next session starts.
+    *
+    */
+   private final AtomicInteger senders = new AtomicInteger(0);
+
+   /**
+    * Whether the session has been asked to {@link #disconnect() end}.
+    * Reset for each session, so that a request left over from an earlier
+    * session cannot end a later one.
+    *
+    */
+   private volatile boolean endRequested = false;
 
    /**
     * The chosen name of the remote user.
@@ -62,31 +163,248 @@ public class Chatter
    private String name;
 
    /**
-    * The list of Chatters in the chatroom.
+    * The rooms of the chat server.
+    *
+    */
+   private final ChatRooms rooms;
+
+   /**
+    * The room this chatter is in; null until the chatter has logged in.
     *
     */
    private ChatterList chatroom;
 
+   /**
+    * Sequence number of the last message in the
+    * {@link ChatHistory history} of this chatter's room that was sent
+    * to this chatter when it joined the room.
+    *
+    */
+   private volatile long historySeen = 0;
+
+   /**
+    * Messages waiting to be sent to the remote client.
+    *
+    */
+   private final BlockingQueue<ByteBuffer> outbox;
+
+   /**
+    * Whether a write has been requested from, or is being carried out by,
+    * the selector loop.
+    * At most one write is in progress at a time, so messages are sent
+    * in order.
+    *
+    */
+   private final AtomicBoolean writing = new AtomicBoolean(false);
+
+   /**
+    * Number of bytes queued, or in {@link #batch the batch},
+    * that have not yet been sent.
+    *
+    */
+   private final AtomicLong queuedBytes = new AtomicLong(0);
+
+   /**
+    * Whether this chatter is a slow consumer, and so should not be sent
+    * any more messages until it has caught up.
+    *
+    */
+   private final AtomicBoolean slow = new AtomicBoolean(false);
+
+   /**
+    * Number of messages skipped since this chatter last caught up,
+    * to be {@link ChatterList.OverflowPolicy#SUMMARISE summarised}.
+    *
+    */
+   private final AtomicInteger skipped = new AtomicInteger(0);
+
+   /**
+    * Whether this chatter has been disconnected for being a slow consumer.
+    *
+    */
+   private final AtomicBoolean disconnecting = new AtomicBoolean(false);
+
+   /**
+    * Buffers for one gathering write.
+    * Only used by the selector loop.
+    *
+    */
+   private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+
+   /**
+    * Size, in bytes, of each message in {@link #batch batch}.
+    *
+    */
+   private final int[] batchSizes = new int[MAX_GATHER];
+
+   /**
+    * Index in {@link #batch batch} of the first buffer not yet sent.
+    *
+    */
+   private int batchStart = 0;
+
+   /**
+    * Number of buffers in {@link #batch batch}.
+    *
+    */
+   private int batchEnd = 0;
+
+   /**
+    * Bytes of the line currently being received.
+    *
+    */
+   private byte[] line = new byte[INITIAL_LINE];
+
+   /**
+    * Number of bytes in {@link #line line}.
+    *
+    */
+   private int lineLength = 0;
+
+   /**
+    * Header of this chatter's messages: {@link ChatterList#MSG_PREFIX
+    * MSG_PREFIX}, the user's name, and a newline, encoded once at login.
+    *
+    */
+   private byte[] msgHeader;
+
+   /**
+    * Header of this chatter's private messages:
+    * {@link ChatterList#PRIVATE_MSG PRIVATE_MSG}, the user's name,
+    * and a newline, encoded once at login.
+    *
+    */
+   private byte[] privateHeader;
+
+   /**
+    * Name of the recipient of the message currently being received,
+    * if it is a private message; null otherwise.
+    *
+    */
+   private String privateTo = null;
+
+   /**
+    * The multi-line message currently being received, framed ready for
+    * broadcast: the {@link #msgHeader header} is written when the message
+    * starts, and each line is copied in as it arrives, so the message is
+    * complete as soon as its last line has been received.
+    * The buffer is kept for re-use by later messages and sessions.
+    *
+    */
+   private byte[] message = new byte[INITIAL_MESSAGE];
+
+   /**
+    * Number of bytes in {@link #message message};
+    * 0 if not in the middle of a message.
+    *
+    */
+   private int messageLength = 0;
+
 
    /**
     * Creates a new <code>Chatter</code> with a reference to the
-    * chatroom.
+    * rooms of the chat server.
     *
-    * @param cl the list of chatters that this chatter will join.
+    * @param cr the rooms that this chatter will join.
     */
-   public Chatter(ChatterList cl)
+   public Chatter(ChatRooms cr)
    {
-      chatroom = cl;
+      rooms = cr;
+      outbox = new ArrayBlockingQueue<ByteBuffer>(cr.getQueueSize());
    }
 
    /**
-    * Set the Socket connection to the remote client.
+    * Set the connection to the remote client, and reset the session.
     *
-    * @param sock a <code>Socket</code> connection to a remote client.
+    * @param sock a <code>SocketChannel</code> connection to a
+    *             remote client.
     */
-   public void setClient(Socket sock)
+   public void setClient(SocketChannel sock)
    {
       client = sock;
+      loop = null;
+      name = null;
+      msgHeader = null;
+      privateHeader = null;
+      privateTo = null;
+      chatroom = null;
+      historySeen = 0;
+      messageLength = 0;
+      lineLength = 0;
+      // the queue was cleared when the previous session ended
+      writing.set(false);
+      queuedBytes.set(0);
+      slow.set(false);
+      skipped.set(0);
+      disconnecting.set(false);
+      endRequested = false;
+      // start a new session: messages for earlier ones are now dropped
+      senders.set(1);
+      session++;
+      open = true;
+   }
+
+   /**
+    * Get the number of the current session, to be given to
+    * {@link #sendToUser(ByteBuffer, int) sendToUser} by other threads.
+    *
+    * @return the session number
+    */
+   int getSession()
+   {
+      return session;
+   }
+
+   /**
+    * Get the connection to the remote client.
+    *
+    * @return the connection
+    */
+   SocketChannel getClient()
+   {
+      return client;
+   }
+
+   /**
+    * Get the selector loop serving this chatter.
+    *
+    * @return the selector loop; null if not yet registered
+    */
+   ChatEngine.Loop getLoop()
+   {
+      return loop;
+   }
+
+   /**
+    * Set the selector loop serving this chatter.
+    *
+    * @param l the selector loop
+    */
+   void setLoop(ChatEngine.Loop l)
+   {
+      loop = l;
+   }
+
+   /**
+    * Get the sequence number of the last message from the history of
+    * this chatter's room that was sent to this chatter when it joined.
+    *
+    * @return the sequence number
+    */
+   long getHistorySeen()
+   {
+      return historySeen;
+   }
+
+   /**
+    * Set the sequence number of the last message from the history of
+    * this chatter's room that has been sent to this chatter.
+    *
+    * @param seq the sequence number
+    */
+   void setHistorySeen(long seq)
+   {
+      historySeen = seq;
    }
 
    /**
@@ -100,177 +418,634 @@ public class Chatter
    }
 
    /**
-    * Get the next Chatter in the list.
+    * Queue a message to be sent to the remote client.
+    * This does not block: if the queue is full, the message is not
+    * queued, and it is up to the caller to decide what to do.
+    * The message is not copied, and the given buffer is not modified,
+    * so the same buffer can be sent to any number of Chatters.
     *
-    * @return the next Chatter in the list
+    * @param msg the encoded message, including its final newline,
+    *            between position and limit
+    * @return true if the message was queued, or the session is over;
+    *         false if this chatter is a slow consumer
     */
-   public final Chatter getNext()
+   public boolean sendToUser(ByteBuffer msg)
    {
-      return next;
+      return sendToUser(msg, session);
    }
 
    /**
-    * Set the next Chatter in the list.
+    * Queue a message to be sent to the remote client in a given session.
+    * This is for threads other than the selector loop serving the
+    * session, which may still hold a reference to this chatter after
+    * the session has ended and the chatter has been re-used;
+    * the message is dropped unless the session is still in progress.
     *
-    * @param newNext the Chatter instance that follows this one in the list
+    * @param msg the encoded message, including its final newline,
+    *            between position and limit
+    * @param s the {@link #getSession() number of the session}
+    * @return true if the message was queued, or the session is over;
+    *         false if this chatter is a slow consumer
     */
-   public final void setNext(final Chatter newNext)
+   boolean sendToUser(ByteBuffer msg, int s)
    {
-      this.next = newNext;
+      if (! hold())
+      {
+         // the session is over, and the chatter is being pooled
+         return true;
+      }
+      try
+      {
+         // session is set before open, so read them in the other order
+         if (! open || s != session)
+         {
+            // nobody to send to
+            return true;
+         }
+         return offer(msg);
+      }
+      finally
+      {
+         release();
+      }
    }
 
    /**
-    * Send a message to the remote client.
+    * Take a hold on the current session, unless it is over.
     *
-    * @param msg the message to be sent to the remote client
+    * @return true if a hold was taken, and must be
+    *         {@link #release() released}
     */
-   public void sendToUser(String msg)
+   private boolean hold()
    {
-      out.println(msg);
-      out.flush();
+      while (true)
+      {
+         int n = senders.get();
+         if (n == 0)
+         {
+            return false;
+         }
+         if (senders.compareAndSet(n, n + 1))
+         {
+            return true;
+         }
+      }
    }
 
    /**
-    * Handle a session with a remote client.
+    * Release a hold on the current session; if it was the last,
+    * log out and get ready to be re-used.
     *
     */
-   public void run()
+   private void release()
    {
-      try 
+      if (senders.decrementAndGet() == 0)
       {
-         out = new PrintWriter(
-                     new OutputStreamWriter(client.getOutputStream()));
-         in =  new BufferedReader(
-                     new InputStreamReader(client.getInputStream()));
+         recycle();
+         // die and exit the chatroom
+         ChatterList room = chatroom;
+         chatroom = null;
+         rooms.logout(this, room);
+      }
+   }
 
-         // get user name
-         String line = in.readLine();
-         if (line.trim().equals(""))
+   /**
+    * Queue a message for the current session.
+    *
+    * @param msg the encoded message
+    * @return false if this chatter is a slow consumer
+    */
+   private boolean offer(ByteBuffer msg)
+   {
+      if (slow.get())
+      {
+         // wait until it has caught up
+         return false;
+      }
+      // our own view of the shared bytes, with its own position
+      ByteBuffer m = msg.duplicate();
+      int size = m.remaining();
+      if (! outbox.offer(m))
+      {
+         becomeSlow();
+         return false;
+      }
+      if (queuedBytes.addAndGet(size) > rooms.getHighWater())
+      {
+         // this message is queued, but no more
+         becomeSlow();
+      }
+      requestWrite();
+      if (outbox.size() >= MAX_GATHER)
+      {
+         // a full batch is waiting: send it without delay
+         ChatEngine.Loop l = loop;
+         if (l != null)
          {
-            /*
-             * empty user name, so end the session;
-             * NB - the "finally"-clause will be invoked,
-             * so this thread will be removed from the chatroom
-             */
-            return;
+            l.flushNow();
          }
-         name = line;
+      }
+      return true;
+   }
 
-         // now we're up and running; connect to the chatterlist
-         chatroom.connect(this);
+   /**
+    * Mark this chatter as a slow consumer.
+    *
+    */
+   private void becomeSlow()
+   {
+      if (slow.compareAndSet(false, true))
+      {
+         rooms.countSlowConsumer();
+      }
+   }
 
-         // to store messages received from the remote client
-         String msg = "";
+   /**
+    * Apply an overflow policy to a message that this chatter, as a slow
+    * consumer, has not been sent.
+    *
+    * @param policy what to do
+    * @param s the number of the session the message was for;
+    *          nothing is done if that session is over
+    */
+   void overflowed(ChatterList.OverflowPolicy policy, int s)
+   {
+      if (s != session)
+      {
+         return;
+      }
+      rooms.countSkipped();
+      switch (policy)
+      {
+         case SUMMARISE:
+            skipped.incrementAndGet();
+            break;
+         case DISCONNECT:
+            if (disconnecting.compareAndSet(false, true))
+            {
+               // the session will end, and the chatter will leave the room
+               rooms.countDisconnected();
+               disconnect();
+            }
+            break;
+         default:
+            // just skip the message
+            break;
+      }
+   }
 
-         // have we read all the lines of a message
-         boolean done = false;
+   /**
+    * Check whether a slow consumer has caught up, and if so,
+    * let it be sent messages again, starting with a summary of the
+    * messages it has missed, if any.
+    * Called by the selector loop only, as queued messages are sent.
+    *
+    */
+   private void checkCaughtUp()
+   {
+      if (! slow.get() || queuedBytes.get() > rooms.getLowWater())
+      {
+         return;
+      }
+      slow.set(false);
+      int n = skipped.getAndSet(0);
+      if (n > 0)
+      {
+         ByteBuffer summary = ChatterList.encode(
+            ChatterList.MSG_PREFIX + ChatterList.SERVER_NAME + "\n"
+            + ChatterList.MSG_PREFIX + n + " messages dropped\n"
+            + ChatterList.MSG_END);
+         if (outbox.offer(summary))
+         {
+            queuedBytes.addAndGet(summary.remaining());
+         }
+      }
+   }
+
+   /**
+    * Ask the selector loop to send queued messages,
+    * unless a write is already under way.
+    *
+    */
+   void requestWrite()
+   {
+      ChatEngine.Loop l = loop;
+      if (l != null && writing.compareAndSet(false, true))
+      {
+         l.requestWrite(this);
+      }
+   }
 
-         // now just listen for messages and respond
-         while ((line = in.readLine()) != null)
+   /**
+    * Send as many queued messages as the connection will take.
+    * Called by the selector loop only.
+    *
+    * @return true if all queued messages have been sent;
+    *         false if the connection could not take them all,
+    *         in which case the loop should call this method again
+    *         when the connection is writable
+    * @exception IOException if the connection has failed
+    */
+   boolean write() throws IOException
+   {
+      do
+      {
+         while (true)
          {
-            if (line.trim().equals(""))
+            if (batchStart == batchEnd && ! fillBatch())
+            {
+               // nothing left to send
+               break;
+            }
+            client.write(batch, batchStart, batchEnd - batchStart);
+            // skip buffers that have been completely sent
+            while (batchStart < batchEnd && ! batch[batchStart].hasRemaining())
             {
-               // bad input from user; end session
-               return;
+               queuedBytes.addAndGet(-batchSizes[batchStart]);
+               batch[batchStart++] = null;
             }
-            else if (line.charAt(0) == ChatterList.MSG_PREFIX)
+            checkCaughtUp();
+            if (batchStart < batchEnd)
             {
-               // add line to msg
-               msg = line;
+               // connection is full; carry on when it's writable
+               return false;
+            }
+         }
+         writing.set(false);
+         // a message may have arrived after the last poll()
+      } while (! outbox.isEmpty() && writing.compareAndSet(false, true));
+      return true;
+   }
 
-               done = false;
-               while (! done)
-               {
-                  line = in.readLine();
-                  if (line == null || line.trim().equals(""))
-                  {
-                     // bad protocol
-                     return;
-                  }
-                  if (line.charAt(0) == ChatterList.MSG_PREFIX)
-                  {
-                     // add the current line to the message
-                     msg += "\n" + line;
-                  }
-                  else if (line.charAt(0) == ChatterList.MSG_END)
-                  {
-                     // end of message; exit loop then send to all
-                     done = true;
-                  }
-                  else
-                  {
-                     // any other option is bad protocol
-                     return;
-                  }
-               }
+   /**
+    * Move queued messages into {@link #batch the batch}.
+    *
+    * @return true if there are messages in the batch
+    */
+   private boolean fillBatch()
+   {
+      batchStart = 0;
+      batchEnd = 0;
+      ByteBuffer m;
+      while (batchEnd < MAX_GATHER && (m = outbox.poll()) != null)
+      {
+         batchSizes[batchEnd] = m.remaining();
+         batch[batchEnd++] = m;
+      }
+      return batchEnd > 0;
+   }
 
-               // message from remote client
-               chatroom.sendMsg(name, msg);
+   /**
+    * Drop the connection to the remote client.
+    * The session will then end, and the chatter will leave the chatroom.
+    *
+    */
+   public void disconnect()
+   {
+      endRequested = true;
+      ChatEngine.Loop l = loop;
+      if (l != null)
+      {
+         l.requestEnd(this);
+      }
+      else
+      {
+         close();
+      }
+   }
+
+   /**
+    * Whether the session has been asked to end.
+    *
+    * @return true if {@link #disconnect() disconnect()} has been called
+    *         during this session
+    */
+   boolean isEndRequested()
+   {
+      return endRequested;
+   }
+
+   /**
+    * Handle bytes received from the remote client.
+    * Called by the selector loop only.
+    * Bytes are added to the current line; each complete line is
+    * {@link #handleLine(int) handled} as soon as it has arrived.
+    *
+    * @param bytes the bytes received, between position and limit
+    * @return true if the session should continue;
+    *         false if it should end
+    */
+   boolean received(ByteBuffer bytes)
+   {
+      while (bytes.hasRemaining())
+      {
+         byte b = bytes.get();
+         if (b == '\n')
+         {
+            // end of line; ignore a carriage return before the newline
+            int len = lineLength;
+            if (len > 0 && line[len - 1] == '\r')
+            {
+               len--;
             }
-            else if (line.equals(Chatroom.QUITC))
+            lineLength = 0;
+            if (! handleLine(len))
             {
-               // shut down the chatroom
-               Chatroom.close();
+               return false;
+            }
+         }
+         else
+         {
+            if (lineLength == line.length)
+            {
+               if (lineLength >= MAX_LINE)
+               {
+                  // line too long: bad protocol
+                  return false;
+               }
+               line = Arrays.copyOf(line, Math.min(2 * lineLength, MAX_LINE));
+            }
+            line[lineLength++] = b;
+         }
+      }
+      return true;
+   }
 
-               // our work is done
-               return;
+   /**
+    * Handle a line received from the remote client,
+    * following the chatroom protocol.
+    * Lines of messages are copied into the message as they are,
+    * without being decoded; all other lines are decoded and
+    * {@link #handleCommand(String) handled as commands}.
+    *
+    * @param len the length of the line, without its newline,
+    *            at the start of {@link #line line}
+    * @return true if the session should continue;
+    *         false if it should end
+    */
+   private boolean handleLine(int len)
+   {
+      if (messageLength > 0)
+      {
+         // in the middle of a multi-line message
+         if (len > 0 && line[0] == ChatterList.MSG_PREFIX)
+         {
+            // add the current line to the message
+            return appendLine(len);
+         }
+         else if (len > 0 && line[0] == ChatterList.MSG_END)
+         {
+            // end of message
+            if (! appendToMessage(MESSAGE_END, MESSAGE_END.length))
+            {
+               return false;
             }
-            else if (line.charAt(0) == ChatterList.LEAVE_PREFIX)
+            if (privateTo == null)
             {
-               // remote user logging out
-               return;
+               // send to all
+               chatroom.sendMsg(message, messageLength);
             }
             else
             {
-               // either bad protocol, or user is quitting; end session
-               return;
+               // send to one
+               rooms.sendPrivate(this, privateTo, message, messageLength);
+               privateTo = null;
             }
+            messageLength = 0;
+            return true;
          }
-         // input line was null; end session
+         // any other option is bad protocol
+         return false;
       }
-      catch (IOException ioe)
+      if (msgHeader != null && len > 0 && line[0] == ChatterList.MSG_PREFIX)
       {
-         System.out.println("IOException: " + ioe.getMessage());
+         // start of a message
+         return appendToMessage(msgHeader, msgHeader.length)
+            && appendLine(len);
       }
-      finally
+      return handleCommand(new String(line, 0, len, ChatterList.CHARSET));
+   }
+
+   /**
+    * Copy the current line, and a newline, into the message
+    * being received.
+    *
+    * @param len the length of the line, without its newline
+    * @return true if the line was added; false if the message would be
+    *         longer than the {@link ChatRooms#getMaxMessage() maximum}
+    */
+   private boolean appendLine(int len)
+   {
+      if (! appendToMessage(line, len))
       {
-         // shut down I/O
-         close();
-         // die and exit the chatroom
-         chatroom.leave(this);
+         return false;
       }
+      return appendToMessage(NEWLINE, NEWLINE.length);
    }
 
    /**
-    * Close network connections to remote client.
+    * Copy bytes into the message being received, growing the buffer
+    * if necessary.
     *
+    * @param bytes the bytes to copy
+    * @param len the number of bytes to copy, from the start of
+    *            <code>bytes</code>
+    * @return true if the bytes were added; false if the message would be
+    *         longer than the {@link ChatRooms#getMaxMessage() maximum}
     */
-   public void close()
+   private boolean appendToMessage(byte[] bytes, int len)
    {
-      if (out != null)
+      int needed = messageLength + len;
+      if (needed > rooms.getMaxMessage())
       {
-         out.close();
+         // message too long: bad protocol
+         return false;
       }
-      if (in != null)
+      if (needed > message.length)
       {
-         try
+         message = Arrays.copyOf(message,
+            Math.min(Math.max(2 * message.length, needed),
+                     rooms.getMaxMessage()));
+      }
+      System.arraycopy(bytes, 0, message, messageLength, len);
+      messageLength = needed;
+      return true;
+   }
+
+   /**
+    * Handle a line from the remote client that is not part of a message.
+    *
+    * @param line the line received, without its newline
+    * @return true if the session should continue;
+    *         false if it should end
+    */
+   private boolean handleCommand(String line)
+   {
+      if (line.trim().equals(""))
+      {
+         /*
+          * empty user name, or bad input from user; end session
+          */
+         return false;
+      }
+      if (name == null)
+      {
+         // first line is the user name
+         name = line;
+         msgHeader = (ChatterList.MSG_PREFIX + name + "\n")
+            .getBytes(ChatterList.CHARSET);
+         privateHeader = (ChatterList.PRIVATE_MSG + name + "\n")
+            .getBytes(ChatterList.CHARSET);
+
+         // now we're up and running; connect to the default room
+         chatroom = rooms.login(this);
+         return true;
+      }
+      if (line.equals(Chatroom.QUITC))
+      {
+         // shut down the chatroom
+         Chatroom.close();
+
+         // our work is done
+         return false;
+      }
+      else if (line.charAt(0) == ChatterList.LEAVE_PREFIX)
+      {
+         // remote user logging out
+         return false;
+      }
+      else if (line.charAt(0) == ChatterList.ROOM_JOIN)
+      {
+         // move to the named room
+         String roomName = line.substring(1).trim();
+         if (roomName.equals(""))
+         {
+            // bad protocol
+            return false;
+         }
+         changeRoom(roomName);
+         return true;
+      }
+      else if (line.charAt(0) == ChatterList.ROOM_LEAVE)
+      {
+         // back to the default room
+         changeRoom(ChatRooms.DEFAULT_ROOM);
+         return true;
+      }
+      else if (line.charAt(0) == ChatterList.PRIVATE_MSG)
+      {
+         // start of a private message
+         String to = line.substring(1);
+         if (to.equals(""))
+         {
+            // bad protocol
+            return false;
+         }
+         privateTo = to;
+         return appendToMessage(privateHeader, privateHeader.length);
+      }
+      else if (line.charAt(0) == ChatterList.PRESENCE)
+      {
+         // new status: the first word, within reason
+         String status = line.substring(1).trim().split("\\s", 2)[0];
+         if (status.equals(""))
          {
-            in.close();
+            // bad protocol
+            return false;
          }
-         catch(IOException ioe)
-         {}
+         if (status.length() > ChatterList.MAX_STATUS)
+         {
+            status = status.substring(0, ChatterList.MAX_STATUS);
+         }
+         chatroom.setPresence(this, status);
+         return true;
       }
-      if (client != null) // it will be, but...
+      else if (line.charAt(0) == ChatterList.TYPING)
+      {
+         chatroom.setTyping(this);
+         return true;
+      }
+      else if (line.charAt(0) == ChatterList.ROOM_LIST)
+      {
+         // tell the user what rooms there are
+         sendToUser(rooms.listRooms());
+         return true;
+      }
+      // either bad protocol, or user is quitting; end session
+      return false;
+   }
+
+   /**
+    * Move to another room, and confirm the move to the remote user.
+    *
+    * @param roomName the name of the room to join
+    */
+   private void changeRoom(String roomName)
+   {
+      chatroom = rooms.move(this, chatroom, roomName);
+      sendToUser(ChatterList.encode(ChatterList.ROOM_JOIN + roomName));
+   }
+
+   /**
+    * End the session: close the connection, and leave the chatroom.
+    * Called by the selector loop only, once for each session.
+    * If other threads are still queueing messages, the last of them
+    * to finish leaves the chatroom, and the loop does not wait.
+    *
+    */
+   void end()
+   {
+      // shut down I/O: no new message can now be queued
+      close();
+      release();
+   }
+
+   /**
+    * Get ready to be pooled for re-use.
+    * Called once no other thread can still be queueing a message.
+    * Buffers are kept, to be reset by the next session, unless they have
+    * grown unusually large; references to messages are dropped, so the
+    * messages can be garbage-collected.
+    *
+    */
+   private void recycle()
+   {
+      outbox.clear();
+      Arrays.fill(batch, null);
+      batchStart = 0;
+      batchEnd = 0;
+      if (line.length > RETAINED_LINE)
+      {
+         line = new byte[INITIAL_LINE];
+      }
+      if (message.length > RETAINED_MESSAGE)
+      {
+         message = new byte[INITIAL_MESSAGE];
+      }
+      lineLength = 0;
+      messageLength = 0;
+      privateTo = null;
+   }
+
+   /**
+    * Close network connections to remote client.
+    *
+    */
+   public void close()
+   {
+      open = false;
+      SocketChannel s = client;
+      if (s != null) // it will be, but...
       {
          try
          {
-            client.close();
+            // also cancels its registration with the selector
+            s.close();
          }
          catch (IOException ioe)
          {
             // nothing useful to do
          }
-         client = null;
       }
    }
 }
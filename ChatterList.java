@@ -13,17 +13,33 @@
 
 package Comp213.ChatServer;
 
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * List of Chatters in a chatroom.
  * The requirements for this class are described in the
  * <a href="/~grant/Teaching/COMP213/Ass2/">COMP213 assignment</a>.
+ * <p>
+ * Each room of the {@link ChatRooms chat server} has its own
+ * ChatterList; broadcasts in one room never touch the Chatters
+ * in any other room.
+ * </p><p>
+ * A room can keep a {@link ChatHistory history} of its recent messages,
+ * which are sent to each new Chatter straight after its arrival has been
+ * announced, so new users can see what they have missed.
+ * </p>
  *
  * @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
  * @version 1.0
  */
-public class ChatterList 
+public class ChatterList
 {
 
    /**
@@ -34,7 +50,7 @@ public class ChatterList
     * preceded by this constant.
     *
     */
-   private static final char JOIN_PREFIX = '0';
+   public static final char JOIN_PREFIX = '0';
 
    /**
     * Prefix for broadcast messages that indicate a Chatter has left
@@ -61,103 +77,295 @@ public class ChatterList
    public static final char MSG_END = '3';
 
    /**
-    * The list of {@link Chatter live Chatters} in the chatroom.
+    * Prefix for a request to move to another room.
+    * The remote user sends this constant followed by the name of the room;
+    * the user leaves their current room and joins the named room,
+    * which is created if it does not exist.
+    * The server confirms by sending the same line back to the user.
     *
     */
-   private Chatter liveChatters = null;
+   public static final char ROOM_JOIN = '4';
 
    /**
-    * A list of Chatter instances that have left the chatroom.
+    * Request to leave the current room.
+    * The remote user sends a line consisting of this constant;
+    * the user leaves their current room and returns to the
+    * {@link ChatRooms#DEFAULT_ROOM default room}.
+    * The server confirms with a {@link #ROOM_JOIN ROOM_JOIN} line
+    * naming the default room.
     *
     */
-   private Chatter deadChatters = null;
+   public static final char ROOM_LEAVE = '5';
 
    /**
-    * A list of Chatter instances that have not yet been added to
-    * the chatroom because they are waiting for a
-    * {@link Chatter#name user name} to be supplied by the remote user.
+    * Prefix for the list of rooms.
+    * The remote user sends a line consisting of this constant;
+    * the server replies with one line for each room, consisting of this
+    * constant, the number of users in the room, a space, and the name of
+    * the room, followed by a line consisting of
+    * {@link #MSG_END MSG_END}.
     *
     */
-   private Chatter pendingChatters = null;
+   public static final char ROOM_LIST = '6';
+
+   /**
+    * Prefix for a presence status.
+    * The remote user sends this constant followed by a status,
+    * such as <code>away</code>; the status is a single word of at most
+    * {@link #MAX_STATUS MAX_STATUS} characters.
+    * Changes of status are not broadcast as they happen,
+    * but collected into the room's next {@link #PRESENCE_TICK digest}.
+    * In a digest, each change is a line consisting of this constant,
+    * the status, a space, and the name of the user.
+    *
+    */
+   public static final char PRESENCE = '7';
+
+   /**
+    * Prefix for a typing notification.
+    * The remote user sends a line consisting of this constant while
+    * they are typing a message.
+    * Notifications are not broadcast as they happen, but collected into
+    * the room's next {@link #PRESENCE_TICK digest}, where each user who
+    * has been typing since the last digest is named in a line consisting
+    * of this constant and the name of the user.
+    *
+    */
+   public static final char TYPING = '8';
+
+   /**
+    * Prefix for a private message.
+    * The remote user sends a line consisting of this constant and the name
+    * of the recipient, followed by the lines of the message, each
+    * prefixed by {@link #MSG_PREFIX MSG_PREFIX}, and a line consisting
+    * of {@link #MSG_END MSG_END}.
+    * The recipient, who may be in any room, receives the message in the
+    * same form, with the name of the sender in place of the recipient.
+    * If there is no user of that name, the sender is told so in a message
+    * from {@link #SERVER_NAME SERVER_NAME}.
+    *
+    */
+   public static final char PRIVATE_MSG = '9';
+
+   /**
+    * Maximum length of a {@link #PRESENCE presence} status.
+    *
+    */
+   public static final int MAX_STATUS = 32;
+
+   /**
+    * Default time, in milliseconds, between presence digests.
+    * Every tick, each room in which presence has changed broadcasts one
+    * digest, consisting of the {@link #PRESENCE presence} and
+    * {@link #TYPING typing} lines for the changes since the last digest,
+    * followed by a line consisting of {@link #MSG_END MSG_END}.
+    * This value is set to 500.
+    *
+    */
+   public static final long PRESENCE_TICK = 500;
+
+   /**
+    * Default number of messages that can be queued for a Chatter
+    * before the {@link OverflowPolicy overflow policy} applies.
+    * This value is set to 256.
+    *
+    */
+   public static final int DEFAULT_QUEUE_SIZE = 256;
+
+   /**
+    * Default number of bytes that can be queued for a Chatter before it is
+    * treated as a slow consumer, and the
+    * {@link OverflowPolicy overflow policy} applies.
+    * This value is set to 262144.
+    *
+    */
+   public static final long DEFAULT_HIGH_WATER = 256 * 1024;
+
+   /**
+    * Default number of bytes that a slow consumer's queue must fall to
+    * before it is sent messages again.
+    * This value is set to 65536.
+    *
+    */
+   public static final long DEFAULT_LOW_WATER = 64 * 1024;
+
+   /**
+    * Name given as the sender of messages from the server itself,
+    * such as the {@link OverflowPolicy#SUMMARISE summary} of messages
+    * dropped for a slow consumer.
+    *
+    */
+   public static final String SERVER_NAME = "*";
+
+   /**
+    * Default maximum size, in bytes, of a message from a remote user,
+    * including its header and final {@link #MSG_END MSG_END}.
+    * A longer message is bad protocol, and ends the sender's session.
+    * This value is set to 65536.
+    *
+    */
+   public static final int DEFAULT_MAX_MESSAGE = 64 * 1024;
+
+   /**
+    * Character encoding used for all traffic with remote users.
+    *
+    */
+   public static final Charset CHARSET = Charset.forName("UTF-8");
+
+   /**
+    * What to do with a {@link Chatter Chatter} that is a slow consumer;
+    * i.e., whose remote user is not reading messages as fast as they are
+    * being sent.
+    * A Chatter becomes a slow consumer when its queue of outgoing messages
+    * is full, or holds more bytes than the high watermark;
+    * it remains one until its queue has fallen to the low watermark.
+    *
+    */
+   public static enum OverflowPolicy
+   {
+      /**
+       * Skip messages for that Chatter only.
+       */
+      DROP,
+
+      /**
+       * Skip messages for that Chatter only, and tell the Chatter
+       * how many were skipped once it has caught up, in a message
+       * from {@link ChatterList#SERVER_NAME SERVER_NAME}.
+       */
+      SUMMARISE,
+
+      /**
+       * Drop the connection to that Chatter, who will then leave the room.
+       */
+      DISCONNECT
+   }
+
+   /**
+    * The name of the room.
+    *
+    */
+   private final String name;
+
+   /**
+    * What to do when a Chatter's queue is full.
+    *
+    */
+   private final OverflowPolicy overflowPolicy;
+
+   /**
+    * The {@link Chatter live Chatters} in the chatroom, each with the
+    * {@link Chatter#getSession() session} in which it joined.
+    * Joining and leaving take constant time, and broadcasts iterate
+    * over the map without locking, seeing each Chatter that is in the
+    * room for the whole of the broadcast.
+    * A broadcast may also see a Chatter that has just left, and may
+    * already have been re-used for another session; the session number
+    * makes sure that the new session is not sent the message.
+    *
+    */
+   private final ConcurrentMap<Chatter, Integer> liveChatters =
+      new ConcurrentHashMap<Chatter, Integer>();
+
+   /**
+    * The number of {@link #liveChatters live Chatters}.
+    * This is kept up to date as Chatters join and leave,
+    * so the size of the room can be read in constant time.
+    *
+    */
+   private final AtomicInteger liveCount = new AtomicInteger(0);
+
+   /**
+    * The latest presence status of each Chatter whose status has changed
+    * since the last digest.
+    *
+    */
+   private final ConcurrentMap<Chatter, String> presenceChanges =
+      new ConcurrentHashMap<Chatter, String>();
+
+   /**
+    * The Chatters who have been typing since the last digest.
+    *
+    */
+   private final Set<Chatter> typing =
+      Collections.newSetFromMap(new ConcurrentHashMap<Chatter, Boolean>());
+
+   /**
+    * Whether the room has been closed because it became empty.
+    * Set and tested only by {@link ChatRooms ChatRooms},
+    * synchronized on this instance.
+    *
+    */
+   boolean closed = false;
+
+   /**
+    * Recent messages in the room; null if no history is kept.
+    * Chatters join the room synchronized on the history,
+    * so that each message reaches a new Chatter exactly once,
+    * either from the history or as it is broadcast.
+    *
+    */
+   private final ChatHistory history;
+
+   /**
+    * Persistent log of messages in the room; null if messages are not
+    * logged.
+    *
+    */
+   private final ChatLog log;
+
+   /**
+    * Links to the other nodes of a clustered chatroom, which are sent
+    * every broadcast made in this room; null if not clustered.
+    *
+    */
+   private final ChatCluster cluster;
 
    /**
     * Creates a new <code>ChatterList</code> instance.
     * This implements the constant "empty" in the
     * <a href="chatroom.maude">ChatterList specification</a>.
-    * The constructor does nothing, as {@link liveChatters liveChatters}
-    * is already null, representing the empty list.
     *
+    * @param roomName the name of the room
+    * @param policy what to do when a Chatter's queue is full
+    * @param hist the history of messages in the room, initially empty;
+    *             null if no history is to be kept
+    * @param chatLog the log to write messages to;
+    *                null if messages are not to be logged
+    * @param links the links to other nodes, to relay broadcasts to;
+    *              null if not clustered
     */
-   public ChatterList()
+   public ChatterList(String roomName, OverflowPolicy policy,
+                      ChatHistory hist, ChatLog chatLog, ChatCluster links)
    {
+      name = roomName;
+      overflowPolicy = policy;
+      history = hist;
+      log = chatLog;
+      cluster = links;
+   }
+
+   /**
+    * The name of the room.
+    *
+    * @return the room's name
+    */
+   public String getName()
+   {
+      return name;
    }
 
    /**
     * Add a Chatter to the list.
-    * The Chatter should be in the pending list;
-    * remove it and add to the live list.
     *
     * @param c the Chatter to be added
     */
    private void add(Chatter c)
    {
-      Chatter tmp = pendingChatters;
-      Chatter prev = null;
-
-      /*
-       * Traverse the pending list; remove c and add it to
-       * the live chatter list
-       *
-       */
-
-      // have we removed Chatter c? - not yet
-      boolean notRemoved = true;
-
-      /*
-       * go through the list looking for Chatter c.
-       *
-       */
-      while (tmp != null && notRemoved)  // exit loop at end,
-      {                                 // or once c is has been removed
-         // not at end of list, and we haven't yet removed c
-
-         // is this c?
-         if (tmp == c)
-         {
-            // we've found c, so remove it
-            if (prev == null)
-            {
-               /*
-                * we're at the start of the list; c is the first Chatter,
-                * so set the "liveChatters" field to the next node
-                *
-                */
-               pendingChatters = tmp.getNext();
-            }
-            else
-            {
-               /*
-                * we're not at the start; prev stores the node before tmp.
-                * Redirect prev's next pointer to miss out tmp
-                *
-                */
-               prev.setNext(tmp.getNext());
-            }
-            // c has been removed
-            notRemoved = false;  // so we'll exit the loop
-         }
-
-         // move prev and tmp on
-         prev = tmp;
-         tmp = tmp.getNext();
-      } // end loop to find c
-
-      /*
-       * If c was in the pending list, it's been removed;
-       * add it to the live Chatters
-       */
-      c.setNext(liveChatters);
-      liveChatters = c;
+      if (liveChatters.put(c, c.getSession()) == null)
+      {
+         liveCount.incrementAndGet();
+      }
    }
 
    /**
@@ -171,32 +379,144 @@ public class ChatterList
     */
    private void broadcast(String msg)
    {
-      // variable for traversing the linked list
-      Chatter tmp = liveChatters;
+      ByteBuffer m = encode(msg);
+      if (cluster != null)
+      {
+         cluster.relay(name, ChatCluster.NOTICE, m);
+      }
+      broadcast(m, 0);
+   }
 
-      /*
-       * traverse the list
-       */
-      while (tmp != null) // exit loop at the end of the list
+   /**
+    * Send an encoded message to all {@link Chatter Chatters} in the chatroom.
+    * The same buffer is shared by all Chatters.
+    * No lock is held: messages from one Chatter arrive in the order sent,
+    * but messages sent at the same time by different Chatters may be
+    * received in different orders by different Chatters.
+    *
+    * @param msg the {@link #encode(String) encoded} message
+    * @param seq the message's sequence number in the
+    *            {@link #history history}; 0 if it is not recorded there
+    */
+   private void broadcast(ByteBuffer msg, long seq)
+   {
+      for (Map.Entry<Chatter, Integer> e : liveChatters.entrySet())
       {
-         // send the message
-         tmp.sendToUser(msg);
+         Chatter c = e.getKey();
+         if (seq == 0 || seq > c.getHistorySeen())
+         {
+            deliver(c, e.getValue(), msg);
+         }
+         // otherwise c has already been sent the message from the history
+      }
+   }
+
+   /**
+    * Encode a message, ready to be sent to any number of Chatters.
+    * The message is encoded once, with a newline at the end,
+    * into a read-only direct buffer that can be shared by all the
+    * Chatters it is sent to.
+    *
+    * @param msg the message, without a final newline
+    * @return a read-only buffer containing the encoded message
+    */
+   static ByteBuffer encode(String msg)
+   {
+      return share(CHARSET.encode(msg + "\n"));
+   }
 
-         // and move on to the next chatter in the list
-         tmp = tmp.getNext();
+   /**
+    * Copy encoded bytes into a read-only direct buffer that can be shared
+    * by all the Chatters they are sent to.
+    *
+    * @param bytes the encoded bytes, between position and limit
+    * @return a read-only buffer containing the bytes
+    */
+   static ByteBuffer share(ByteBuffer bytes)
+   {
+      ByteBuffer direct = ByteBuffer.allocateDirect(bytes.remaining());
+      direct.put(bytes);
+      direct.flip();
+      return direct.asReadOnlyBuffer();
+   }
+
+   /**
+    * Queue a message for one Chatter, applying the
+    * {@link #overflowPolicy overflow policy} if the Chatter is a
+    * slow consumer.
+    *
+    * @param c the Chatter to send the message to
+    * @param session the session in which the Chatter joined the room
+    * @param msg the encoded message
+    */
+   private void deliver(Chatter c, int session, ByteBuffer msg)
+   {
+      if (! c.sendToUser(msg, session))
+      {
+         c.overflowed(overflowPolicy, session);
       }
    }
 
    /**
     * Send a message from one remote user to all chatters in the chatroom.
+    * The message is already framed by the sending
+    * {@link Chatter Chatter}, so it is copied once, and not re-encoded.
+    * The same copy is {@link ChatLog#append(String, ByteBuffer) logged},
+    * if the room has a log.
+    *
+    * @param msg the encoded message: a line consisting of
+    *            {@link #MSG_PREFIX MSG_PREFIX} and the sender's name,
+    *            the lines of the message, each prefixed by
+    *            {@link #MSG_PREFIX MSG_PREFIX}, and a line consisting of
+    *            {@link #MSG_END MSG_END}, all ending in newlines
+    * @param length the number of bytes of the message, from the start of
+    *               <code>msg</code>
+    */
+   public void sendMsg(byte[] msg, int length)
+   {
+      ByteBuffer m = share(ByteBuffer.wrap(msg, 0, length));
+      if (cluster != null)
+      {
+         cluster.relay(name, ChatCluster.MESSAGE, m);
+      }
+      sendEncoded(m);
+   }
+
+   /**
+    * Deliver a broadcast relayed from another node of the cluster to the
+    * Chatters in this room.
+    * Messages are kept in the room's history and log,
+    * like messages from this node's own users.
+    *
+    * @param isMessage true for a message; false for other broadcasts
+    * @param m the encoded broadcast
+    */
+   void receiveRelayed(boolean isMessage, ByteBuffer m)
+   {
+      if (isMessage)
+      {
+         sendEncoded(m);
+      }
+      else
+      {
+         broadcast(m, 0);
+      }
+   }
+
+   /**
+    * Record a message in the history and log, if any,
+    * and send it to all chatters in the chatroom.
     *
-    * @param cName the name of the chatter sending the message
-    * @param msg the message text - all lines should be prefixed by
-    *            {@link #MSG_PREFIX MSG_PREFIX} 
+    * @param m the encoded message
     */
-   public synchronized void sendMsg(String cName, String msg)
+   private void sendEncoded(ByteBuffer m)
    {
-      broadcast(MSG_PREFIX + cName + "\n" + msg + "\n" + MSG_END);
+      long seq = (history == null) ? 0 : history.record(m);
+      if (log != null)
+      {
+         log.append(name, m);
+      }
+      broadcast(m, seq);
    }
 
    /**
@@ -205,16 +525,39 @@ public class ChatterList
     * <a href="chatroom.maude">ChatterList specification</a>.
     * The Chatter's name is broadcast to all other {@link Chatter Chatters}
     * in the chatroom, preceded by {@link JOIN_PREFIX the appropriate prefix}.
+    * The new Chatter is then sent the messages in the room's
+    * {@link #history history}, if any.
     *
     * @param c the Chatter joining the chatroom
     */
-   public synchronized void connect(Chatter c)
+   public void connect(Chatter c)
    {
       // inform all other chatters
       broadcast(JOIN_PREFIX + c.getName());
 
-      // and add the new Chatter to the list
-      add(c);
+      if (history == null)
+      {
+         // and add the new Chatter to the list
+         add(c);
+         return;
+      }
+      synchronized (history)
+      {
+         /*
+          * messages recorded from now on are broadcast after c is added;
+          * those recorded already are sent from the history, ahead of them
+          */
+         c.setHistorySeen(history.lastSeq());
+         add(c);
+         for (ByteBuffer m : history.messages())
+         {
+            /*
+             * don't apply the overflow policy:
+             * the history is not worth losing a new user for
+             */
+            c.sendToUser(m);
+         }
+      }
    }
 
    /**
@@ -225,190 +568,106 @@ public class ChatterList
     * in the chatroom, preceded by {@link LEAVE_PREFIX the appropriate prefix}.
     *
     * @param c the Chatter leaving the chatroom
+    * @return true if the Chatter was in the room
     */
-   public synchronized void leave(Chatter c)
+   public boolean leave(Chatter c)
    {
-      // use this variable to traverse the linked list
-      Chatter tmp = liveChatters;
-
-      /*
-       * we need to remove c when we find it, which means we need to redirect
-       * the "next" pointer of the node *before* c to the node after c.
-       * This node stores the node before tmp - if it's null, then we're
-       * still at the start of the list.
-       *
-       */
-      Chatter prev = null;
-
-      /*
-       * Traverse the list - we go through the list, sending messages
-       * to the remote users as we go, until we find the
-       * first occurrence of the Chatter in the list, and remove it.
-       * (We assume there is only one occurrence of any Chatter in the list.)
-       * Once we have removed the Chatter, we go through the remainder of
-       * the list sending messages, and not checking if we need to remove
-       * Chatter c.
-       *
-       */
-
-      // have we removed Chatter c? - not yet
-      boolean notRemoved = true;
-
-      /*
-       * go through the list looking for Chatter c,
-       * sending messages as we go
-       *
-       */
-      while (tmp != null && notRemoved)  // exit loop at end,
-      {                                 // or once c is has been removed
-         // not at end of list, and we haven't yet removed c
-
-         // is this c?
-         if (tmp == c)
-         {
-            // we've found c, so remove it
-            if (prev == null)
-            {
-               /*
-                * we're at the start of the list; c is the first Chatter,
-                * so set the "liveChatters" field to the next node
-                *
-                */
-               liveChatters = tmp.getNext();
-            }
-            else
-            {
-               /*
-                * we're not at the start; prev stores the node before tmp.
-                * Redirect prev's next pointer to miss out tmp
-                *
-                */
-               prev.setNext(tmp.getNext());
-            }
-            // c has been removed
-            notRemoved = false;  // so we'll exit the loop
-
-            tmp = tmp.getNext();
-            // add c to deadChatters list
-            addDeadChatter(c);
-            break;
-         }
-         else
-         {
-            System.out.println("sending to " + tmp.getName());
-            // current node is not c: just send the message to this chatter
-            tmp.sendToUser(LEAVE_PREFIX + c.getName());
-         }
-
-         // move prev and tmp on
-         prev = tmp;
-         tmp = tmp.getNext();
-      } // end loop to find c
-
-      /*
-       * either we're at the end of the list, or c has been removed.
-       * In either case, send the message to all remaining chatters
-       * (none, if we're at the end of the list!).
-       *
-       */
-      while (tmp != null)  // exit loop at end of list
+      if (liveChatters.remove(c) == null)
       {
-         tmp.sendToUser(LEAVE_PREFIX + c.getName());
-         tmp = tmp.getNext();
+         // not here
+         return false;
       }
+      liveCount.decrementAndGet();
+      // their leaving supersedes any presence changes
+      presenceChanges.remove(c);
+      typing.remove(c);
+      // inform all remaining chatters
+      broadcast(LEAVE_PREFIX + c.getName());
+      return true;
    }
 
    /**
-    * Add to the list of chatters that have left the chatroom.
-    * These Chatter instances can be re-used when new users join
-    * the chatroom,
+    * Record a Chatter's change of presence status,
+    * to be broadcast in the next digest.
+    * Only the latest status before each digest is broadcast.
     *
-    * @param c a chatter that has left the chatroom
+    * @param c the Chatter
+    * @param status the new status
     */
-   private void addDeadChatter(Chatter c)
+   public void setPresence(Chatter c, String status)
    {
-      /*
-       * add c to the start of the list; the next Chatter will
-       * be the Chatter that had been first
-       */
-      c.setNext(deadChatters);
-      deadChatters = c;
+      presenceChanges.put(c, status);
    }
 
    /**
-    * Get a Chatter instance.
-    * To avoid creating unnecessary objects, we re-use Chatter instances.
-    * The list {@link #deadChatters deadChatters} stores old Chatter instances;
-    * we either re-use one of these, or, if there are none, create a new
-    * Chatter instance.
+    * Record that a Chatter is typing, to be broadcast in the next digest.
     *
-    * @param sock the Socket representing the connection to the remote user
-    * @return a <code>Chatter</code> value
+    * @param c the Chatter
     */
-   public synchronized Chatter getChatter(Socket sock)
+   public void setTyping(Chatter c)
    {
-      // value to be returned
-      Chatter nextChatter;
+      typing.add(c);
+   }
 
-      if (deadChatters == null)
+   /**
+    * Broadcast the presence changes since the last digest, if any,
+    * as a single message.
+    * Called at every {@link #PRESENCE_TICK tick}.
+    *
+    */
+   void sendPresenceDigest()
+   {
+      if (presenceChanges.isEmpty() && typing.isEmpty())
       {
-         // no dead chatters available, so create a new one
-         nextChatter = new Chatter(this);
+         return;
       }
-      else
+      StringBuilder digest = new StringBuilder();
+      for (Map.Entry<Chatter, String> e : presenceChanges.entrySet())
       {
-         // get (and remove) the first chatter in the list
-         nextChatter = deadChatters;
-         deadChatters = nextChatter.getNext();
+         Chatter c = e.getKey();
+         // keep the entry if it has changed again in the meantime
+         presenceChanges.remove(c, e.getValue());
+         if (liveChatters.containsKey(c))
+         {
+            digest.append(PRESENCE).append(e.getValue()).append(' ')
+                  .append(c.getName()).append('\n');
+         }
+      }
+      for (Chatter c : typing)
+      {
+         typing.remove(c);
+         if (liveChatters.containsKey(c))
+         {
+            digest.append(TYPING).append(c.getName()).append('\n');
+         }
+      }
+      if (digest.length() > 0)
+      {
+         digest.append(MSG_END);
+         broadcast(digest.toString());
       }
-
-      // attach the chatter to the remote client
-      nextChatter.setClient(sock);
-
-      // add the chatter to the pending list
-      nextChatter.setNext(pendingChatters);
-      pendingChatters = nextChatter;
-
-      return nextChatter;
    }
 
    /**
     * The number of live Chatters in the chatroom.
+    * This takes constant time, and does not lock the room.
     *
     * @return the number of live chatters in the chatroom
     */
-   public synchronized int length()
+   public int length()
    {
-      int len = 0;
-      Chatter c = liveChatters;
-      while (c != null)
-      {
-         len++;
-         c = c.getNext();
-      }
-      return len;
+      return liveCount.get();
    }
 
    /**
-    * Close all connections to all remote clients.
+    * Close all connections to all remote clients in the room.
     *
     */
-   public synchronized void shutDown()
+   public void shutDown()
    {
-      Chatter c = liveChatters;
-      while (c != null)
-      {
-         c.close();
-         c = c.getNext();
-      }
-
-      // don't forget the pending chatters
-      c = pendingChatters;
-      while (c != null)
+      for (Chatter c : liveChatters.keySet())
       {
          c.close();
-         c = c.getNext();
       }
    }
 }
-
@@ -0,0 +1,404 @@
+/*
+ * /home/grant/JavaClasses/Comp213/MetaClient/ConnectionPool.java
+ *
+ * Created: Mon Oct 19 21:04:12 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.MetaClient;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+   A pool of warm connections to a server.
+   The servers that MetaClient sits in front of close the connection
+   once they have sent their response, so a connection cannot be used
+   for more than one request; instead, the pool opens connections
+   ahead of time, in the background, so that a request can be sent
+   without waiting for a connection to be set up.
+   <p>
+   Connections are opened to the most recently
+   {@link #take(InetSocketAddress) requested} address;
+   asking for a different address closes the pooled connections to
+   the old one.
+   Connections that have been idle for longer than the idle time are
+   closed, as are connections that the server has closed while they
+   were in the pool, so the pool never hands out a stale connection.
+   A pool of size 0 keeps no connections, and simply opens a new
+   connection for each request.
+   </p><p>
+   Warm connections are a trade-off.
+   They save a connection set-up on each request, but they hold
+   resources on the server while they are idle. The FriendFace and
+   LikeTunes servers give each connection a thread as soon as it is
+   accepted, and count it as a session in progress, so a server
+   {@link Comp213.Server.ServerLifecycle draining} for shutdown waits for
+   idle warm connections until its deadline, and then closes them by
+   force.
+   For this reason the default size is 0: connections are only kept
+   warm when asked for, e.g. when the network is slow and the server is
+   not about to be shut down.
+   </p>
+
+   @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+   @version 1.0
+ */
+public class ConnectionPool {
+
+   /**
+      Default number of warm connections kept.
+      This value is set to 0, so no connections are kept warm unless
+      asked for.
+    */
+   public static final int DEFAULT_SIZE = 0;
+
+   /**
+      Default time, in milliseconds, that a connection may stay in the
+      pool before it is closed.
+      This value is set to 10000.
+    */
+   public static final long DEFAULT_IDLE_MILLIS = 10000;
+
+   /**
+      Default time, in milliseconds, to wait for a connection to be set up.
+      This value is set to 5000.
+    */
+   public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+   /**
+      A pooled connection, with the time it was opened.
+    */
+   private static class Idle {
+
+      /**
+         The connection.
+       */
+      final SocketChannel channel;
+
+      /**
+         Time, in milliseconds, when the connection was opened.
+       */
+      final long since;
+
+      /**
+         Creates a new <code>Idle</code> instance.
+
+         @param ch the connection
+       */
+      Idle(final SocketChannel ch) {
+         this.channel = ch;
+         this.since = System.currentTimeMillis();
+      }
+   }
+
+   /**
+      Maximum number of warm connections kept.
+    */
+   private final int size;
+
+   /**
+      Time, in milliseconds, that a connection may stay in the pool.
+    */
+   private final long idleMillis;
+
+   /**
+      Time, in milliseconds, to wait for a connection to be set up.
+    */
+   private final int connectTimeout;
+
+   /**
+      The warm connections, oldest first.
+      All accesses are synchronized on this instance.
+    */
+   private final ArrayDeque<Idle> idle = new ArrayDeque<Idle>();
+
+   /**
+      Address that pooled connections are made to;
+      null if no connection has been requested yet.
+      All accesses are synchronized on this instance.
+    */
+   private InetSocketAddress address;
+
+   /**
+      Number of connections being opened in the background.
+      All accesses are synchronized on this instance.
+    */
+   private int opening = 0;
+
+   /**
+      Whether the pool has been {@link #close() closed}.
+      All accesses are synchronized on this instance.
+    */
+   private boolean closed = false;
+
+   /**
+      Thread to open connections and close idle ones.
+    */
+   private final ScheduledExecutorService background =
+      Executors.newSingleThreadScheduledExecutor(
+         new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+               Thread t = new Thread(r, "ConnectionPool");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+
+
+   /**
+      Creates a new <code>ConnectionPool</code> instance.
+
+      @param size the maximum number of warm connections kept;
+         should not be negative
+      @param idleMillis the time in milliseconds that a connection may
+         stay in the pool; should be positive
+      @param connectTimeout the time in milliseconds to wait for a
+         connection to be set up; 0 to wait indefinitely;
+         should not be negative
+
+      @throws IllegalArgumentException if any argument is out of range
+    */
+   public ConnectionPool(final int size, final long idleMillis,
+                         final int connectTimeout) {
+      if (size < 0) {
+         throw new IllegalArgumentException(
+            "pool size should not be negative");
+      } else if (idleMillis <= 0) {
+         throw new IllegalArgumentException(
+            "idle time should be positive");
+      } else if (connectTimeout < 0) {
+         throw new IllegalArgumentException(
+            "connect timeout should not be negative");
+      }
+      this.size = size;
+      this.idleMillis = idleMillis;
+      this.connectTimeout = connectTimeout;
+      // sweep twice per idle period, so no connection outstays it by much
+      this.background.scheduleWithFixedDelay(
+         new Runnable() {
+            public void run() {
+               evict();
+            }
+         },
+         idleMillis / 2 + 1, idleMillis / 2 + 1, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+      Creates a new <code>ConnectionPool</code> instance with
+      all options set to default values.
+    */
+   public ConnectionPool() {
+      this(DEFAULT_SIZE, DEFAULT_IDLE_MILLIS, DEFAULT_CONNECT_TIMEOUT);
+   }
+
+   // --- public methods ------------------------------------------------------
+
+   /**
+      Get a connection to the given address.
+      A warm connection is used if there is one; otherwise a new
+      connection is opened.
+      Either way, the pool is topped up in the background.
+      The caller owns the returned connection, and should close it.
+
+      @param addr the address of the server; should be resolved
+      @return a connection to the server, in blocking mode
+      @exception IOException if a connection cannot be opened
+    */
+   public Socket take(final InetSocketAddress addr) throws IOException {
+      SocketChannel ch = null;
+      synchronized (this) {
+         if (this.closed) {
+            throw new IOException("connection pool closed");
+         }
+         if (! addr.equals(this.address)) {
+            // new server: old connections are no use
+            this.closeIdle();
+            this.address = addr;
+         }
+         long now = System.currentTimeMillis();
+         Idle i;
+         while (ch == null && (i = this.idle.pollFirst()) != null) {
+            if (now - i.since < this.idleMillis && isOpen(i.channel)) {
+               ch = i.channel;
+            } else {
+               closeQuietly(i.channel);
+            }
+         }
+         this.refill();
+      }
+      if (ch == null) {
+         // pool was empty: connect on the caller's thread
+         ch = this.connect(addr);
+      }
+      ch.configureBlocking(true);
+      return ch.socket();
+   }
+
+   /**
+      Discard the pooled connections, for example because
+      the server has gone away.
+      The pool opens new connections on the next
+      {@link #take(InetSocketAddress) request}.
+    */
+   public synchronized void clear() {
+      this.closeIdle();
+      this.address = null;
+   }
+
+   /**
+      Close all pooled connections and stop the background thread.
+      The pool cannot be used afterwards.
+    */
+   public void close() {
+      synchronized (this) {
+         this.closed = true;
+         this.closeIdle();
+      }
+      this.background.shutdownNow();
+   }
+
+   // --- private methods -----------------------------------------------------
+
+   /**
+      Open a connection, waiting at most the connect timeout.
+
+      @param addr the address to connect to
+      @return the connection
+      @exception IOException if the connection cannot be opened
+    */
+   private SocketChannel connect(final InetSocketAddress addr)
+      throws IOException {
+      SocketChannel ch = SocketChannel.open();
+      try {
+         ch.socket().setTcpNoDelay(true);
+         ch.socket().connect(addr, this.connectTimeout);
+         return ch;
+      } catch (IOException ioe) {
+         closeQuietly(ch);
+         throw ioe;
+      }
+   }
+
+   /**
+      Start opening enough connections in the background to fill the pool.
+      Should be called while holding the lock on this instance.
+    */
+   private void refill() {
+      final InetSocketAddress addr = this.address;
+      while (this.idle.size() + this.opening < this.size) {
+         this.opening++;
+         this.background.execute(
+            new Runnable() {
+               public void run() {
+                  warm(addr);
+               }
+            });
+      }
+   }
+
+   /**
+      Open a connection and add it to the pool.
+      The connection is dropped if the pool has moved on to
+      another address in the meantime.
+
+      @param addr the address to connect to
+    */
+   private void warm(final InetSocketAddress addr) {
+      SocketChannel ch = null;
+      try {
+         ch = this.connect(addr);
+         // non-blocking, so isOpen() can look for end-of-stream
+         ch.configureBlocking(false);
+      } catch (IOException ioe) {
+         // no warm connection this time; take() will report any error
+         closeQuietly(ch);
+         ch = null;
+      }
+      synchronized (this) {
+         this.opening--;
+         if (ch != null) {
+            if (! this.closed && addr.equals(this.address)
+                && this.idle.size() < this.size) {
+               this.idle.addLast(new Idle(ch));
+            } else {
+               closeQuietly(ch);
+            }
+         }
+      }
+   }
+
+   /**
+      Close connections that have been idle too long,
+      or that the server has closed.
+    */
+   private synchronized void evict() {
+      long now = System.currentTimeMillis();
+      int n = this.idle.size();
+      for (int k = 0; k < n; k++) {
+         Idle i = this.idle.pollFirst();
+         if (now - i.since < this.idleMillis && isOpen(i.channel)) {
+            this.idle.addLast(i);
+         } else {
+            closeQuietly(i.channel);
+         }
+      }
+   }
+
+   /**
+      Close all pooled connections.
+      Should be called while holding the lock on this instance.
+    */
+   private void closeIdle() {
+      Idle i;
+      while ((i = this.idle.pollFirst()) != null) {
+         closeQuietly(i.channel);
+      }
+   }
+
+   /**
+      Test whether the server is still at the other end of a
+      pooled connection.
+      The connection should be in non-blocking mode;
+      a connection on which the server has already sent data
+      is not usable, and counts as closed.
+
+      @param ch the connection to test
+      @return true if the connection may be used for a request
+    */
+   private static boolean isOpen(final SocketChannel ch) {
+      try {
+         return ch.isOpen() && ch.read(ByteBuffer.allocate(1)) == 0;
+      } catch (IOException ioe) {
+         return false;
+      }
+   }
+
+   /**
+      Close a connection, ignoring any error.
+
+      @param ch the connection to close; may be null
+    */
+   private static void closeQuietly(final SocketChannel ch) {
+      if (ch != null) {
+         try {
+            ch.close();
+         } catch (IOException ioe) {
+            // nothing useful to do
+         }
+      }
+   }
+}
@@ -17,6 +17,14 @@ import javax.swing.JTextArea;
 import javax.swing.JScrollPane;
 import javax.swing.JFrame;
 import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.awt.event.ActionListener;
+import java.awt.event.ActionEvent;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
    Thread-safe scrolling area to display text.
@@ -28,6 +36,12 @@ import javax.swing.ScrollPaneConstants;
    as new lines are added, the oldest lines will be removed.
    The number of lines contained can be set in the
    {@link #DisplayPanel(int) constructor}.
+   The length of each line is also limited: characters beyond the
+   {@link #MAX_LINE_CHARS maximum line length} are not displayed,
+   and the line is marked as cut short with
+   {@link #TRUNCATED <code>...</code>}.
+   Together, these keep the memory used, and the time taken to add
+   each character, the same however much text has been added.
    </p><p>
    Newlines can be explicitly displayed as <code>\n</code>
    at the end of a line.
@@ -35,6 +49,13 @@ import javax.swing.ScrollPaneConstants;
    that a newline has been received; e.g., servers whose protocols make use
    of newlines.)
    This feature is set in the {@link #DisplayPanel(boolean) constructor}.
+   </p><p>
+   Text may be added from any thread.
+   It is not added to the text area straight away: it is queued,
+   and the queued text is added in a single update on the Swing event
+   dispatch thread, at most once every {@link #FRAME_MILLIS FRAME_MILLIS}
+   milliseconds, so that a fast stream of characters does not swamp
+   the event dispatch thread.
    </p>
 
    @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
@@ -68,12 +89,39 @@ public class DisplayPanel extends JPanel {
     */
    public static final int MIN_MAX_LINES = 3;
 
+   /**
+      The default maximum number of characters displayed in a line.
+      This value is set to 1000.
+    */
+   public static final int MAX_LINE_CHARS = 1000;
+
+   /**
+      The text added to the end of a line that is longer than
+      the maximum number of characters displayed.
+      This value is set to <code>"..."</code>.
+    */
+   public static final String TRUNCATED = "...";
+
    /**
       The default setting for whether newlines are to be displayed
       as <code>\n</code>.
     */
    public static final boolean NEWLINES = true;
 
+   /**
+      The minimum time, in milliseconds, between updates of the
+      text area.
+      This value is set to 40, i.e., at most 25 updates per second.
+    */
+   public static final int FRAME_MILLIS = 40;
+
+   /**
+      Marker in the {@link #pending pending} queue for a call to
+      {@link #clear() clear()}.
+      Compared by identity, so it cannot be confused with added text.
+    */
+   private static final String CLEAR = new String("");
+
 
    /**
       Determines whether to display newlines explicitly as <code>\n</code>.
@@ -92,35 +140,65 @@ public class DisplayPanel extends JPanel {
    private final int maxLines;
 
    /**
-      Number of lines to reduce the text to
-      when {@link #maxLines maximum number of lines}
-      has been reached.
-      Set to 2/3 of {@link #maxLines maximum number of lines}.
+      The maximum number of characters displayed in a line.
+    */
+   private final int maxLineChars;
+
+   /**
+      The text to be stored: a ring buffer of lines, oldest first,
+      starting at {@link #firstLine firstLine} and wrapping round.
+      Each element of the array is a line, and should not contain "\n";
+      the builders are reused as lines are removed and added.
+      The last line is the current, unfinished line.
+      Only accessed on the event dispatch thread.
     */
-   private final int minLines;
+   private final StringBuilder[] storedLines;
 
    /**
-      Number of lines to remove when {@link #maxLines maximum number of lines}
-      has been reached.
-      Set to {@link #maxLines maxLines} - {@link #minLines minLines}.
+      Index in {@link #storedLines the array} of the oldest line.
+      Only accessed on the event dispatch thread.
     */
-   private final int lostLines;
+   private int firstLine = 0;
 
    /**
-      The text to be stored.
-      Each element of the array is a line, and should not contain "\n".
+      Number of lines in {@link #storedLines the array},
+      including the current line; at least 1.
+      Only accessed on the event dispatch thread.
     */
-   private final String[] storedLines;
+   private int lineCount = 1;
 
    /**
-      Index of the last line in {@link #storedLines the array}.
+      Whether the current line has been cut short at
+      {@link #maxLineChars maxLineChars}.
+      Only accessed on the event dispatch thread.
     */
-   private int currentLineIndex = 0;
+   private boolean truncated = false;
 
    /**
-      The number of characters in the text.
+      Text waiting to be added to the text area, in the order it was given.
+      Holds the {@link #CLEAR CLEAR} marker where the display is to be
+      cleared.
     */
-   private int size = 0;
+   private final ConcurrentLinkedQueue<String> pending =
+      new ConcurrentLinkedQueue<String>();
+
+   /**
+      Whether an update of the text area has been scheduled
+      and has not yet taken the {@link #pending pending} text.
+    */
+   private final AtomicBoolean updateScheduled = new AtomicBoolean(false);
+
+   /**
+      Timer to run the next update, no sooner than
+      {@link #FRAME_MILLIS FRAME_MILLIS} after the last one.
+    */
+   private final Timer frameTimer;
+
+   /**
+      Time, in milliseconds, of the last update of the text area.
+      Only accessed on the event dispatch thread.
+    */
+   private long lastUpdate = 0;
 
 
    // --- Constructors --------------------------------------------------------
@@ -138,16 +216,22 @@ public class DisplayPanel extends JPanel {
       @param lines the maximum number of lines stored and available through
                    scrolling; should be at least MIN_MAX_LINES
       @param newlines whether to show newlines explicitly as "\n"
+      @param lineChars the maximum number of characters displayed
+                       in a line; should be positive
 
       @throws IllegalArgumentException if <code>lines</code> is less than
-        {@link #MIN_MAX_LINES 3}
+        {@link #MIN_MAX_LINES 3}, or <code>lineChars</code> is not positive
     */
    public DisplayPanel(final int rows, final int columns,
-                       final int lines, final boolean newlines) {
+                       final int lines, final boolean newlines,
+                       final int lineChars) {
       // do we have enough lines
       if (lines < MIN_MAX_LINES) {
          throw new IllegalArgumentException(
             "number of lines should be at least " + MIN_MAX_LINES);
+      } else if (lineChars <= 0) {
+         throw new IllegalArgumentException(
+            "line length should be positive");
       }
       // set up scrollable text area
       this.textArea = new JTextArea(rows, columns);
@@ -160,11 +244,43 @@ public class DisplayPanel extends JPanel {
       this.add(sPane);
       // apply options
       this.maxLines = lines;
-      this.minLines = (2 * this.maxLines) / MIN_MAX_LINES;
-      this.lostLines = this.maxLines - this.minLines;
+      this.maxLineChars = lineChars;
       this.addNewlines = newlines;
-      this.storedLines = new String[lines];
-      this.storedLines[this.currentLineIndex] = "";
+      this.storedLines = new StringBuilder[lines];
+      for (int i = 0; i < lines; i++) {
+         this.storedLines[i] = new StringBuilder();
+      }
+      // one-shot timer for updates of the text area
+      this.frameTimer = new Timer(FRAME_MILLIS,
+         new ActionListener() {
+            public void actionPerformed(ActionEvent ae) {
+               update();
+            }
+         });
+      this.frameTimer.setRepeats(false);
+   }
+
+   /**
+      Creates a new <code>DisplayPanel</code> instance with the given options,
+      and the {@link #MAX_LINE_CHARS default maximum line length}.
+      The maximum number of lines that can be shown
+      before earlier lines are lost should be at least
+      {@link #MIN_MAX_LINES 3}.
+
+      @param rows the number of rows in the
+                  {@link javax.swing.JTextArea text area}
+      @param columns the number of columns in the
+                     {@link javax.swing.JTextArea text area}
+      @param lines the maximum number of lines stored and available through
+                   scrolling; should be at least MIN_MAX_LINES
+      @param newlines whether to show newlines explicitly as "\n"
+
+      @throws IllegalArgumentException if <code>lines</code> is less than
+        {@link #MIN_MAX_LINES 3}
+    */
+   public DisplayPanel(final int rows, final int columns,
+                       final int lines, final boolean newlines) {
+      this(rows, columns, lines, newlines, MAX_LINE_CHARS);
    }
 
    /**
@@ -267,24 +383,8 @@ public class DisplayPanel extends JPanel {
 
       @param c the character to add
     */
-   public synchronized void appendChar(final char c) {
-      if (c == '\n') { // char to add is the newline character
-         // add a newline
-         this.addNewline();
-         // if the array of lines is full, crop lines
-         if (++this.currentLineIndex == this.maxLines) {
-            this.cropLines();
-         }
-         // reset unfinished line
-         this.storedLines[this.currentLineIndex] = "";
-         // make the text area scroll to the bottom
-         this.textArea.setCaretPosition(size);
-      } else {
-         // add the character to array and text area
-         this.storedLines[this.currentLineIndex] += c;
-         this.textArea.append("" + c);
-         this.size++;
-      }
+   public void appendChar(final char c) {
+      this.enqueue(String.valueOf(c));
    }
 
    /**
@@ -292,65 +392,180 @@ public class DisplayPanel extends JPanel {
 
       @param text the text to add to the display
     */
-   public synchronized void append(final String text) {
-      int len = text.length();
-      // append each char
-      for (int i = 0; i < len; i++) {
-         this.appendChar(text.charAt(i));
+   public void append(final String text) {
+      if (text.length() > 0) {
+         this.enqueue(text);
       }
    }
 
    /**
       Clear the displayed text.
+      Text added before this method is called is cleared;
+      text added afterwards is displayed.
     */
-   public synchronized void clear() {
-      this.currentLineIndex = 0;
-      this.storedLines[this.currentLineIndex] = "";
-      this.textArea.setText("");
-      this.size = 0;
+   public void clear() {
+      this.enqueue(CLEAR);
    }
 
    // --- private methods -----------------------------------------------------
 
    /**
-      Add a newline to the displayed text.
+      Queue text to be added to the text area, and make sure an update
+      is scheduled.
+
+      @param text the text to add, or {@link #CLEAR CLEAR}
     */
-   private void addNewline() {
-      if (this.addNewlines) { // showing newlines as "\n"
-         this.textArea.append("\\n");
-         this.size += 2; // added two characters
+   private void enqueue(final String text) {
+      this.pending.offer(text);
+      if (this.updateScheduled.compareAndSet(false, true)) {
+         SwingUtilities.invokeLater(
+            new Runnable() {
+               public void run() {
+                  scheduleUpdate();
+               }
+            });
       }
-      this.textArea.append("\n");
-      this.size++; // added one character
    }
 
    /**
-      Crop the stored text.
-      Remove {@link #lostLines lostLines} from the stored text.
-    */
-   private void cropLines() {
-      // clear the text display
-      this.textArea.setText("");
-      this.size = 0;
-      /* move minLines of text to start of array
-       */
-      this.currentLineIndex = 0;    // first position to copy to
-      int offset = this.lostLines;  // first position to copy from
-      while (this.currentLineIndex < this.minLines) {
-         // move a line and save
-         this.textArea.append(
-            this.storedLines[this.currentLineIndex] =
-               this.storedLines[offset]
-         );
-         this.size += this.storedLines[this.currentLineIndex].length();
-         // add newline
-         this.addNewline();
-         // move on to next line
-         this.currentLineIndex++;
-         offset++;
+      Start the timer for the next update, so that it runs
+      {@link #FRAME_MILLIS FRAME_MILLIS} after the last one,
+      or straight away if that time has already passed.
+      Runs on the event dispatch thread.
+    */
+   private void scheduleUpdate() {
+      long wait = this.lastUpdate + FRAME_MILLIS - System.currentTimeMillis();
+      if (wait <= 0) {
+         this.update();
+      } else {
+         this.frameTimer.setInitialDelay((int)wait);
+         this.frameTimer.restart();
+      }
+   }
+
+   /**
+      Add all pending text to the text area in a single update.
+      The new text is appended, and the text of any lines removed to make
+      room for it is removed from the start of the document.
+      If that would remove the whole document, or the display was cleared,
+      the text area is instead reset from the stored lines.
+      Runs on the event dispatch thread.
+    */
+   private void update() {
+      this.lastUpdate = System.currentTimeMillis();
+      // text added after this point needs another update
+      this.updateScheduled.set(false);
+      StringBuilder added = new StringBuilder();
+      int removed = 0;       // chars to remove from the start of the display
+      boolean reset = false; // whether to reset from the stored lines
+      String text;
+      while ((text = this.pending.poll()) != null) {
+         if (text == CLEAR) {
+            this.firstLine = 0;
+            this.lineCount = 1;
+            this.storedLines[0].setLength(0);
+            this.truncated = false;
+            reset = true;
+         } else {
+            removed += this.store(text, added);
+         }
+      }
+      Document doc = this.textArea.getDocument();
+      if (reset || removed >= doc.getLength()) {
+         this.textArea.setText(this.storedText());
+      } else if (removed > 0 || added.length() > 0) {
+         try {
+            doc.remove(0, removed);
+         } catch (BadLocationException ble) {
+            // cannot happen: removed is within the document
+            throw new IllegalStateException(ble);
+         }
+         this.textArea.append(added.toString());
+      } else {
+         return; // nothing to show
+      }
+      // make the text area scroll to the bottom
+      this.textArea.setCaretPosition(doc.getLength());
+   }
+
+   /**
+      Add text to the stored lines, and to the given text to be
+      appended to the text area.
+      Once the maximum number of lines is reached, the oldest line is
+      removed for each new line.
+
+      @param text the text to add
+      @param added the text to be appended to the text area
+      @return the number of characters, as displayed, in the lines removed
+    */
+   private int store(final String text, final StringBuilder added) {
+      int removed = 0;
+      int len = text.length();
+      StringBuilder line = this.currentLine();
+      for (int i = 0; i < len; i++) {
+         char c = text.charAt(i);
+         if (c == '\n') { // char to add is the newline character
+            // add a newline
+            added.append(this.newline());
+            if (this.lineCount == this.maxLines) {
+               // array of lines is full: remove the oldest
+               StringBuilder oldest = this.storedLines[this.firstLine];
+               removed += oldest.length() + this.newline().length();
+               this.firstLine = (this.firstLine + 1) % this.maxLines;
+               this.lineCount--;
+            }
+            // start a new, unfinished line
+            this.lineCount++;
+            line = this.currentLine();
+            line.setLength(0);
+            this.truncated = false;
+         } else if (line.length() < this.maxLineChars) {
+            // add the character to array and text area
+            line.append(c);
+            added.append(c);
+         } else if (! this.truncated) {
+            // line too long: mark it as cut short, once
+            line.append(TRUNCATED);
+            added.append(TRUNCATED);
+            this.truncated = true;
+         }
+      }
+      return removed;
+   }
+
+   /**
+      The current, unfinished line.
+
+      @return the last line in {@link #storedLines the array}
+    */
+   private StringBuilder currentLine() {
+      return this.storedLines[
+         (this.firstLine + this.lineCount - 1) % this.maxLines];
+   }
+
+   /**
+      The displayed form of a newline.
+
+      @return <code>\n</code> followed by a newline if newlines are shown
+         explicitly; otherwise, just a newline
+    */
+   private String newline() {
+      return this.addNewlines ? "\\n\n" : "\n";
+   }
+
+   /**
+      The stored text, as it should be displayed.
+
+      @return the stored lines, with each complete line
+         followed by a {@link #newline() newline}
+    */
+   private String storedText() {
+      StringBuilder text = new StringBuilder();
+      for (int i = 0; i < this.lineCount - 1; i++) {
+         text.append(this.storedLines[(this.firstLine + i) % this.maxLines])
+            .append(this.newline());
       }
-      // update the text area
-      this.textArea.setCaretPosition(this.size);
+      return text.append(this.currentLine()).toString();
    }
 
    // --- testing -------------------------------------------------------------
@@ -0,0 +1,129 @@
+/*
+ * /home/grant/JavaClasses/Comp213/MetaClient/ExchangeDecoder.java
+ *
+ * Created: Tue Oct 20 15:02:44 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.MetaClient;
+
+import java.util.function.Consumer;
+
+/**
+   Decodes a single request and response, for servers that
+   close the connection once they have sent their response.
+   When the connection ends, the exchange is described in one line:
+   the command (taken from the first line of the request),
+   the sizes of the request and response, the status of the response,
+   and the time from the request being sent to the first byte of the
+   response and to the end of the response.
+
+   @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+   @version 1.0
+ */
+public abstract class ExchangeDecoder extends TrafficDecoder {
+
+   /**
+      The first line of the request; null until it is complete.
+    */
+   private String command = null;
+
+   /**
+      The first line of the response; null until it is complete.
+    */
+   private String status = null;
+
+   /**
+      Size of the request, in bytes.
+    */
+   private long requestBytes = 0;
+
+   /**
+      Size of the response, in bytes.
+    */
+   private long responseBytes = 0;
+
+   /**
+      Number of lines in the response.
+    */
+   private int responseLines = 0;
+
+   /**
+      Time the first line of the request was sent; 0 if not yet sent.
+    */
+   private long sentAt = 0;
+
+   /**
+      Time the first line of the response was received;
+      0 if not yet received.
+    */
+   private long receivedAt = 0;
+
+
+   /**
+      Creates a new <code>ExchangeDecoder</code> instance.
+
+      @param out where to send the description of the exchange
+    */
+   protected ExchangeDecoder(final Consumer<String> out) {
+      super(out);
+   }
+
+   /**
+      Describe the command of a request.
+
+      @param firstLine the start of the first line of the request
+      @return a name for the command
+    */
+   protected abstract String describeCommand(String firstLine);
+
+   /**
+      Describe the status of a response.
+
+      @param firstLine the start of the first line of the response
+      @param lines the number of lines in the response
+      @return a description of the response
+    */
+   protected abstract String describeStatus(String firstLine, int lines);
+
+   protected void sentLine(final String start, final int length,
+                           final long nanos) {
+      if (command == null) {
+         command = start;
+         sentAt = nanos;
+      }
+      requestBytes += length + 1;
+   }
+
+   protected void receivedLine(final String start, final int length,
+                               final long nanos) {
+      if (status == null) {
+         status = start;
+         receivedAt = nanos;
+      }
+      responseBytes += length + 1;
+      responseLines++;
+   }
+
+   protected void ended(final long nanos) {
+      if (command == null) {
+         return; // nothing was sent
+      }
+      StringBuilder line = new StringBuilder(describeCommand(command))
+         .append(": request ").append(requestBytes).append(" B, ");
+      if (status == null) {
+         line.append("no response");
+      } else {
+         line.append("response ").append(responseBytes).append(" B, ")
+            .append(describeStatus(status, responseLines))
+            .append(", first byte ").append(millis(sentAt, receivedAt));
+      }
+      line.append(", total ").append(millis(sentAt, nanos));
+      describe(line.toString());
+   }
+}
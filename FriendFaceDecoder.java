@@ -0,0 +1,74 @@
+/*
+ * /home/grant/JavaClasses/Comp213/MetaClient/FriendFaceDecoder.java
+ *
+ * Created: Tue Oct 20 15:20:31 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.MetaClient;
+
+import java.util.function.Consumer;
+import Comp213.FriendFace.FriendFaceProtocol;
+
+/**
+   Decodes exchanges with a FriendFace server,
+   following {@link FriendFaceProtocol FriendFaceProtocol}.
+
+   @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+   @version 1.0
+ */
+public class FriendFaceDecoder extends ExchangeDecoder {
+
+   /**
+      Creates a new <code>FriendFaceDecoder</code> instance.
+
+      @param out where to send the description of the exchange
+    */
+   public FriendFaceDecoder(final Consumer<String> out) {
+      super(out);
+   }
+
+   protected String describeCommand(final String firstLine) {
+      if (firstLine.length() == 0) {
+         return "empty request";
+      }
+      switch (firstLine.charAt(0)) {
+      case FriendFaceProtocol.REGISTER:
+         return "register";
+      case FriendFaceProtocol.GETFREQS:
+         return "get requests";
+      case FriendFaceProtocol.ADDREQ:
+         return "add request";
+      case FriendFaceProtocol.ACCEPT:
+         return "accept request";
+      case FriendFaceProtocol.REFUSE:
+         return "refuse request";
+      case FriendFaceProtocol.GETFF:
+         return "get friends' friends";
+      default:
+         return "unknown command " + firstLine.charAt(0);
+      }
+   }
+
+   protected String describeStatus(final String firstLine, final int lines) {
+      if (firstLine.length() == 0) {
+         return "empty response";
+      }
+      switch (firstLine.charAt(0)) {
+      case FriendFaceProtocol.OK:
+         // lists of names follow the OK line
+         return (lines > 1) ? "OK, " + (lines - 1) + " names" : "OK";
+      case FriendFaceProtocol.ERR:
+         return "ERR";
+      case FriendFaceProtocol.PROTOCOL_ERR:
+         return "protocol error";
+      default:
+         return "unknown response " + firstLine.charAt(0);
+      }
+   }
+}
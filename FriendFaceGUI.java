@@ -18,6 +18,7 @@ package Comp213.FriendFaceClient;
 
 import javax.swing.JPanel;
 import Comp213.MetaClient.Proxy;
+import Comp213.MetaClient.AsyncProxy;
 import Comp213.MetaClient.DisplayPanel;
 import Comp213.MetaClient.ProxyableComponent;
 import Comp213.FriendFace.FriendFaceProtocol;
@@ -39,6 +40,12 @@ import java.net.UnknownHostException;
 import java.io.IOException;
 import Comp213.MetaClient.MetaClient;
 import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 
 /**
@@ -220,103 +227,168 @@ public class FriendFaceGUI extends JComponent implements ProxyableComponent {
       );
    }
 
-   private void register() {
-      String memberName = memberField.getText();
-      String response =
-         proxy.handleRequest(FriendFaceProtocol.register(memberName));
-      // TO DO: check not null
-      if (response.equals("")) {
-         display.append("Error: got empty string from server.\n");
-      } else if (response.charAt(0) == FriendFaceProtocol.OK) {
-         display.append(memberName + " registered.\n");
-      } else if (response.charAt(0) == FriendFaceProtocol.ERR) {
-         display.append(memberName + " already taken in FriendFace.\n");
+   /**
+    * Handler for a response from the server.
+    * Responses are handled on the event dispatch thread.
+    */
+   private interface ResponseHandler {
+      /**
+       * Handle a response from the server.
+       *
+       * @param response the response; not null
+       */
+      void handle(String response);
+   }
+
+   /**
+    * Send a request to the server without blocking the event dispatch
+    * thread, and pass the response to the given handler on the event
+    * dispatch thread.
+    * If the proxy is an {@link AsyncProxy AsyncProxy}, the request is sent
+    * asynchronously; otherwise it is sent from a background thread.
+    * Failures are reported in the display.
+    *
+    * @param request the request to send
+    * @param handler the handler for the response
+    */
+   private void send(final String request, final ResponseHandler handler) {
+      final Proxy p = proxy;
+      CompletableFuture<String> response;
+      if (p instanceof AsyncProxy) {
+         response = ((AsyncProxy)p).handleRequestAsync(
+            request, AsyncProxy.DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
       } else {
-         display.append("Error: unrecognized response from server.\n");
+         response = CompletableFuture.supplyAsync(
+            new Supplier<String>() {
+               public String get() {
+                  return p.handleRequest(request);
+               }
+            });
       }
+      response.whenComplete(
+         new BiConsumer<String, Throwable>() {
+            public void accept(final String r, final Throwable t) {
+               SwingUtilities.invokeLater(
+                  new Runnable() {
+                     public void run() {
+                        if (t instanceof TimeoutException) {
+                           display.append("Error: server did not respond.\n");
+                        } else if (t != null || r == null) {
+                           display.append(
+                              "Error: could not connect to server.\n");
+                        } else {
+                           handler.handle(r);
+                        }
+                     }
+                  });
+            }
+         });
+   }
+
+   private void register() {
+      final String memberName = memberField.getText();
+      send(FriendFaceProtocol.register(memberName),
+           new ResponseHandler() {
+              public void handle(String response) {
+                 if (response.equals("")) {
+                    display.append("Error: got empty string from server.\n");
+                 } else if (response.charAt(0) == FriendFaceProtocol.OK) {
+                    display.append(memberName + " registered.\n");
+                 } else if (response.charAt(0) == FriendFaceProtocol.ERR) {
+                    display.append(memberName
+                                   + " already taken in FriendFace.\n");
+                 } else {
+                    display.append(
+                       "Error: unrecognized response from server.\n");
+                 }
+              }
+           });
    }
 
    public void getReqs() {
       String memberName = memberField.getText();
-      String response =
-         proxy.handleRequest(FriendFaceProtocol.getRequests(memberName));
-      String[] names = response.split("\n");
-      for (int i = 1; i < names.length; i++) {
-         display.append(names[i] + "\n");
-      }
-      String plural = (names.length > 1) ? "" : "s";
-      display.append(names.length - 1 + " request" + plural + "\n");
+      send(FriendFaceProtocol.getRequests(memberName),
+           new ResponseHandler() {
+              public void handle(String response) {
+                 String[] names = response.split("\n");
+                 for (int i = 1; i < names.length; i++) {
+                    display.append(names[i] + "\n");
+                 }
+                 String plural = (names.length > 1) ? "" : "s";
+                 display.append(names.length - 1 + " request" + plural + "\n");
+              }
+           });
    }
 
    private void getFFs() {
       String memberName = memberField.getText();
-      String response =
-         proxy.handleRequest(
-            FriendFaceProtocol.ffriends(memberName)
-         );
-      String[] names = response.split("\n");
-      for (int i = 1; i < names.length; i++) {
-         display.append(names[i] + "\n");
-      }
-      String plural = (names.length > 1) ? "" : "s";
-      display.append(names.length - 1 + " friend" + plural + " of friends.\n");
+      send(FriendFaceProtocol.ffriends(memberName),
+           new ResponseHandler() {
+              public void handle(String response) {
+                 String[] names = response.split("\n");
+                 for (int i = 1; i < names.length; i++) {
+                    display.append(names[i] + "\n");
+                 }
+                 String plural = (names.length > 1) ? "" : "s";
+                 display.append(names.length - 1 + " friend" + plural
+                                + " of friends.\n");
+              }
+           });
    }
 
    public void addReq() {
       String requesterName = requesterField.getText();
       String soughtName = soughtField.getText();
-      String response =
-         proxy.handleRequest(
-            FriendFaceProtocol.request(requesterName, soughtName)
-         );
-      String req = "Request [" + requesterName + ", " + soughtName + "] ";
-      if (response.equals("")) {
-         display.append("Error: got empty string from server.\n");
-      } else if (response.charAt(0) == FriendFaceProtocol.OK) {
-         display.append(req + "added.\n");
-      } else if (response.charAt(0) == FriendFaceProtocol.ERR) {
-         display.append(req + "not added.\n");
-      } else {
-         display.append("Error: unrecognized response from server.\n");
-      }
+      sendFriendRequest(
+         FriendFaceProtocol.request(requesterName, soughtName),
+         "Request [" + requesterName + ", " + soughtName + "] ",
+         "added.\n", "not added.\n");
    }
 
    public void accept() {
       String requesterName = requesterField.getText();
       String soughtName = soughtField.getText();
-      String response =
-         proxy.handleRequest(
-            FriendFaceProtocol.acceptRequest(requesterName, soughtName)
-         );
-      String req = "Request [" + requesterName + ", " + soughtName + "] ";
-      if (response.equals("")) {
-         display.append("Error: got empty string from server.\n");
-      } else if (response.charAt(0) == FriendFaceProtocol.OK) {
-         display.append(req + "accepted.\n");
-      } else if (response.charAt(0) == FriendFaceProtocol.ERR) {
-         display.append(req + "does not exist.\n");
-      } else {
-         display.append("Error: unrecognized response from server.\n");
-      }
+      sendFriendRequest(
+         FriendFaceProtocol.acceptRequest(requesterName, soughtName),
+         "Request [" + requesterName + ", " + soughtName + "] ",
+         "accepted.\n", "does not exist.\n");
    }
 
    public void refuse() {
       String requesterName = requesterField.getText();
       String soughtName = soughtField.getText();
-      String response =
-         proxy.handleRequest(
-            FriendFaceProtocol.refuseRequest(requesterName, soughtName)
-         );
-      String req = "Request [" + requesterName + ", " + soughtName + "] ";
-      if (response.equals("")) {
-         display.append("Error: got empty string from server.\n");
-      } else if (response.charAt(0) == FriendFaceProtocol.OK) {
-         display.append(req + "refused.\n");
-      } else if (response.charAt(0) == FriendFaceProtocol.ERR) {
-         display.append(req + "does not exist.\n");
-      } else {
-         display.append("Error: unrecognized response from server.\n");
-      }
+      sendFriendRequest(
+         FriendFaceProtocol.refuseRequest(requesterName, soughtName),
+         "Request [" + requesterName + ", " + soughtName + "] ",
+         "refused.\n", "does not exist.\n");
+   }
+
+   /**
+    * Send a request concerning a friendship request, and report
+    * the server's OK or ERR response in the display.
+    *
+    * @param request the request to send
+    * @param req description of the friendship request
+    * @param ok message to display if the server responds OK
+    * @param err message to display if the server responds ERR
+    */
+   private void sendFriendRequest(String request, final String req,
+                                  final String ok, final String err) {
+      send(request,
+           new ResponseHandler() {
+              public void handle(String response) {
+                 if (response.equals("")) {
+                    display.append("Error: got empty string from server.\n");
+                 } else if (response.charAt(0) == FriendFaceProtocol.OK) {
+                    display.append(req + ok);
+                 } else if (response.charAt(0) == FriendFaceProtocol.ERR) {
+                    display.append(req + err);
+                 } else {
+                    display.append(
+                       "Error: unrecognized response from server.\n");
+                 }
+              }
+           });
    }
 
    public static void main(String[] args) {
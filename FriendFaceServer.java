@@ -19,7 +19,7 @@ import java.io.PrintWriter;
 import java.io.OutputStreamWriter;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import Comp213.Server.ServerLifecycle;
 
 
 /**
@@ -46,21 +46,20 @@ public class FriendFaceServer {
    private static boolean closeReq = false;
 
    /**
-      The list of active session-handlers.
-      When a new connection is received,
-      a {@link FFSessionHandler session-handler} is created to
-      {@link FFSessionHandler#run() serve} the new client.
-      When a session ends, the handler removes itself from the list;
-      all accesses to the list should be
-      {@link #connectionsLock synchronized} to prevent interference.
+      Time in milliseconds to wait for sessions in progress to complete
+      when the server shuts down.
+      Default is {@link ServerLifecycle#DEFAULT_DRAIN_MILLIS 5000}.
     */
-   private static FFSessionHandler activeConnections;
+   private static long drainMillis = ServerLifecycle.DEFAULT_DRAIN_MILLIS;
 
    /**
-      Lock to control concurrent accesses to
-      {@link #activeConnections list of active session-handlers}.
+      The sessions in progress.
+      When a new connection is received, it is registered here before
+      a {@link FFSessionHandler session-handler} is created to
+      {@link FFSessionHandler#run() serve} the new client;
+      when a session ends, the handler deregisters its connection.
     */
-   private static final Integer connectionsLock = new Integer(0);
+   private static ServerLifecycle lifecycle;
 
    /**
       Used to shut the server down.
@@ -89,9 +88,10 @@ public class FriendFaceServer {
 
    /**
       Set up the FriendFace server on a given port number.
-      Usage: "<code>java FriendFaceServer -port n</code>";
+      Usage: "<code>java FriendFaceServer [-port n] [-drain ms]</code>";
       if no commandline agruments are given,
-      the port number defaults to 12000.
+      the port number defaults to 12000, and the server waits up to
+      5 seconds for sessions in progress to complete when it shuts down.
 
       <p>Exit codes:
       <ul>
@@ -102,26 +102,41 @@ public class FriendFaceServer {
       </p>
 
       @param args command line arguments:
-                  "<code>-port n</code>" to set up the server on port number n
+                  "<code>-port n</code>" to set up the server on port number n;
+                  "<code>-drain ms</code>" to wait up to ms milliseconds
+                  for sessions in progress when the server shuts down
     */
    public static void main(String[] args) {
-      // check if port number is specified
-      if (args.length > 0) {
-         if (args.length == 2 && args[0].equals("-port")) {
-            try {
-               // 2nd argument should be the port number
-               portNum = Integer.parseInt(args[1]);
-            } catch (NumberFormatException nfe) {
-               // bad command-line arguments
-               System.err.println("invalid port number");
+      // check if port number or drain time is specified
+      if (args.length % 2 != 0) {
+         // options come in pairs
+         System.err.println("usage: [-port n] [-drain ms]");
+         System.exit(2);
+      }
+      for (int i = 0; i < args.length; i += 2) {
+         try {
+            if (args[i].equals("-port")) {
+               // next argument should be the port number
+               portNum = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-drain")) {
+               // next argument should be the drain time
+               drainMillis = Long.parseLong(args[i + 1]);
+            } else {
+               // only accept "-port n" and "-drain ms" as valid arguments
+               System.err.println("usage: [-port n] [-drain ms]");
                System.exit(2);
             }
-         } else {
-            // only accept "-port n" as valid command-line arguments
-            System.err.println("usage: -port n");
+         } catch (NumberFormatException nfe) {
+            // bad command-line arguments
+            System.err.println("invalid " + args[i].substring(1) + " value");
             System.exit(2);
          }
       }
+      if (drainMillis < 0) {
+         System.err.println("drain time should not be negative");
+         System.exit(2);
+      }
+      lifecycle = new ServerLifecycle("FriendFace Server", drainMillis);
 
       // the FriendFace dB
       final FriendFace fFace = new FriendFace();
@@ -152,63 +167,26 @@ public class FriendFaceServer {
          while (true) { // keep accepting requests
             // get next client
             incoming = theSocket.accept( );
-            /* create a new handler for this client;
-               add to list of active connections; and
-               add the handler to the list of tasks to be executed
+            /* register the session, then
+               add a new handler for this client to the list of tasks
+               to be executed
              */
-            handler = new FFSessionHandler(incoming, fFace);
-            // add handler to list of active connections
-            synchronized (connectionsLock) {
-               handler.next = activeConnections;
-               if (activeConnections != null) {
-                  activeConnections.prev = handler;
-               }
-               activeConnections = handler;
+            if (lifecycle.begin(incoming)) {
+               handler = new FFSessionHandler(incoming, fFace);
+               threadPool.execute(handler);
+            } else {
+               // shutting down: turn the client away
+               incoming.close();
             }
-            // add thread to tasks
-            threadPool.execute(handler);
          }
       } catch (IOException ioe) {
          /* No server socket: shut the server down.
             This might happen if an IOException occurs due to a
             connectivity failure, or if close() is called;
-            in either case, try to close all active connections
-          */
-         // don't accept any new connections
-         threadPool.shutdown();
-         // wait for any recent connections to be processed
-         if (Thread.activeCount() >  1) {
-            System.out.print("FriendFace server: "
-                             + "waiting for queued requests to complete...");
-            try { // wait for up to 5 seconds
-               threadPool.awaitTermination(5, TimeUnit.SECONDS);
-            } catch (InterruptedException ie) {
-               // shouldn't happen
-            }
-         }
-         /* If there are still active threads after waiting 5 seconds,
-            try closing all connections
+            in either case, let sessions in progress complete,
+            and close any that have not completed by the deadline
           */
-         if (Thread.activeCount() > 1) {
-            // there are still some active session-handlers; shut them down
-            System.out.print("FriendFace Server: ");
-            System.out.println("killing recalcitrant clients");
-            Socket socket; // handler's socket
-            synchronized (connectionsLock) {
-               FFSessionHandler tmp = activeConnections;
-               while (tmp != null) {
-                  socket = tmp.socket;
-                  if (socket != null && ! socket.isClosed()) {
-                     try {
-                        socket.close();
-                     } catch (Exception e) {
-                        System.err.println("Exception: " + e.getMessage());
-                     }
-                  }
-                  tmp = tmp.next;
-               }
-            }
-         }
+         lifecycle.drain(threadPool);
          if (! closeReq) {
             // not everything is as it should be
             System.err.println("FriendFace server: fatal error -");
@@ -221,7 +199,8 @@ public class FriendFaceServer {
    /**
       Handle one FriendFace session in a Thread.
       Any exceptions thrown should just end the session.
-      All handlers are stored in a {@link #activeConnections linked list}.
+      The session's connection is registered with the
+      {@link #lifecycle server lifecycle} until the session ends.
     */
    private static class FFSessionHandler
       implements Runnable {
@@ -246,17 +225,6 @@ public class FriendFaceServer {
        */
       private final Socket socket;
 
-      /**
-         The next handler in the {@link #activeConnections linked list}.
-       */
-      private FFSessionHandler next;
-
-      /**
-         The preceding handler in the {@link #activeConnections linked list}.
-       */
-      private FFSessionHandler prev;
-
-
       /**
        * Creates a new <code>FFSessionHandler</code> instance.
 
@@ -351,23 +319,14 @@ public class FriendFaceServer {
             // clean up
             if (socket != null) {
                try {
-                  out.close();
+                  if (out != null) {
+                     out.close();
+                  }
                   socket.close();
                } catch (IOException e) { }
             }
-            // remove from list
-            synchronized (connectionsLock) {
-               // adjust next pointers
-               if (prev == null) { // we're first in list
-                  activeConnections = next;
-               } else { // we're not first in list
-                  prev.next = next;
-               }
-               // adjust prev pointers
-               if (next != null) {
-                  next.prev = prev;
-               }
-            }
+            // session over
+            lifecycle.end(socket);
          }
          // end of session
       }
@@ -0,0 +1,268 @@
+/*
+ * /home/grant/JavaClasses/Comp213/MetaClient/LatencyHistogram.java
+ *
+ * Created: Tue Oct 20 11:26:08 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.MetaClient;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+   A histogram of latencies, in nanoseconds, that can be recorded from
+   any number of threads at once.
+   <p>
+   Latencies are counted in buckets laid out in the same way as
+   HdrHistogram's: values below 256 have a bucket each, and each
+   doubling of the range above that is split into 128 buckets of equal
+   width, so every value is counted to within 1% of its true value,
+   whatever its size.
+   Values from 0 to {@link #MAX_VALUE MAX_VALUE} can be recorded in a
+   fixed array of counters, and recording a value takes constant time
+   with no locking.
+   </p>
+
+   @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+   @version 1.0
+ */
+public class LatencyHistogram {
+
+   /**
+      The largest value that can be recorded; larger values are
+      recorded as this value.
+      This value is set to 2<sup>43</sup> - 1 nanoseconds,
+      about two and a half hours.
+    */
+   public static final long MAX_VALUE = (1L << 43) - 1;
+
+   /**
+      Number of bits in the index of a bucket within half of its
+      power-of-two range: each half-range has 2<sup>7</sup> buckets.
+    */
+   private static final int SUB_BUCKET_HALF_MAGNITUDE = 7;
+
+   /**
+      Number of buckets in each half of a power-of-two range.
+    */
+   private static final int SUB_BUCKET_HALF_COUNT =
+      1 << SUB_BUCKET_HALF_MAGNITUDE;
+
+   /**
+      Mask for values that fall in the first, unit-width, range.
+    */
+   private static final long SUB_BUCKET_MASK = 2 * SUB_BUCKET_HALF_COUNT - 1;
+
+   /**
+      Percentiles shown in a {@link #summary(String) summary}.
+    */
+   private static final double[] SUMMARY_PERCENTILES =
+      {50, 90, 99, 99.9, 100};
+
+   /**
+      Percentiles shown in a
+      {@link #printDistribution(PrintStream) distribution}.
+    */
+   private static final double[] DISTRIBUTION_PERCENTILES =
+      {0, 50, 75, 87.5, 90, 95, 99, 99.9, 99.99, 99.999, 100};
+
+   /**
+      Number of values recorded in each bucket.
+    */
+   private final AtomicLongArray counts =
+      new AtomicLongArray(countsIndex(MAX_VALUE) + 1);
+
+   /**
+      Number of values recorded.
+    */
+   private final AtomicLong totalCount = new AtomicLong(0);
+
+   /**
+      Sum of the values recorded.
+    */
+   private final AtomicLong totalValue = new AtomicLong(0);
+
+   /**
+      Largest value recorded.
+    */
+   private final AtomicLong maxValue = new AtomicLong(0);
+
+   // --- public methods ------------------------------------------------------
+
+   /**
+      Record a latency.
+
+      @param nanos the latency, in nanoseconds;
+         negative values are recorded as 0
+    */
+   public void record(final long nanos) {
+      long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+      counts.incrementAndGet(countsIndex(value));
+      totalCount.incrementAndGet();
+      totalValue.addAndGet(value);
+      long max;
+      while (value > (max = maxValue.get())
+             && ! maxValue.compareAndSet(max, value)) {
+         // another thread raised the maximum: try again
+      }
+   }
+
+   /**
+      Number of latencies recorded.
+
+      @return the number of latencies recorded
+    */
+   public long getCount() {
+      return totalCount.get();
+   }
+
+   /**
+      Mean of the latencies recorded.
+
+      @return the mean latency in nanoseconds; 0 if none has been recorded
+    */
+   public double getMean() {
+      long n = totalCount.get();
+      return (n == 0) ? 0 : (double)totalValue.get() / n;
+   }
+
+   /**
+      Largest latency recorded.
+
+      @return the largest latency in nanoseconds;
+         0 if none has been recorded
+    */
+   public long getMax() {
+      return maxValue.get();
+   }
+
+   /**
+      The latency at the given percentile.
+
+      @param percentile the percentile, between 0 and 100
+      @return the largest latency, to within the precision of the
+         histogram, that no more than the given percentage of latencies
+         recorded exceed; 0 if none has been recorded
+    */
+   public long getValueAtPercentile(final double percentile) {
+      long n = totalCount.get();
+      long target = Math.max(1, (long)Math.ceil(percentile / 100 * n));
+      long seen = 0;
+      for (int i = 0; i < counts.length(); i++) {
+         seen += counts.get(i);
+         if (seen >= target) {
+            return Math.min(highestEquivalentValue(i), maxValue.get());
+         }
+      }
+      return maxValue.get();
+   }
+
+   /**
+      A line summarising the latencies, in milliseconds.
+
+      @param name the name to start the line with
+      @return the name, followed by the 50th, 90th, 99th and 99.9th
+         percentiles, and the maximum, in milliseconds
+    */
+   public String summary(final String name) {
+      StringBuilder line = new StringBuilder(String.format("%-16s", name));
+      for (double p : SUMMARY_PERCENTILES) {
+         line.append(String.format(" %9.3f", getValueAtPercentile(p) / 1e6));
+      }
+      return line.toString();
+   }
+
+   /**
+      Print the distribution of latencies, in milliseconds,
+      in the style of HdrHistogram's percentile distribution:
+      each line gives a latency, the percentile at which it falls,
+      the number of latencies at or below it, and 1/(1 - percentile);
+      a final line gives the mean, maximum and number of latencies.
+
+      @param out where to print the distribution
+    */
+   public void printDistribution(final PrintStream out) {
+      out.println("       Value(ms)   Percentile   TotalCount"
+                  + " 1/(1-Percentile)");
+      long n = totalCount.get();
+      for (double p : DISTRIBUTION_PERCENTILES) {
+         long value = getValueAtPercentile(p);
+         long below = countAtOrBelow(value);
+         out.printf("%16.3f %12.6f %12d %16s%n",
+                    value / 1e6, p / 100, below,
+                    (p < 100) ? String.format("%.2f", 100 / (100 - p))
+                              : "inf");
+      }
+      out.printf("#[Mean    = %12.3f, Max     = %12.3f]%n",
+                 getMean() / 1e6, getMax() / 1e6);
+      out.printf("#[Total count    = %12d]%n", n);
+   }
+
+   // --- private methods -----------------------------------------------------
+
+   /**
+      Number of latencies recorded in the buckets up to and including
+      the one for the given value.
+
+      @param value a value
+      @return the number of latencies no larger than the given value,
+         to within the precision of the histogram
+    */
+   private long countAtOrBelow(final long value) {
+      long seen = 0;
+      int last = countsIndex(Math.min(value, MAX_VALUE));
+      for (int i = 0; i <= last; i++) {
+         seen += counts.get(i);
+      }
+      return seen;
+   }
+
+   /**
+      The power-of-two range of a value.
+
+      @param value a value, no larger than MAX_VALUE
+      @return 0 for values below 256, 1 for values below 512, and so on
+    */
+   private static int bucketIndex(final long value) {
+      return 64 - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK)
+         - (SUB_BUCKET_HALF_MAGNITUDE + 1);
+   }
+
+   /**
+      The index in {@link #counts counts} of the bucket for a value.
+
+      @param value a value, no larger than MAX_VALUE
+      @return the index of the value's bucket
+    */
+   private static int countsIndex(final long value) {
+      int bucket = bucketIndex(value);
+      int subBucket = (int)(value >>> bucket);
+      return ((bucket + 1) << SUB_BUCKET_HALF_MAGNITUDE)
+         + (subBucket - SUB_BUCKET_HALF_COUNT);
+   }
+
+   /**
+      The largest value counted in a bucket.
+
+      @param index the index of the bucket in {@link #counts counts}
+      @return the largest value counted in the bucket
+    */
+   private static long highestEquivalentValue(final int index) {
+      int bucket = (index >> SUB_BUCKET_HALF_MAGNITUDE) - 1;
+      long subBucket = (index & (SUB_BUCKET_HALF_COUNT - 1))
+         + SUB_BUCKET_HALF_COUNT;
+      if (bucket < 0) {
+         // first range: one value per bucket
+         subBucket -= SUB_BUCKET_HALF_COUNT;
+         bucket = 0;
+      }
+      return ((subBucket + 1) << bucket) - 1;
+   }
+}
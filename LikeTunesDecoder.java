@@ -0,0 +1,82 @@
+/*
+ * /home/grant/JavaClasses/Comp213/MetaClient/LikeTunesDecoder.java
+ *
+ * Created: Tue Oct 20 15:31:09 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.MetaClient;
+
+import java.util.function.Consumer;
+import Comp213.LikeTunes.LikeTunesServer;
+
+/**
+   Decodes exchanges with a LikeTunes server,
+   following {@link LikeTunesServer.Protocol LikeTunesServer.Protocol}.
+
+   @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+   @version 1.0
+ */
+public class LikeTunesDecoder extends ExchangeDecoder {
+
+   /**
+      The command of the request being decoded; 0 if not yet known.
+    */
+   private char command = 0;
+
+   /**
+      Creates a new <code>LikeTunesDecoder</code> instance.
+
+      @param out where to send the description of the exchange
+    */
+   public LikeTunesDecoder(final Consumer<String> out) {
+      super(out);
+   }
+
+   protected String describeCommand(final String firstLine) {
+      if (firstLine.length() == 0) {
+         return "empty request";
+      }
+      command = firstLine.charAt(0);
+      switch (command) {
+      case LikeTunesServer.Protocol.ADD_REQ:
+         return "add tune";
+      case LikeTunesServer.Protocol.LIKE_REQ:
+         return "like tune";
+      case LikeTunesServer.Protocol.ALPHLIST_REQ:
+         return "list tunes by name";
+      case LikeTunesServer.Protocol.POPLIST_REQ:
+         return "list tunes by popularity";
+      default:
+         return "unknown command " + firstLine.charAt(0);
+      }
+   }
+
+   protected String describeStatus(final String firstLine, final int lines) {
+      if (lines == 1 && firstLine.length() == 1) {
+         switch (firstLine.charAt(0)) {
+         case LikeTunesServer.Protocol.CC_ERR:
+            return "error: connection closed early";
+         case LikeTunesServer.Protocol.CD_ERR:
+            return "error: empty line";
+         case LikeTunesServer.Protocol.IO_ERR:
+            return "error: server I/O";
+         case LikeTunesServer.Protocol.CS_ERR:
+            return "error: unrecognised request";
+         default:
+            break;
+         }
+      }
+      if (command == LikeTunesServer.Protocol.ALPHLIST_REQ
+          || command == LikeTunesServer.Protocol.POPLIST_REQ) {
+         // artist, title and likes on separate lines
+         return (lines / 3) + " tunes";
+      }
+      return lines + " lines";
+   }
+}
@@ -22,12 +22,16 @@ import java.io.OutputStreamWriter;
 import java.io.InputStreamReader;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import Comp213.Server.ServerLifecycle;
 
 /**
  *   LikeTunes server for COMP213 assignment.
  *   Sets up a server socket on port 12000 by default;
  *   specify a port number by using <code>-port nnnnn</code>
  *   as a command-line option.
+ *   When shutting down, the server waits up to 5 seconds for requests
+ *   in progress to complete; specify a different time by using
+ *   <code>-drain ms</code>.
  *   Shut the server down by connecting to the port
  *   and entering line <code>.houEensOp</code>.
  *   </p><p>
@@ -254,12 +258,16 @@ public class LikeTunesServer {
             out.println(CS_ERR);
          } finally {
             // session done: send output and close resources
-            out.flush(); // make sure data is sent
+            if (out != null) {
+               out.flush(); // make sure data is sent
+            }
             // close down
-            try { // to close input stream
-               in.close();
-            } catch (IOException ioe) {
-               // nothing useful to do
+            if (in != null) {
+               try { // to close input stream
+                  in.close();
+               } catch (IOException ioe) {
+                  // nothing useful to do
+               }
             }
             // close output stream
             if (out != null) {
@@ -272,6 +280,8 @@ public class LikeTunesServer {
                } catch (IOException ioe) {
                   // nothing useful to do
                }
+               // request done
+               lifecycle.end(client);
             }
          }// end try-catch-finally
       }// end run method
@@ -319,6 +329,21 @@ public class LikeTunesServer {
     */
    private static boolean shutdownReq = false;
 
+   /**
+    *   Time in milliseconds to wait for requests in progress to complete
+    *   when the server shuts down.
+    *   Default is {@link ServerLifecycle#DEFAULT_DRAIN_MILLIS 5000}.
+    */
+   private static long drainMillis = ServerLifecycle.DEFAULT_DRAIN_MILLIS;
+
+   /**
+    *   The requests in progress.
+    *   Each incoming connection is registered here before its
+    *   {@link SessionHandler session-handler} is started,
+    *   and deregistered by the handler once the request has been served.
+    */
+   private static ServerLifecycle lifecycle;
+
    /**
     *   The list of tunes on the server.
     */
@@ -359,30 +384,46 @@ public class LikeTunesServer {
     *    <ul>
     *     <li> <code>-port nnnnn</code> - run server on port number nnnnn;
     *       default is 12000
+    *     <li> <code>-drain ms</code> - on shutdown, wait up to ms
+    *       milliseconds for requests in progress; default is 5000
     *    </ul>
     */
    public static void main(String[] args)
    {
-      // check if port number is specified
-      if (args.length > 0) {
-         if (args.length == 2 && args[0].equals("-port")) {
-            try {
-               // 2nd argument should be the port number
-               portNum = Integer.parseInt(args[1]);
+      // check if port number or drain time is specified
+      if (args.length % 2 != 0) {
+         // options come in pairs
+         System.err.println("usage: [-port n] [-drain ms]");
+         System.exit(2);
+      }
+      for (int i = 0; i < args.length; i += 2) {
+         try {
+            if (args[i].equals("-port")) {
+               // next argument should be the port number
+               portNum = Integer.parseInt(args[i + 1]);
             }
-            catch (NumberFormatException nfe) {
-               // bad command-line arguments
-               System.err.println("invalid port number");
+            else if (args[i].equals("-drain")) {
+               // next argument should be the drain time
+               drainMillis = Long.parseLong(args[i + 1]);
+            }
+            else
+            {
+               // only accept "-port n" and "-drain ms" as valid arguments
+               System.err.println("usage: [-port n] [-drain ms]");
                System.exit(2);
             }
          }
-         else
-         {
-            // only accept "-port nnnnn" as valid command-line arguments
-            System.err.println("usage: -port n");
+         catch (NumberFormatException nfe) {
+            // bad command-line arguments
+            System.err.println("invalid " + args[i].substring(1) + " value");
             System.exit(2);
          }
       }
+      if (drainMillis < 0) {
+         System.err.println("drain time should not be negative");
+         System.exit(2);
+      }
+      lifecycle = new ServerLifecycle("LikeTunes", drainMillis);
 
       // set up the list of tunes
       TuneList tunes = new TuneList();
@@ -421,25 +462,13 @@ public class LikeTunesServer {
             if (theSocket == null || theSocket.isClosed()) {
                // no server socket: shut the server down
 
-               // first close the queue of executors
-               threadPool.shutdown();
-
-               //  wait for any recent connections to be processed;
-               try {
-                  Thread.sleep(2000);
-               }
-               catch (InterruptedException ie) {
-                  // shouldn't happen
-               }
+               /*  let requests in progress complete,
+                *  closing any that miss the drain deadline
+                */
+               lifecycle.drain(threadPool);
 
                if (shutdownReq) { // server has been asked to shut down
-                  if (Thread.activeCount() > 1) {
-                     System.err.println("LikeTunes: "
-                                        + "some threads have not ended...");
-                     System.err.println("...exiting java interpreter");
-                     System.exit(1);
-                  }
-                  // else: just main thread left, so end it
+                  // all sessions are over, so end the main thread
                   return;
                }
                /*  
@@ -461,8 +490,19 @@ public class LikeTunesServer {
 
          // back to the latest connection
          if (incomingOK) {
-            // start new thread to serve new client
-            threadPool.execute(new SessionHandler(incoming));
+            if (lifecycle.begin(incoming)) {
+               // start new thread to serve new client
+               threadPool.execute(new SessionHandler(incoming));
+            }
+            else {
+               // shutting down: turn the client away
+               try {
+                  incoming.close();
+               }
+               catch (IOException ioe) {
+                  // nothing useful to do
+               }
+            }
          } else {
             /*  there was an IOException, but server socket is still open:
              *  get back to main while-loop and set incomingOK to default
@@ -0,0 +1,790 @@
+/*
+ * /home/grant/JavaClasses/Comp213/MetaClient/LoadGenerator.java
+ *
+ * Created: Tue Oct 20 12:31:17 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.MetaClient;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import Comp213.ChatServer.ChatterList;
+import Comp213.FriendFace.FriendFaceProtocol;
+import Comp213.LikeTunes.LikeTunesServer;
+
+/**
+   Headless tool to put a server under load, with no display.
+   A number of virtual users, each on a thread of its own, send requests
+   to the server as fast as they can (or with a pause between requests),
+   for a given time; the tool then reports the throughput, and the
+   distribution of latencies for each kind of request.
+   <p>
+   Three workloads are supported:
+   <code>friendface</code> and <code>liketunes</code>, where each request
+   is sent through a {@link SocketProxy SocketProxy}, as a client GUI's
+   requests are sent through a {@link Proxy Proxy};
+   and <code>chat</code>, where each user keeps a connection open to a
+   chatroom server, and the latency of a message is the time until the
+   user receives it back from the server.
+   Each workload has a number of operations, and the mix of operations
+   can be given as a list of weights: for example,
+   <code>-mix like:8,alpha:1,pop:1</code> makes 80% of LikeTunes requests
+   likes; operations not listed are not sent.
+   </p><p>
+   Usage:
+   <code>LoadGenerator workload host port [-users n] [-duration s]
+   [-think ms] [-mix op:w,...] [-keys n] [-pool n]</code>
+   </p>
+
+   @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+   @version 1.0
+ */
+public class LoadGenerator {
+
+   /**
+      Default number of virtual users.
+      This value is set to 10.
+    */
+   public static final int DEFAULT_USERS = 10;
+
+   /**
+      Default time, in seconds, to run for.
+      This value is set to 10.
+    */
+   public static final int DEFAULT_DURATION = 10;
+
+   /**
+      Default number of distinct member names, artists, titles and rooms
+      that requests are made about.
+      This value is set to 1000.
+    */
+   public static final int DEFAULT_KEYS = 1000;
+
+   /**
+      Time, in milliseconds, to wait for a chatroom server to send back
+      a message or confirmation.
+      This value is set to 5000.
+    */
+   public static final int CHAT_TIMEOUT = 5000;
+
+   /**
+      Number of characters kept from the start of each response,
+      to check it.
+      This value is set to 16.
+    */
+   public static final int HEAD = 16;
+
+   /**
+      Usage message.
+    */
+   private static final String USAGE =
+      "usage: LoadGenerator friendface|liketunes|chat host port"
+      + " [-users n] [-duration s] [-think ms] [-mix op:w,...]"
+      + " [-keys n] [-pool n]";
+
+   /**
+      A kind of traffic to put on a server.
+    */
+   private abstract class Workload {
+
+      /**
+         The names of the operations.
+       */
+      final String[] operations;
+
+      /**
+         The weight of each operation, if no mix is given.
+       */
+      final int[] defaultMix;
+
+      /**
+         Creates a new <code>Workload</code> instance.
+
+         @param operations the names of the operations
+         @param defaultMix the weight of each operation
+       */
+      Workload(final String[] operations, final int[] defaultMix) {
+         this.operations = operations;
+         this.defaultMix = defaultMix;
+      }
+
+      /**
+         Create a virtual user.
+
+         @param n the number of the user
+         @return a virtual user, ready to be started
+       */
+      abstract User newUser(int n);
+   }
+
+   /**
+      A workload of requests sent through a {@link Proxy Proxy},
+      each on a connection of its own.
+    */
+   private abstract class ProxyWorkload extends Workload {
+
+      /**
+         Creates a new <code>ProxyWorkload</code> instance.
+
+         @param operations the names of the operations
+         @param defaultMix the weight of each operation
+       */
+      ProxyWorkload(final String[] operations, final int[] defaultMix) {
+         super(operations, defaultMix);
+      }
+
+      /**
+         Make a request.
+
+         @param op the operation
+         @param random source of member names, tunes, etc.
+         @return the request to send
+       */
+      abstract String request(int op, Random random);
+
+      /**
+         Check a response.
+         Responses are streamed, and only their first few characters
+         are kept, so that long lists do not fill the memory.
+
+         @param op the operation
+         @param head the first (at most {@link #HEAD HEAD}) characters
+            of the server's response
+         @param length the length of the whole response
+         @return true if the response is well-formed; a response refusing
+            a request (e.g. to register a name already taken) is still
+            well-formed
+       */
+      abstract boolean accepts(int op, String head, long length);
+
+      /**
+         Create a virtual user that sends requests through the proxy.
+
+         @param n the number of the user
+         @return a virtual user, ready to be started
+       */
+      User newUser(final int n) {
+         return new User(n) {
+            boolean perform(int op) {
+               final StringBuilder head = new StringBuilder(HEAD);
+               final long[] length = {0};
+               boolean ok = proxy.streamRequest(
+                  request(op, random),
+                  new Consumer<String>() {
+                     public void accept(String chunk) {
+                        int room = HEAD - head.length();
+                        if (room > 0) {
+                           head.append(chunk, 0,
+                                       Math.min(chunk.length(), room));
+                        }
+                        length[0] += chunk.length();
+                     }
+                  });
+               return ok && accepts(op, head.toString(), length[0]);
+            }
+         };
+      }
+   }
+
+   /**
+      Requests to a FriendFace server.
+    */
+   private class FriendFaceWorkload extends ProxyWorkload {
+
+      /**
+         Creates a new <code>FriendFaceWorkload</code> instance.
+       */
+      FriendFaceWorkload() {
+         super(new String[] {"register", "requests", "ffriends",
+                             "add", "accept", "refuse"},
+               new int[] {10, 25, 25, 20, 15, 5});
+      }
+
+      String request(final int op, final Random random) {
+         String member = "member" + random.nextInt(keys);
+         String other = "member" + random.nextInt(keys);
+         switch (op) {
+         case 0:
+            return FriendFaceProtocol.register(member);
+         case 1:
+            return FriendFaceProtocol.getRequests(member);
+         case 2:
+            return FriendFaceProtocol.ffriends(member);
+         case 3:
+            return FriendFaceProtocol.request(member, other);
+         case 4:
+            return FriendFaceProtocol.acceptRequest(member, other);
+         default:
+            return FriendFaceProtocol.refuseRequest(member, other);
+         }
+      }
+
+      boolean accepts(final int op, final String head, final long length) {
+         return length > 0
+            && head.charAt(0) != FriendFaceProtocol.PROTOCOL_ERR;
+      }
+   }
+
+   /**
+      Requests to a LikeTunes server.
+    */
+   private class LikeTunesWorkload extends ProxyWorkload {
+
+      /**
+         Creates a new <code>LikeTunesWorkload</code> instance.
+       */
+      LikeTunesWorkload() {
+         super(new String[] {"add", "like", "alpha", "pop"},
+               new int[] {10, 60, 15, 15});
+      }
+
+      String request(final int op, final Random random) {
+         int tune = random.nextInt(keys);
+         switch (op) {
+         case 0:
+            return LikeTunesServer.Protocol.ADD_REQ + "\n"
+               + "artist" + (tune % 100) + "\ntitle" + tune + "\n";
+         case 1:
+            return LikeTunesServer.Protocol.LIKE_REQ + "\n"
+               + "artist" + (tune % 100) + "\ntitle" + tune + "\n";
+         case 2:
+            return LikeTunesServer.Protocol.ALPHLIST_REQ + "\n";
+         default:
+            return LikeTunesServer.Protocol.POPLIST_REQ + "\n";
+         }
+      }
+
+      boolean accepts(final int op, final String head, final long length) {
+         // errors are a single line holding an error code
+         return ! (length == 2 && head.charAt(1) == '\n'
+                   && head.charAt(0) >= LikeTunesServer.Protocol.CC_ERR
+                   && head.charAt(0) <= LikeTunesServer.Protocol.CS_ERR);
+      }
+   }
+
+   /**
+      Users of a chatroom server.
+      Each user logs in with a name of its own, and keeps its connection
+      open; messages are broadcast to every user in the room,
+      so the more users there are in a room, the more each message costs.
+    */
+   private class ChatWorkload extends Workload {
+
+      /**
+         Creates a new <code>ChatWorkload</code> instance.
+       */
+      ChatWorkload() {
+         super(new String[] {"message", "private", "join",
+                             "presence", "typing"},
+               new int[] {70, 10, 5, 10, 5});
+      }
+
+      User newUser(final int n) {
+         return new User(n) {
+
+            /**
+               The user's name.
+             */
+            private final String name = "load" + n;
+
+            /**
+               Connection to the server.
+             */
+            private Socket socket;
+
+            /**
+               Lines from the server.
+             */
+            private BufferedReader in;
+
+            /**
+               Stream to the server.
+             */
+            private OutputStream out;
+
+            /**
+               Number of messages sent, to tell them apart.
+             */
+            private int sent = 0;
+
+            void setUp() throws IOException {
+               socket = new Socket();
+               socket.connect(server, CHAT_TIMEOUT);
+               socket.setSoTimeout(CHAT_TIMEOUT);
+               socket.setTcpNoDelay(true);
+               in = new BufferedReader(
+                  new InputStreamReader(socket.getInputStream(),
+                                        ChatterList.CHARSET));
+               out = socket.getOutputStream();
+               send(name + "\n");
+            }
+
+            void tearDown() {
+               try {
+                  send(ChatterList.LEAVE_PREFIX + "\n"); // log out
+                  socket.close();
+               } catch (IOException ioe) {
+                  // nothing useful to do
+               } catch (NullPointerException npe) {
+                  // never connected
+               }
+            }
+
+            boolean perform(final int op) throws IOException {
+               // a line of a message, and the end of the message
+               String line = ChatterList.MSG_PREFIX + name + "#" + (++sent);
+               String end = "\n" + ChatterList.MSG_END + "\n";
+               switch (op) {
+               case 0: // message to the room, which comes back to us
+                  send(line + end);
+                  return awaitLine(line);
+               case 1: // private message to ourselves
+                  send(ChatterList.PRIVATE_MSG + name + "\n" + line + end);
+                  return awaitLine(line);
+               case 2: // move room; the server confirms
+                  String room = ChatterList.ROOM_JOIN + "room"
+                     + random.nextInt(keys);
+                  send(room + "\n");
+                  return awaitLine(room);
+               case 3: // presence: not acknowledged
+                  send(ChatterList.PRESENCE
+                       + (random.nextBoolean() ? "here" : "away") + "\n");
+                  return true;
+               default: // typing: not acknowledged
+                  send(ChatterList.TYPING + "\n");
+                  return true;
+               }
+            }
+
+            /**
+               Send text to the server.
+
+               @param text the text to send
+               @exception IOException if the text cannot be sent
+             */
+            private void send(final String text) throws IOException {
+               out.write(text.getBytes(ChatterList.CHARSET));
+            }
+
+            /**
+               Read lines from the server until the given line is read.
+
+               @param line the line to wait for
+               @return true if the line is read; false if the server
+                  closes the connection or does not send the line in time
+               @exception IOException if an I/O error occurs
+             */
+            private boolean awaitLine(final String line) throws IOException {
+               try {
+                  String l;
+                  while ((l = in.readLine()) != null) {
+                     if (l.equals(line)) {
+                        return true;
+                     }
+                  }
+                  return false;
+               } catch (SocketTimeoutException ste) {
+                  return false;
+               }
+            }
+         };
+      }
+   }
+
+   /**
+      A virtual user, sending requests on a thread of its own until the
+      run is over.
+    */
+   private abstract class User extends Thread {
+
+      /**
+         Source of operations, names, etc.
+       */
+      final Random random;
+
+      /**
+         Creates a new <code>User</code> instance.
+
+         @param n the number of the user
+       */
+      User(final int n) {
+         super("user" + n);
+         this.random = new Random(n);
+         this.setDaemon(true);
+      }
+
+      /**
+         Get ready to send requests.
+         By default, does nothing.
+
+         @exception IOException if the server cannot be reached
+       */
+      void setUp() throws IOException {
+      }
+
+      /**
+         Send a request and wait for the response.
+
+         @param op the operation
+         @return true if the request succeeded
+         @exception IOException if the connection to the server fails
+       */
+      abstract boolean perform(int op) throws IOException;
+
+      /**
+         Finish, once the run is over.
+         By default, does nothing.
+       */
+      void tearDown() {
+      }
+
+      /**
+         Send requests until the run is over.
+       */
+      public void run() {
+         try {
+            setUp();
+            while (System.nanoTime() < endTime) {
+               int op = pick(random);
+               long start = System.nanoTime();
+               boolean ok = perform(op);
+               long latency = System.nanoTime() - start;
+               if (ok) {
+                  histograms[op].record(latency);
+                  all.record(latency);
+               } else {
+                  errors[op].incrementAndGet();
+               }
+               if (thinkMillis > 0) {
+                  Thread.sleep(thinkMillis);
+               }
+            }
+         } catch (IOException ioe) {
+            failedUsers.incrementAndGet();
+         } catch (InterruptedException ie) {
+            // run is over
+         } finally {
+            tearDown();
+         }
+      }
+   }
+
+   /**
+      Address of the server.
+    */
+   private final InetSocketAddress server;
+
+   /**
+      Proxy to send requests through.
+    */
+   private final StreamingProxy proxy;
+
+   /**
+      The workload.
+    */
+   private final Workload workload;
+
+   /**
+      Number of distinct keys (names, tunes, rooms) requests are about.
+    */
+   private final int keys;
+
+   /**
+      Pause, in milliseconds, after each request.
+    */
+   private final long thinkMillis;
+
+   /**
+      Cumulative weights of the operations: operation i is picked
+      if a random number below the total weight is below
+      <code>cumulative[i]</code> but not <code>cumulative[i - 1]</code>.
+    */
+   private int[] cumulative;
+
+   /**
+      Latencies of each operation.
+    */
+   private LatencyHistogram[] histograms;
+
+   /**
+      Latencies of all operations.
+    */
+   private final LatencyHistogram all = new LatencyHistogram();
+
+   /**
+      Number of failed requests for each operation.
+    */
+   private AtomicLong[] errors;
+
+   /**
+      Number of users that could not reach the server, or lost their
+      connection.
+    */
+   private final AtomicLong failedUsers = new AtomicLong(0);
+
+   /**
+      Time, from <code>System.nanoTime()</code>, at which the run ends.
+    */
+   private volatile long endTime;
+
+
+   /**
+      Creates a new <code>LoadGenerator</code> instance.
+
+      @param workload "friendface", "liketunes" or "chat"
+      @param host the server host
+      @param port the server port number
+      @param keys number of distinct names, tunes and rooms;
+         should be positive
+      @param thinkMillis pause, in milliseconds, after each request
+      @param pool pool of connections for requests sent through a proxy
+      @exception UnknownHostException if the host address is not valid
+      @throws IllegalArgumentException if the workload is not known,
+         or keys is not positive
+    */
+   public LoadGenerator(final String workload, final String host,
+                        final int port, final int keys,
+                        final long thinkMillis, final ConnectionPool pool)
+      throws UnknownHostException {
+      if (keys <= 0) {
+         throw new IllegalArgumentException("keys should be positive");
+      }
+      this.server = new InetSocketAddress(host, port);
+      if (this.server.isUnresolved()) {
+         throw new UnknownHostException(host);
+      }
+      this.proxy = new SocketProxy(host, port, pool);
+      this.keys = keys;
+      this.thinkMillis = thinkMillis;
+      if (workload.equals("friendface")) {
+         this.workload = new FriendFaceWorkload();
+      } else if (workload.equals("liketunes")) {
+         this.workload = new LikeTunesWorkload();
+      } else if (workload.equals("chat")) {
+         this.workload = new ChatWorkload();
+      } else {
+         throw new IllegalArgumentException("unknown workload " + workload);
+      }
+      this.setMix(null);
+   }
+
+   // --- public methods ------------------------------------------------------
+
+   /**
+      Set the mix of operations.
+
+      @param mix list of weights, in the form <code>op:w,op:w,...</code>;
+         null for the workload's default mix
+      @throws IllegalArgumentException if the mix is not well-formed,
+         names an unknown operation, or has no positive weight
+    */
+   public void setMix(final String mix) {
+      String[] ops = workload.operations;
+      int[] weights = (mix == null) ? workload.defaultMix.clone()
+                                    : new int[ops.length];
+      if (mix != null) {
+         for (String item : mix.split(",")) {
+            String[] pair = item.split(":");
+            int op = indexOf(ops, pair[0].trim());
+            if (pair.length != 2 || op < 0) {
+               throw new IllegalArgumentException(
+                  "bad mix item " + item + "; operations are "
+                  + String.join(",", ops));
+            }
+            weights[op] = Integer.parseInt(pair[1].trim());
+            if (weights[op] < 0) {
+               throw new IllegalArgumentException(
+                  "weights should not be negative");
+            }
+         }
+      }
+      this.cumulative = new int[ops.length];
+      int total = 0;
+      for (int i = 0; i < ops.length; i++) {
+         total += weights[i];
+         this.cumulative[i] = total;
+      }
+      if (total <= 0) {
+         throw new IllegalArgumentException("mix has no positive weight");
+      }
+   }
+
+   /**
+      Run the virtual users for the given time, and print a report.
+
+      @param users the number of virtual users; should be positive
+      @param seconds how long to run for
+      @param report where to print the report
+      @exception InterruptedException if interrupted while waiting
+    */
+   public void run(final int users, final int seconds,
+                   final PrintStream report)
+      throws InterruptedException {
+      int n = workload.operations.length;
+      histograms = new LatencyHistogram[n];
+      errors = new AtomicLong[n];
+      for (int i = 0; i < n; i++) {
+         histograms[i] = new LatencyHistogram();
+         errors[i] = new AtomicLong(0);
+      }
+      User[] threads = new User[users];
+      long start = System.nanoTime();
+      endTime = start + seconds * 1000000000L;
+      for (int i = 0; i < users; i++) {
+         threads[i] = workload.newUser(i);
+         threads[i].start();
+      }
+      for (User u : threads) {
+         // allow for a request in progress when the time runs out
+         u.join(seconds * 1000L + CHAT_TIMEOUT);
+      }
+      double secs = (System.nanoTime() - start) / 1e9;
+      long errorCount = 0;
+      for (AtomicLong e : errors) {
+         errorCount += e.get();
+      }
+      report.printf("%d users, %.3f s: %d requests (%.1f/s), %d errors,"
+                    + " %d users failed%n",
+                    users, secs, all.getCount(), all.getCount() / secs,
+                    errorCount, failedUsers.get());
+      report.println("latency (ms)           p50       p90       p99"
+                     + "     p99.9       max     count  errors");
+      for (int i = 0; i < n; i++) {
+         if (histograms[i].getCount() > 0 || errors[i].get() > 0) {
+            report.printf("%s %9d %7d%n",
+                          histograms[i].summary(workload.operations[i]),
+                          histograms[i].getCount(), errors[i].get());
+         }
+      }
+      report.println(all.summary("all"));
+      report.println();
+      all.printDistribution(report);
+   }
+
+   // --- private methods -----------------------------------------------------
+
+   /**
+      Pick an operation according to the mix.
+
+      @param random source of random numbers
+      @return the operation
+    */
+   private int pick(final Random random) {
+      int r = random.nextInt(cumulative[cumulative.length - 1]);
+      int op = 0;
+      while (r >= cumulative[op]) {
+         op++;
+      }
+      return op;
+   }
+
+   /**
+      Find a string in an array.
+
+      @param a the array
+      @param s the string
+      @return the index of the string in the array; -1 if not there
+    */
+   private static int indexOf(final String[] a, final String s) {
+      for (int i = 0; i < a.length; i++) {
+         if (a[i].equals(s)) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   /**
+      Put a server under load.
+
+      @param args command line arguments: the workload
+                  (<code>friendface</code>, <code>liketunes</code> or
+                  <code>chat</code>), the server host and port number, then
+                  "<code>-users n</code>" to run n virtual users;
+                  "<code>-duration s</code>" to run for s seconds;
+                  "<code>-think ms</code>" to pause ms milliseconds after
+                  each request;
+                  "<code>-mix op:w,...</code>" to give the weight of
+                  each operation;
+                  "<code>-keys n</code>" to use n distinct names, tunes
+                  and rooms;
+                  "<code>-pool n</code>" to keep n warm connections
+    */
+   public static void main(String[] args) {
+      if (args.length < 3 || args.length % 2 != 1) {
+         System.err.println(USAGE);
+         System.exit(2);
+      }
+      int users = DEFAULT_USERS;
+      int duration = DEFAULT_DURATION;
+      long think = 0;
+      String mix = null;
+      int keys = DEFAULT_KEYS;
+      int poolSize = ConnectionPool.DEFAULT_SIZE;
+      LoadGenerator gen = null;
+      try {
+         for (int i = 3; i < args.length; i += 2) {
+            if (args[i].equals("-users")) {
+               users = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-duration")) {
+               duration = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-think")) {
+               think = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("-mix")) {
+               mix = args[i + 1];
+            } else if (args[i].equals("-keys")) {
+               keys = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-pool")) {
+               poolSize = Integer.parseInt(args[i + 1]);
+            } else {
+               System.err.println(USAGE);
+               System.exit(2);
+            }
+         }
+         if (users <= 0 || duration <= 0 || think < 0) {
+            throw new IllegalArgumentException(
+               "users and duration should be positive,"
+               + " think time not negative");
+         }
+         gen = new LoadGenerator(args[0], args[1], Integer.parseInt(args[2]),
+                                 keys, think,
+                                 new ConnectionPool(
+                                    poolSize,
+                                    ConnectionPool.DEFAULT_IDLE_MILLIS,
+                                    ConnectionPool.DEFAULT_CONNECT_TIMEOUT));
+         if (mix != null) {
+            gen.setMix(mix);
+         }
+      } catch (UnknownHostException uhe) {
+         System.err.println("Host not recognized: " + args[1]);
+         System.exit(2);
+      } catch (IllegalArgumentException iae) {
+         // includes NumberFormatException
+         System.err.println(USAGE);
+         System.err.println(iae.getMessage());
+         System.exit(2);
+      }
+      try {
+         gen.run(users, duration, System.out);
+      } catch (InterruptedException ie) {
+         System.exit(1);
+      }
+      System.exit(0);
+   }
+}
@@ -19,7 +19,9 @@ import javax.swing.JTextField;
 import javax.swing.JRadioButton;
 import javax.swing.JTextArea;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JPanel;
+import javax.swing.Timer;
 import javax.swing.border.EtchedBorder;
 import javax.swing.border.TitledBorder;
 import java.awt.BorderLayout;
@@ -30,15 +32,33 @@ import java.awt.event.WindowListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.PrintWriter;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import Comp213.FriendFaceClient.FriendFaceGUI;
 
 /**
@@ -48,12 +68,28 @@ import Comp213.FriendFaceClient.FriendFaceGUI;
    the client sends requests to MetaClient, which forwards them
    to the server, and displays the requests and the responses.
    It is assumed that all traffic between client and server
-   is character-oriented.
+   is character-oriented, with one byte per character
+   (see {@link #CHARSET CHARSET}).
    Controls are provided to allow the user to send requests directly
    without using the client GUI.
    <p>
    The client should implement the
    {@link ProxyableComponent ProxyableComponent} interface.
+   </p><p>
+   Requests from the client GUI are sent on connections taken from a
+   {@link ConnectionPool ConnectionPool}, which can open connections
+   ahead of time so that requests are not held up by connection setup;
+   by default it does not, and the server's address is simply cached.
+   Clients can also send requests
+   {@link #handleRequestAsync(String,long,TimeUnit) asynchronously},
+   so that their GUI does not freeze while waiting for the server,
+   or have large responses
+   {@link #streamRequest(String,Consumer) streamed} to them a chunk at
+   a time.
+   </p><p>
+   All traffic through MetaClient can be recorded in a
+   {@link TrafficCapture TrafficCapture}, to be
+   {@link TrafficReplay replayed} later.
    </p>
 
    @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
@@ -61,7 +97,28 @@ import Comp213.FriendFaceClient.FriendFaceGUI;
  */
 public class MetaClient
    extends JFrame
-   implements Proxy, WindowListener {
+   implements AsyncProxy, StreamingProxy, WindowListener {
+
+   /**
+      The character set of traffic between client and server.
+      Each character is sent as a single byte, and each byte
+      received is read as a single character.
+      This value is set to ISO-8859-1.
+    */
+   public static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+   /**
+      Size, in bytes, of the buffer used to read from the server.
+      This value is set to 8192.
+    */
+   public static final int READ_BUFFER_SIZE = 8192;
+
+   /**
+      Time, in milliseconds, between reports of the traffic on the
+      persistent connection.
+      This value is set to 1000.
+    */
+   public static final int STATS_MILLIS = 1000;
 
    /**
       Class to handle the client's interactions with the server,
@@ -270,12 +327,73 @@ public class MetaClient
        */
       private OutputStream outStream;
 
+      /**
+         Id of the persistent connection in the
+         {@link #capture traffic capture}.
+       */
+      private volatile int connectionId;
+
+      /**
+         Decoder for the traffic on the persistent connection.
+       */
+      private volatile TrafficDecoder connectionDecoder = TrafficDecoder.NONE;
+
+      /**
+         Number of bytes received on the persistent connection.
+       */
+      private final AtomicLong bytesIn = new AtomicLong(0);
+
+      /**
+         Number of bytes sent on the persistent connection.
+       */
+      private final AtomicLong bytesOut = new AtomicLong(0);
+
+      /**
+         Counts at the last report of the traffic on the persistent
+         connection, and the time of the report,
+         from <code>System.nanoTime()</code>.
+       */
+      private long lastIn, lastOut, lastMessages, lastReport;
+
+      /**
+         Timer to report the traffic on the persistent connection
+         every {@link #STATS_MILLIS STATS_MILLIS}.
+       */
+      private final Timer statsTimer = new Timer(STATS_MILLIS,
+         new ActionListener() {
+            public void actionPerformed(ActionEvent ae) {
+               reportTraffic();
+            }
+         });
+
+      /**
+         Host field text that {@link #cachedAddress cachedAddress}
+         was resolved from; null if there is no cached address.
+       */
+      private String cachedHost;
+
+      /**
+         Port field text that {@link #cachedAddress cachedAddress}
+         was resolved from.
+       */
+      private String cachedPort;
+
+      /**
+         The server address, resolved from the host and port fields,
+         so the fields need only be parsed and looked up again when
+         they change.
+       */
+      private InetSocketAddress cachedAddress;
+
       /**
          Thread to listen for and display data received from the server.
          An instance of this class is created when a persistent connection
          is established; as a separate thread, it listens for and displays
          data received from the server; the thread will end when the
          socket connection to the server (or its input stream) is closed.
+         Data is read as much as is available at a time, up to
+         {@link #READ_BUFFER_SIZE READ_BUFFER_SIZE} bytes,
+         so that the listener keeps up with a busy server.
       */
       private class ConnectionListener extends Thread {
          /**
@@ -283,11 +401,17 @@ public class MetaClient
             {@link #ioPanel IOPanel}.
          */
          public void run() {
+            final TrafficDecoder decoder = connectionDecoder;
+            final byte[] buf = new byte[READ_BUFFER_SIZE];
             try { // to get data from server
-               int b; // store byte from server
-               while ((b = inStream.read()) >= 0) { // end when inStream closed
-                  // display received byte as character
-                  ioPanel.appendToInput((char)b);
+               int n; // number of bytes read from server
+               while ((n = inStream.read(buf)) >= 0) { // end when closed
+                  // display received bytes as characters
+                  String text = new String(buf, 0, n, CHARSET);
+                  ioPanel.appendToInput(text);
+                  decoder.received(text);
+                  bytesIn.addAndGet(n);
+                  capture(TrafficCapture.RECEIVED, connectionId, buf, 0, n);
                }
                // end of input from server: inStream is closed
                report(CONNECTION_CLOSED_BY_SERVER);
@@ -309,11 +433,194 @@ public class MetaClient
                /*  for whatever reason, the socket connection is closed;
                    reset controls
                 */
+               capture(TrafficCapture.CLOSE, connectionId, null, 0, 0);
+               decoder.ended();
                actOnDisconnect();
             }
          }
       } // end class MetaClient.ConnectorPanel.ConnectionListener
 
+      /**
+         A request sent without blocking, on an
+         {@link java.nio.channels.AsynchronousSocketChannel asynchronous
+         channel}.
+         Each step (connect, write, read) is started when the previous
+         one completes, so only one operation is outstanding at a time;
+         the response is collected until the server closes the connection,
+         and then used to complete the future.
+         The channel is closed as soon as the future completes, whether
+         normally, exceptionally, by timing out, or by being cancelled;
+         closing the channel makes any outstanding operation fail,
+         which ends the exchange.
+      */
+      private class AsyncExchange {
+
+         /**
+            The connection to the server.
+         */
+         private final AsynchronousSocketChannel channel;
+
+         /**
+            The request still to be sent.
+         */
+         private final ByteBuffer request;
+
+         /**
+            Buffer for reading the response.
+         */
+         private final ByteBuffer readBuffer =
+            ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+         /**
+            Bytes received from the server.
+         */
+         private final ByteArrayOutputStream received =
+            new ByteArrayOutputStream();
+
+         /**
+            The text of the request, for display.
+         */
+         private final String data;
+
+         /**
+            The address of the server, as given in the host and port
+            fields, for display.
+         */
+         private final String where;
+
+         /**
+            Future to complete with the response.
+         */
+         private final CompletableFuture<String> result;
+
+         /**
+            Id of the exchange in the {@link #capture traffic capture};
+            0 until the request is sent.
+         */
+         private volatile int id = 0;
+
+         /**
+            Decoder for the exchange.
+         */
+         private final TrafficDecoder decoder = ioPanel.newRequestDecoder();
+
+         /**
+            Handler for the connection being made.
+         */
+         private final CompletionHandler<Void, Void> connected =
+            new CompletionHandler<Void, Void>() {
+               public void completed(Void v, Void a) {
+                  report("Connected to " + where);
+                  ioPanel.appendToOutput(data);
+                  decoder.sent(data);
+                  id = captureId();
+                  capture(TrafficCapture.REQUEST, id, request.array(),
+                          0, request.limit());
+                  channel.write(request, null, written);
+               }
+               public void failed(Throwable t, Void a) {
+                  fail(t);
+               }
+            };
+
+         /**
+            Handler for (part of) the request being sent.
+         */
+         private final CompletionHandler<Integer, Void> written =
+            new CompletionHandler<Integer, Void>() {
+               public void completed(Integer n, Void a) {
+                  if (request.hasRemaining()) { // partial write
+                     channel.write(request, null, written);
+                  } else {
+                     channel.read(readBuffer, null, read);
+                  }
+               }
+               public void failed(Throwable t, Void a) {
+                  fail(t);
+               }
+            };
+
+         /**
+            Handler for (part of) the response being received.
+         */
+         private final CompletionHandler<Integer, Void> read =
+            new CompletionHandler<Integer, Void>() {
+               public void completed(Integer n, Void a) {
+                  if (n < 0) { // server has closed the connection
+                     result.complete(
+                        new String(received.toByteArray(), CHARSET));
+                     return;
+                  }
+                  // display and keep what was read, then read on
+                  String text = new String(readBuffer.array(), 0, n, CHARSET);
+                  ioPanel.appendToInput(text);
+                  decoder.received(text);
+                  received.write(readBuffer.array(), 0, n);
+                  capture(TrafficCapture.RESPONSE, id,
+                          readBuffer.array(), 0, n);
+                  readBuffer.clear();
+                  channel.read(readBuffer, null, read);
+               }
+               public void failed(Throwable t, Void a) {
+                  fail(t);
+               }
+            };
+
+         /**
+            Creates a new <code>AsyncExchange</code> instance.
+
+            @param ch the channel to send the request on; not yet connected
+            @param data the request
+            @param where the address of the server, for display
+            @param result the future to complete with the response
+         */
+         AsyncExchange(final AsynchronousSocketChannel ch, final String data,
+                       final String where,
+                       final CompletableFuture<String> result) {
+            this.channel = ch;
+            this.data = data;
+            this.where = where;
+            this.request = ByteBuffer.wrap(data.getBytes(CHARSET));
+            this.result = result;
+         }
+
+         /**
+            Start connecting to the server.
+
+            @param addr the address of the server
+         */
+         void start(final InetSocketAddress addr) {
+            channel.connect(addr, null, connected);
+         }
+
+         /**
+            Record the end of the exchange in the
+            {@link #capture traffic capture}, if the request was sent,
+            and describe it in the {@link #ioPanel IOPanel}.
+         */
+         void end() {
+            decoder.ended();
+            if (id != 0) {
+               capture(TrafficCapture.END, id, null, 0, 0);
+            }
+         }
+
+         /**
+            Report a failed operation and complete the future exceptionally.
+            Nothing is reported if the future has already completed,
+            since the failure is then the result of the channel being closed.
+
+            @param t the cause of the failure
+         */
+         private void fail(final Throwable t) {
+            if (result.completeExceptionally(t)) {
+               report("caught IOExc: " + t.getMessage());
+               // the server may have moved: look it up again next time
+               forgetAddress();
+            }
+         }
+      } // end class MetaClient.ConnectorPanel.AsyncExchange
+
       // --- Constructor ------------------------------------------------------
 
       /**
@@ -381,6 +688,11 @@ public class MetaClient
                            // set up I/O streams
                            inStream = sock.getInputStream();
                            outStream = sock.getOutputStream();
+                           connectionId = captureId();
+                           connectionDecoder = ioPanel.newConnectionDecoder();
+                           byte[] addr = address().getBytes(CHARSET);
+                           capture(TrafficCapture.OPEN, connectionId,
+                                   addr, 0, addr.length);
                            // now connected; set controls
                            actOnConnect();
                            /*  start a thread to listen to and report
@@ -402,26 +714,25 @@ public class MetaClient
             }
          );
          /* Listener for the send button.
-            Get the text from the GUI and send it character-by-character
-            to the server, and display the sent text.
+            Get the text from the GUI and send it to the server
+            in a single write, and display the sent text.
           */
          sendButton.addActionListener(
             new ActionListener() {
 
                String request; // the text to send
-               int len;       // its length
-               char aChar;   // current character in text
 
                public void actionPerformed(ActionEvent ae) {
                   request = textToSend.getText();
-                  len = request.length();
                   try { // to send to server
                      if (outStream != null) { // should be connected
-                        for (int i = 0; i < len; i++) {
-                           aChar = request.charAt(i);
-                           outStream.write(aChar);         // send char
-                           ioPanel.appendToOutput(aChar); // report sent char
-                        }
+                        byte[] bytes = request.getBytes(CHARSET);
+                        outStream.write(bytes);
+                        ioPanel.appendToOutput(request); // report sent text
+                        connectionDecoder.sent(request);
+                        bytesOut.addAndGet(bytes.length);
+                        capture(TrafficCapture.SENT, connectionId,
+                                bytes, 0, bytes.length);
                      }
                      // clear GUI
                      textToSend.setText("");
@@ -450,34 +761,76 @@ public class MetaClient
          @return the server's response; null if connection fails
        */
       public String handleRequest(String data) {
-         String response = ""; // return value
+         final StringBuilder received = new StringBuilder();
+         boolean ok = this.streamRequest(data,
+                                         new Consumer<String>() {
+                                            public void accept(String chunk) {
+                                               received.append(chunk);
+                                            }
+                                         });
+         return ok ? received.toString() : null;
+      }
+
+      /**
+         Connect to a server at the AddressPanel address, send data,
+         and pass the server's response to the given consumer as it is
+         read, a buffer at a time.
+         Nothing else keeps the whole response:
+         the IOPanel only keeps the last lines it displays.
+
+         @param data the string to send to the server once the connection
+         is established
+         @param response takes each chunk of the response, in order
+         @return true if the whole response was received;
+            false if the connection fails
+       */
+      public boolean streamRequest(String data, Consumer<String> response) {
+         boolean ok = false;   // whether the whole response was received
          Socket asock = null;  // connection to server
+         int id = 0;           // id of the exchange in the traffic capture
+         // describes the exchange in the IOPanel
+         TrafficDecoder decoder = ioPanel.newRequestDecoder();
          try { // to connect to server
-            asock = this.getSocket();
-            if (asock == null) {
-               return null;
+            InetSocketAddress addr = this.getAddress();
+            if (addr == null) {
+               return false;
             }
+            asock = pool.take(addr);
             conPanel.reportConnection(); // report successful connection
             //set up I/O
             InputStream inStream = asock.getInputStream();
             OutputStream outStream = asock.getOutputStream();
-            // send data character-by-character
-            final int dataLength = data.length();
-            for (int i = 0; i < dataLength; i++) {
-               outStream.write(data.charAt(i));
-               ioPanel.appendToOutput(data.charAt(i));
-            }
-            // read and display response from server
-            int b = 0;
-            while ((b = inStream.read()) >= 0) {
-               ioPanel.appendToInput((char)b);
-               response += (char)b;
+            // send data in a single write
+            final byte[] request = data.getBytes(CHARSET);
+            id = captureId();
+            capture(TrafficCapture.REQUEST, id, request, 0, request.length);
+            outStream.write(request);
+            ioPanel.appendToOutput(data);
+            decoder.sent(data);
+            // read and display response from server, a buffer at a time
+            final byte[] buf = new byte[READ_BUFFER_SIZE];
+            int n;
+            while ((n = inStream.read(buf)) >= 0) {
+               // CHARSET has one byte per character,
+               // so each buffer can be decoded on its own
+               String text = new String(buf, 0, n, CHARSET);
+               ioPanel.appendToInput(text);
+               decoder.received(text);
+               capture(TrafficCapture.RESPONSE, id, buf, 0, n);
+               response.accept(text);
             }
+            ok = true;
          } catch (UnknownHostException ioe) {
             conPanel.report("Host not recognized");
          } catch (IOException ioe) {
             conPanel.report("caught IOExc: " + ioe.getMessage());
+            // the server may have moved: look it up again next time
+            this.forgetAddress();
          } finally {
+            if (id != 0) { // exchange was recorded: record its end
+               capture(TrafficCapture.END, id, null, 0, 0);
+            }
+            decoder.ended();
             // close connection to server
             if (asock != null) {
                try {
@@ -489,7 +842,85 @@ public class MetaClient
             }
             conPanel.reportConnectionClosed();
          }
-         return response;
+         return ok;
+      }
+
+      /**
+         Connect to a server at the AddressPanel address, send data,
+         and give a future that completes with the server's response.
+         The host is looked up in the background, and the request is sent
+         on an asynchronous channel, so this method returns without
+         waiting for either; it may be called on the event dispatch thread.
+
+         @param data the string to send to the server once the connection
+            is established
+         @param timeout the time to wait for the complete response
+         @param unit the unit of <code>timeout</code>
+         @return a future that completes with the server's response;
+            with null if the server's address has not been given;
+            or exceptionally if the connection fails or times out
+       */
+      public CompletableFuture<String> handleRequestAsync(
+         final String data, final long timeout, final TimeUnit unit) {
+
+         final CompletableFuture<String> result =
+            new CompletableFuture<String>();
+         // read the fields here, on the caller's (usually the event) thread
+         final String host = hostField.getText();
+         final String port = portField.getText();
+         final String where = host + ":" + port;
+         // missing fields move the focus, which must be done here
+         if (host.length() <= 0) {
+            this.noHost();
+            result.complete(null);
+            return result;
+         } else if (port.length() <= 0) {
+            this.noPort();
+            result.complete(null);
+            return result;
+         }
+         // give up once the timeout has passed
+         final ScheduledFuture<?> timer = timeouts.schedule(
+            new Runnable() {
+               public void run() {
+                  if (result.completeExceptionally(new TimeoutException(
+                         "no response from " + where
+                         + " after " + timeout + " "
+                         + unit.toString().toLowerCase()))) {
+                     report("Request to " + where + " timed out");
+                  }
+               }
+            },
+            timeout, unit);
+         result.whenComplete(
+            new BiConsumer<String, Throwable>() {
+               public void accept(String response, Throwable t) {
+                  timer.cancel(false);
+               }
+            });
+         /* looking up the host may block, so do it in the background,
+            then connect
+          */
+         lookups.execute(
+            new Runnable() {
+               public void run() {
+                  if (result.isDone()) { // timed out or cancelled already
+                     return;
+                  }
+                  try {
+                     InetSocketAddress addr = getAddress(host, port);
+                     if (addr == null) {
+                        result.complete(null);
+                     } else {
+                        connectAsync(addr, data, where, result);
+                     }
+                  } catch (UnknownHostException uhe) {
+                     report("Host not recognized");
+                     result.completeExceptionally(uhe);
+                  }
+               }
+            });
+         return result;
       }
 
       /**
@@ -507,6 +938,47 @@ public class MetaClient
 
       // --- private methods --------------------------------------------------
 
+      /**
+         Open an asynchronous channel and start sending a request on it.
+         However the request ends (response, failure, timeout or
+         cancellation), the channel is closed.
+
+         @param addr the address of the server
+         @param data the request
+         @param where the address of the server, for display
+         @param result the future to complete with the response
+       */
+      private void connectAsync(final InetSocketAddress addr,
+                                final String data, final String where,
+                                final CompletableFuture<String> result) {
+         final AsynchronousSocketChannel channel;
+         try {
+            channel = AsynchronousSocketChannel.open();
+         } catch (IOException ioe) {
+            report("caught IOExc: " + ioe.getMessage());
+            result.completeExceptionally(ioe);
+            return;
+         }
+         final AsyncExchange exchange =
+            new AsyncExchange(channel, data, where, result);
+         /* if the future has already completed, this closes the channel
+            at once, and connecting fails quietly
+          */
+         result.whenComplete(
+            new BiConsumer<String, Throwable>() {
+               public void accept(String response, Throwable t) {
+                  exchange.end();
+                  try {
+                     channel.close();
+                  } catch (IOException ioe) {
+                     // nothing useful to do
+                  }
+                  report("Connection to " + where + " has been closed.");
+               }
+            });
+         exchange.start(addr);
+      }
+
       /**
          Get a socket connection to the server.
          Returns null if connection fails.
@@ -517,9 +989,56 @@ public class MetaClient
          @exception IOException if an I/O error occurs
        */
       private Socket getSocket() throws UnknownHostException, IOException {
-         // get the address of the server
-         String addr = hostField.getText(); // host address
-         String port = portField.getText(); // host port numeral
+         InetSocketAddress addr = this.getAddress();
+         if (addr == null) {
+            return null; // no connection
+         }
+         // return socket connection to server
+         Socket s = new Socket();
+         try {
+            s.connect(addr, connectTimeout);
+         } catch (IOException ioe) {
+            s.close();
+            this.forgetAddress();
+            throw ioe;
+         }
+         return s;
+      }
+
+      /**
+         Get the address of the server.
+         The host and port fields are only parsed, and the host looked up,
+         when their text differs from the last time this method was called.
+         Returns null if the fields are not valid.
+
+         @return the address of the server,
+            or <code>null</code> if the host or port is not specified
+         @exception UnknownHostException if the host address is not valid
+       */
+      private InetSocketAddress getAddress() throws UnknownHostException {
+         return getAddress(hostField.getText(), portField.getText());
+      }
+
+      /**
+         Get the address of the server, from the text of the host and port
+         fields.
+         The text is only parsed, and the host looked up, when it differs
+         from the last time.
+         Looking up the host may block, so this should not be called on
+         the event dispatch thread.
+
+         @param addr the text of the host field
+         @param port the text of the port field
+         @return the address of the server,
+            or <code>null</code> if the host or port is not specified
+         @exception UnknownHostException if the host address is not valid
+       */
+      private synchronized InetSocketAddress getAddress(final String addr,
+                                                        final String port)
+         throws UnknownHostException {
+         if (addr.equals(cachedHost) && port.equals(cachedPort)) {
+            return cachedAddress; // fields unchanged since last lookup
+         }
          int portNum;                       // host port number
          /* data validation:
             - check addr not empty
@@ -544,8 +1063,26 @@ public class MetaClient
             this.status.append(PORT_NUM_RANGE);
             return null; // no connection
          }
-         // return socket connection to erver
-         return new Socket(addr, portNum);
+         // look up the host, and remember the result
+         InetSocketAddress resolved = new InetSocketAddress(addr, portNum);
+         if (resolved.isUnresolved()) {
+            throw new UnknownHostException(addr);
+         }
+         cachedHost = addr;
+         cachedPort = port;
+         cachedAddress = resolved;
+         return resolved;
+      }
+
+      /**
+         Forget the cached server address, and the pooled connections to it,
+         so that the host is looked up again on the next connection.
+       */
+      private synchronized void forgetAddress() {
+         cachedHost = null;
+         cachedPort = null;
+         cachedAddress = null;
+         pool.clear();
       }
 
       /**
@@ -564,6 +1101,7 @@ public class MetaClient
          when there is no connection to the server.
        */
       private void actOnDisconnect() {
+         statsTimer.stop();
          textToSend.setText("");
          sendButton.setEnabled(false);
          textToSend.setEditable(false);
@@ -579,6 +1117,7 @@ public class MetaClient
          when there is a connection to the server.
        */
       private void actOnConnect() {
+         startTrafficReports();
          sendButton.setEnabled(true);
          textToSend.setEditable(true);
          textToSend.requestFocus();
@@ -630,6 +1169,46 @@ public class MetaClient
          this.status.append(line + "\n");
       }
 
+      /**
+         Reset the counts of traffic on the persistent connection,
+         and start reporting it every {@link #STATS_MILLIS STATS_MILLIS}.
+       */
+      private void startTrafficReports() {
+         bytesIn.set(0);
+         bytesOut.set(0);
+         lastIn = 0;
+         lastOut = 0;
+         lastMessages = 0;
+         lastReport = System.nanoTime();
+         statsTimer.restart();
+      }
+
+      /**
+         Report the rates of traffic on the persistent connection since the
+         last report: bytes per second in each direction, and messages per
+         second as counted by the connection's
+         {@link TrafficDecoder decoder}.
+         Nothing is reported if there has been no traffic.
+       */
+      private void reportTraffic() {
+         long now = System.nanoTime();
+         long in = bytesIn.get();
+         long out = bytesOut.get();
+         long messages = connectionDecoder.getMessages();
+         if (in != lastIn || out != lastOut) {
+            double secs = (now - lastReport) / 1e9;
+            report(String.format("in %.1f kB/s, out %.1f kB/s,"
+                                 + " %.1f msgs/s",
+                                 (in - lastIn) / secs / 1000,
+                                 (out - lastOut) / secs / 1000,
+                                 (messages - lastMessages) / secs));
+         }
+         lastIn = in;
+         lastOut = out;
+         lastMessages = messages;
+         lastReport = now;
+      }
+
       /**
          The address of the server in <code>host:port</code> format.
 
@@ -657,15 +1236,59 @@ public class MetaClient
        */
       private final DisplayPanel output;
 
+      /**
+         Display to show the decoded traffic.
+       */
+      private final DisplayPanel decoded;
+
+      /**
+         Protocol to decode requests from the client GUI with.
+       */
+      private final JComboBox<String> requestProtocol =
+         new JComboBox<String>(TrafficDecoder.PROTOCOLS);
+
+      /**
+         Protocol to decode the persistent connection with.
+       */
+      private final JComboBox<String> connectionProtocol =
+         new JComboBox<String>(TrafficDecoder.PROTOCOLS);
+
+      /**
+         The protocol chosen for requests; kept here because requests
+         are decoded on threads other than the event dispatch thread.
+       */
+      private volatile String requestDecoding = "friendface";
+
+      /**
+         The protocol chosen for the persistent connection.
+       */
+      private volatile String connectionDecoding = "chat";
+
+      /**
+         Where decoders send their descriptions of the traffic.
+       */
+      private final Consumer<String> decodedLines =
+         new Consumer<String>() {
+            public void accept(final String line) {
+               decoded.append(line + "\n");
+            }
+         };
+
 
       /**
          Create an IOPanel.
-         This has two {@link DisplayPanel DisplayPanels}
-         showing input from the server and output to the server.
+         This has three {@link DisplayPanel DisplayPanels}
+         showing input from the server, output to the server,
+         and the traffic decoded according to the server's protocol.
+         The protocols are chosen separately for requests from the client
+         GUI, which are decoded as FriendFace requests by default,
+         and for the persistent connection, which is decoded as a
+         chatroom connection by default.
        */
       public IOPanel() {
          this.input = new DisplayPanel();
          this.output = new DisplayPanel();
+         this.decoded = new DisplayPanel();
          // panel with titled border for input
          JPanel ip = new JPanel();
          ip.add(this.input);
@@ -674,10 +1297,62 @@ public class MetaClient
          JPanel op = new JPanel();
          op.add(this.output);
          op.setBorder(new TitledBorder("To the server"));
+         // panel with titled border for decoded traffic and protocols
+         this.requestProtocol.setSelectedItem(this.requestDecoding);
+         this.connectionProtocol.setSelectedItem(this.connectionDecoding);
+         this.requestProtocol.addActionListener(
+            new ActionListener() {
+               public void actionPerformed(ActionEvent ae) {
+                  requestDecoding =
+                     (String)requestProtocol.getSelectedItem();
+               }
+            });
+         this.connectionProtocol.addActionListener(
+            new ActionListener() {
+               public void actionPerformed(ActionEvent ae) {
+                  connectionDecoding =
+                     (String)connectionProtocol.getSelectedItem();
+               }
+            });
+         JPanel protocols = new JPanel();
+         protocols.add(new JLabel("Requests:"));
+         protocols.add(this.requestProtocol);
+         protocols.add(new JLabel("Connection:"));
+         protocols.add(this.connectionProtocol);
+         JPanel dp = new JPanel(new BorderLayout());
+         dp.add(protocols, BorderLayout.NORTH);
+         dp.add(this.decoded, BorderLayout.CENTER);
+         dp.setBorder(new TitledBorder("Decoded"));
          // put DisplayPanels one above the other
-         this.setLayout(new GridLayout(2,1));
+         this.setLayout(new GridLayout(3,1));
          this.add(op);
          this.add(ip);
+         this.add(dp);
+      }
+
+
+      /**
+         Create a decoder for a request from the client GUI,
+         using the protocol chosen for requests.
+         Each decoder should be used for one exchange only.
+
+         @return a new decoder, which describes its exchange in
+            the decoded display
+       */
+      public TrafficDecoder newRequestDecoder() {
+         return TrafficDecoder.create(this.requestDecoding, this.decodedLines);
+      }
+
+      /**
+         Create a decoder for a persistent connection,
+         using the protocol chosen for the connection.
+
+         @return a new decoder, which describes the connection's traffic
+            in the decoded display
+       */
+      public TrafficDecoder newConnectionDecoder() {
+         return TrafficDecoder.create(this.connectionDecoding,
+                                      this.decodedLines);
       }
 
 
@@ -690,6 +1365,15 @@ public class MetaClient
          this.output.appendChar(c);
       }
 
+      /**
+         Append text to the output display.
+
+         @param text the text to append
+       */
+      public void appendToOutput(final String text) {
+         this.output.append(text);
+      }
+
       /**
          Append a character to the input display.
 
@@ -698,6 +1382,15 @@ public class MetaClient
       public void appendToInput(final char c) {
          this.input.appendChar(c);
       }
+
+      /**
+         Append text to the input display.
+
+         @param text the text to append
+       */
+      public void appendToInput(final String text) {
+         this.input.append(text);
+      }
    } // end inner class IOPanel
 
 
@@ -713,6 +1406,52 @@ public class MetaClient
    */
    private final IOPanel ioPanel = new IOPanel();
 
+   /**
+      Warm connections for requests from the client GUI.
+   */
+   private final ConnectionPool pool;
+
+   /**
+      Time, in milliseconds, to wait for a connection to the server
+      to be set up.
+   */
+   private final int connectTimeout;
+
+   /**
+      Record of the traffic through MetaClient; null if traffic is not
+      being recorded.
+   */
+   private volatile TrafficCapture capture;
+
+   /**
+      Thread to time out {@link #handleRequestAsync(String,long,TimeUnit)
+      asynchronous requests}.
+   */
+   private final ScheduledExecutorService timeouts =
+      Executors.newSingleThreadScheduledExecutor(
+         new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+               Thread t = new Thread(r, "MetaClient timeouts");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+
+   /**
+      Thread to look up server addresses for
+      {@link #handleRequestAsync(String,long,TimeUnit) asynchronous
+      requests}, so that the lookup does not hold up the caller.
+   */
+   private final ExecutorService lookups =
+      Executors.newSingleThreadExecutor(
+         new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+               Thread t = new Thread(r, "MetaClient lookups");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+
    /**
     * Describe variable <code>guiBoss</code> here.
     *
@@ -732,6 +1471,29 @@ public class MetaClient
     * @param gui a <code>ConnectableComponent</code> value
     */
    public MetaClient(final ProxyableComponent gui) {
+      this(gui, ConnectionPool.DEFAULT_SIZE,
+           ConnectionPool.DEFAULT_IDLE_MILLIS,
+           ConnectionPool.DEFAULT_CONNECT_TIMEOUT);
+   }
+
+   /**
+      Creates a new <code>MetaClient</code> instance with the given
+      connection pool options.
+
+      @param gui the client GUI to display and monitor
+      @param poolSize the number of warm connections to keep for requests;
+         0 to open a new connection for each request
+      @param idleMillis the time in milliseconds that a warm connection
+         is kept before it is closed
+      @param connectTimeout the time in milliseconds to wait for a
+         connection to be set up; 0 to wait indefinitely
+
+      @throws IllegalArgumentException if any option is out of range
+    */
+   public MetaClient(final ProxyableComponent gui, final int poolSize,
+                     final long idleMillis, final int connectTimeout) {
+      pool = new ConnectionPool(poolSize, idleMillis, connectTimeout);
+      this.connectTimeout = connectTimeout;
       clientGUI = gui;
       clientGUI.setProxy(this);
       //      guiBoss = new GUIControl();
@@ -746,6 +1508,49 @@ public class MetaClient
       this.addWindowListener(this);
    }
 
+   // --- Traffic capture -----------------------------------------------------
+
+   /**
+      Start recording all traffic through MetaClient in the given capture,
+      or stop recording.
+      Any previous capture is not closed.
+
+      @param capture the capture to record traffic in;
+         null to stop recording
+   */
+   public void setCapture(final TrafficCapture capture) {
+      this.capture = capture;
+   }
+
+   /**
+      Get an id for a new exchange or connection in the traffic capture.
+
+      @return a new id; 0 if traffic is not being recorded
+   */
+   private int captureId() {
+      TrafficCapture c = this.capture;
+      return (c == null) ? 0 : c.newId();
+   }
+
+   /**
+      Record traffic in the traffic capture, if traffic is being recorded.
+
+      @param type the type of record
+      @param id the id of the exchange or connection
+      @param data array holding the bytes sent or received;
+         may be null if <code>length</code> is 0
+      @param offset index in <code>data</code> of the first byte
+      @param length number of bytes
+   */
+   private void capture(final int type, final int id, final byte[] data,
+                        final int offset, final int length) {
+      TrafficCapture c = this.capture;
+      if (c != null && id != 0) {
+         c.record(type, id, (data == null) ? new byte[0] : data,
+                  offset, length);
+      }
+   }
+
    // --- Implementation of Proxy ---------------------------------------------
 
    /**
@@ -764,6 +1569,46 @@ public class MetaClient
    }
    // --- end implementation of Proxy
 
+   // --- Implementation of StreamingProxy ------------------------------------
+
+   /**
+      Connect to the server, send data, and pass the server's response
+      to the given consumer as it is received.
+      The response is displayed as it passes through, but MetaClient
+      keeps only the last lines of the display, so the response may be
+      much larger than would fit in memory.
+
+      @param data the string to send to the server
+      @param response takes each chunk of the response, in order
+      @return true if the whole response was received
+   */
+   public boolean streamRequest(String data, Consumer<String> response) {
+      return conPanel.streamRequest(data, response);
+   }
+   // --- end implementation of StreamingProxy
+
+   // --- Implementation of AsyncProxy ----------------------------------------
+
+   /**
+      Connect to the server, send data, and give a future that completes
+      with the server's response.
+      This method returns at once; the request is sent on an
+      asynchronous channel, and the future fails with a
+      {@link TimeoutException TimeoutException} if the complete response
+      has not been received within the given time.
+
+      @param data the string to send to the server
+      @param timeout the time to wait for the complete response
+      @param unit the unit of <code>timeout</code>
+      @return a future that completes with the server's response
+   */
+   public CompletableFuture<String> handleRequestAsync(String data,
+                                                       long timeout,
+                                                       TimeUnit unit) {
+      return conPanel.handleRequestAsync(data, timeout, unit);
+   }
+   // --- end implementation of AsyncProxy
+
    // --- Implementation of java.awt.event.WindowListener ---------------------
 
    /**
@@ -790,6 +1635,17 @@ public class MetaClient
    public final void windowClosing(final WindowEvent windowEvent) {
       // just to be nice, try to close any open connections
       conPanel.closeSocket();
+      pool.close();
+      timeouts.shutdownNow();
+      lookups.shutdownNow();
+      // write out any traffic recorded
+      if (capture != null) {
+         try {
+            capture.close();
+         } catch (IOException ioe) {
+            System.err.println("Error writing capture: " + ioe.getMessage());
+         }
+      }
       // and shut down JVM
       System.exit(0);
    }
@@ -829,14 +1685,64 @@ public class MetaClient
    // --- end implementation of java.awt.WindowListener
 
    /**
-    * Describe <code>main</code> method here.
-    *
-    * @param args a <code>String</code> value
+      Display MetaClient in front of the FriendFace client GUI.
+
+      @param args command line arguments:
+                  "<code>-pool n</code>" to keep n warm connections;
+                  "<code>-idle ms</code>" to close warm connections
+                  after ms milliseconds;
+                  "<code>-timeout ms</code>" to give up on connecting
+                  after ms milliseconds;
+                  "<code>-capture file</code>" to record all traffic
+                  in the given file
     */
    public static void main(String[] args) {
+      final String usage =
+         "usage: [-pool n] [-idle ms] [-timeout ms] [-capture file]";
+      String captureFile = null;
+      int poolSize = ConnectionPool.DEFAULT_SIZE;
+      long idleMillis = ConnectionPool.DEFAULT_IDLE_MILLIS;
+      int connectTimeout = ConnectionPool.DEFAULT_CONNECT_TIMEOUT;
+      if (args.length % 2 != 0) {
+         // options come in pairs
+         System.err.println(usage);
+         System.exit(2);
+      }
+      for (int i = 0; i < args.length; i += 2) {
+         try {
+            if (args[i].equals("-pool")) {
+               poolSize = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-idle")) {
+               idleMillis = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("-timeout")) {
+               connectTimeout = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-capture")) {
+               captureFile = args[i + 1];
+            } else {
+               System.err.println(usage);
+               System.exit(2);
+            }
+         } catch (NumberFormatException nfe) {
+            // bad command-line arguments
+            System.err.println("invalid " + args[i].substring(1) + " value");
+            System.exit(2);
+         }
+      }
       Comp213.FriendFaceClient.FriendFaceGUI ffg =
             new Comp213.FriendFaceClient.FriendFaceGUI();
-      MetaClient mc = new MetaClient(ffg);
-      mc.setVisible(true);
+      try {
+         MetaClient mc =
+            new MetaClient(ffg, poolSize, idleMillis, connectTimeout);
+         if (captureFile != null) {
+            mc.setCapture(new TrafficCapture(new File(captureFile)));
+         }
+         mc.setVisible(true);
+      } catch (IllegalArgumentException iae) {
+         System.err.println(iae.getMessage());
+         System.exit(2);
+      } catch (IOException ioe) {
+         System.err.println("Can't create capture: " + ioe.getMessage());
+         System.exit(1);
+      }
    }
 }
@@ -0,0 +1,194 @@
+/*
+ * /home/grant/JavaClasses/Comp213/Server/ServerLifecycle.java
+ *
+ * Created: Mon Oct 19 10:12:31 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.Server;
+
+import java.net.Socket;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+   Tracks the sessions in progress on a server, so that the server
+   can be shut down without losing requests it has already accepted.
+   <p>
+   Each connection returned by <code>accept()</code> should be
+   {@link #begin(Socket) registered} before it is handed to a
+   session-handler, and the session-handler should
+   {@link #end(Socket) deregister} it when the session is over.
+   When the server is asked to shut down, it closes its server socket
+   and calls {@link #drain(ExecutorService) drain()}:
+   no new sessions are admitted, sessions in progress are given until
+   the drain deadline to finish, and any connections still open after
+   that are closed.
+   </p>
+
+   @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+   @version 1.0
+ */
+public class ServerLifecycle {
+
+   /**
+      Default time, in milliseconds, to wait for sessions in progress
+      to complete.
+      This value is set to 5000.
+    */
+   public static final long DEFAULT_DRAIN_MILLIS = 5000;
+
+   /**
+      Time, in milliseconds, to wait for the thread-pool to end
+      once all remaining connections have been closed.
+    */
+   private static final long POOL_END_MILLIS = 500;
+
+   /**
+      Name of the server, used in status messages.
+    */
+   private final String serverName;
+
+   /**
+      Time, in milliseconds, that {@link #drain(ExecutorService) drain()}
+      waits for sessions in progress to complete.
+    */
+   private final long drainMillis;
+
+   /**
+      The connections for all sessions in progress.
+      All accesses are synchronized on this instance.
+    */
+   private final Set<Socket> inFlight = new HashSet<Socket>();
+
+   /**
+      Whether new sessions may be {@link #begin(Socket) registered}.
+    */
+   private boolean accepting = true;
+
+
+   /**
+      Creates a new <code>ServerLifecycle</code> instance.
+
+      @param name the name of the server, used in status messages
+      @param drain the time in milliseconds to wait for sessions in progress
+         to complete when the server shuts down; should not be negative
+
+      @throws IllegalArgumentException if <code>drain</code> is negative
+    */
+   public ServerLifecycle(final String name, final long drain) {
+      if (drain < 0) {
+         throw new IllegalArgumentException(
+            "drain time should not be negative");
+      }
+      this.serverName = name;
+      this.drainMillis = drain;
+   }
+
+   /**
+      Register the connection for a new session.
+      If the server is shutting down, the connection is not registered,
+      and should be closed by the caller.
+
+      @param s the connection to the remote client
+      @return true if the session may go ahead;
+         false if the server is shutting down
+    */
+   public synchronized boolean begin(final Socket s) {
+      if (! this.accepting) {
+         return false;
+      }
+      this.inFlight.add(s);
+      return true;
+   }
+
+   /**
+      Deregister the connection for a session that has ended.
+      This should be called once the session-handler has sent its
+      response, whether or not the session completed normally.
+
+      @param s the connection to the remote client
+    */
+   public synchronized void end(final Socket s) {
+      if (this.inFlight.remove(s) && this.inFlight.isEmpty()) {
+         // wake up drain() if it's waiting
+         this.notifyAll();
+      }
+   }
+
+   /**
+      The number of sessions in progress.
+
+      @return the number of registered connections that have not yet
+         ended
+    */
+   public synchronized int inFlight() {
+      return this.inFlight.size();
+   }
+
+   /**
+      Shut down the sessions of a server whose server socket has been closed.
+      No further sessions will be admitted; sessions in progress are given
+      until the drain deadline to complete, after which their connections
+      are closed, and the thread-pool is shut down.
+
+      @param threadPool the thread-pool running the session-handlers
+      @return the number of connections that had to be closed because
+         their sessions did not complete in time
+    */
+   public int drain(final ExecutorService threadPool) {
+      // let handlers already queued run, but accept no new tasks
+      threadPool.shutdown();
+      Socket[] laggards;
+      synchronized (this) {
+         this.accepting = false;
+         long deadline = System.currentTimeMillis() + this.drainMillis;
+         long remaining = this.drainMillis;
+         if (! this.inFlight.isEmpty()) {
+            System.out.println(this.serverName + ": waiting for "
+                               + this.inFlight.size()
+                               + " sessions to complete...");
+         }
+         while (! this.inFlight.isEmpty() && remaining > 0) {
+            try {
+               this.wait(remaining);
+            } catch (InterruptedException ie) {
+               // stop waiting; close whatever is left
+               Thread.currentThread().interrupt();
+               break;
+            }
+            remaining = deadline - System.currentTimeMillis();
+         }
+         laggards = this.inFlight.toArray(new Socket[this.inFlight.size()]);
+      }
+      /* close remaining connections outside the lock:
+         their handlers will call end() as they fail
+       */
+      if (laggards.length > 0) {
+         System.out.println(this.serverName + ": closing "
+                            + laggards.length + " unfinished sessions");
+      }
+      for (Socket s : laggards) {
+         try {
+            s.close();
+         } catch (IOException ioe) {
+            // nothing useful to do
+         }
+      }
+      threadPool.shutdownNow();
+      try {
+         threadPool.awaitTermination(POOL_END_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+      }
+      return laggards.length;
+   }
+}
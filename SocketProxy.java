@@ -0,0 +1,125 @@
+/*
+ * /home/grant/JavaClasses/Comp213/MetaClient/SocketProxy.java
+ *
+ * Created: Tue Oct 20 11:58:40 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.MetaClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.function.Consumer;
+
+/**
+   A {@link StreamingProxy StreamingProxy} that sends requests straight
+   to a server, with no GUI.
+   Requests are sent on connections taken from a
+   {@link ConnectionPool ConnectionPool}, and responses are read until
+   the server closes the connection, in the same way as
+   {@link MetaClient MetaClient} does, but without displaying anything.
+   This allows clients and tools such as {@link LoadGenerator LoadGenerator}
+   to talk to a server where there is no display.
+   <p>
+   Instances may be used by any number of threads at once.
+   </p>
+
+   @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+   @version 1.0
+ */
+public class SocketProxy implements StreamingProxy {
+
+   /**
+      Address of the server.
+    */
+   private final InetSocketAddress server;
+
+   /**
+      Connections to the server.
+    */
+   private final ConnectionPool pool;
+
+
+   /**
+      Creates a new <code>SocketProxy</code> instance.
+
+      @param host the server host
+      @param port the server port number
+      @param pool the pool to take connections to the server from
+      @exception UnknownHostException if the host address is not valid
+    */
+   public SocketProxy(final String host, final int port,
+                      final ConnectionPool pool)
+      throws UnknownHostException {
+      this.server = new InetSocketAddress(host, port);
+      if (this.server.isUnresolved()) {
+         throw new UnknownHostException(host);
+      }
+      this.pool = pool;
+   }
+
+   // --- Implementation of StreamingProxy ------------------------------------
+
+   /**
+      Connect to the server, send data,
+      and return the server's reponse.
+
+      @param data the string to send to the server
+      @return the server's response; null if the connection fails
+   */
+   public String handleRequest(String data) {
+      final StringBuilder received = new StringBuilder();
+      boolean ok = streamRequest(data,
+                                 new Consumer<String>() {
+                                    public void accept(String chunk) {
+                                       received.append(chunk);
+                                    }
+                                 });
+      return ok ? received.toString() : null;
+   }
+
+   /**
+      Connect to the server, send data, and pass the server's response
+      to the given consumer a buffer at a time.
+
+      @param data the string to send to the server
+      @param response takes each chunk of the response, in order
+      @return true if the whole response was received;
+         false if the connection fails
+   */
+   public boolean streamRequest(String data, Consumer<String> response) {
+      Socket s = null;
+      try {
+         s = pool.take(server);
+         s.getOutputStream().write(data.getBytes(MetaClient.CHARSET));
+         // read the response until the server closes the connection;
+         // CHARSET has one byte per character, so chunks decode separately
+         byte[] buf = new byte[MetaClient.READ_BUFFER_SIZE];
+         InputStream in = s.getInputStream();
+         int n;
+         while ((n = in.read(buf)) >= 0) {
+            response.accept(new String(buf, 0, n, MetaClient.CHARSET));
+         }
+         return true;
+      } catch (IOException ioe) {
+         return false;
+      } finally {
+         if (s != null) {
+            try {
+               s.close();
+            } catch (IOException ioe) {
+               // nothing useful to do
+            }
+         }
+      }
+   }
+   // --- end implementation of StreamingProxy
+}
@@ -0,0 +1,49 @@
+/*
+ * /home/grant/JavaClasses/Comp213/MetaClient/StreamingProxy.java
+ *
+ * Created: Tue Oct 20 17:05:12 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.MetaClient;
+
+import java.util.function.Consumer;
+
+/**
+   A {@link Proxy Proxy} that can also hand the server's response to the
+   client a chunk at a time, as it is received.
+   The proxy keeps no more of the response than the chunk it is passing
+   on, so clients that do not need the whole response at once
+   (for example, to count tunes in a long list, or to show only its last
+   few lines) can handle responses much larger than would fit in memory.
+   <p>
+   {@link Proxy#handleRequest(String) handleRequest()} returns the
+   chunks joined together.
+   </p>
+
+   @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+   @version 1.0
+ */
+public interface StreamingProxy extends Proxy {
+
+   /**
+      Connect to a server, send data, and pass the server's response to
+      the given consumer, in chunks, as it is received.
+      This method returns when the server closes the connection,
+      or the connection fails.
+      The chunks are passed on the calling thread.
+
+      @param data the string to send to the server
+      @param response takes each chunk of the response, in order
+      @return true if the whole response was received;
+         false if the server's address is not known or the connection
+         fails, in which case some of the response may already have
+         been passed to the consumer
+   */
+   public boolean streamRequest(String data, Consumer<String> response);
+}
@@ -0,0 +1,414 @@
+/*
+ * /home/grant/JavaClasses/Comp213/MetaClient/TrafficCapture.java
+ *
+ * Created: Tue Oct 20 09:12:55 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.MetaClient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+   A record of the traffic passing through {@link MetaClient MetaClient},
+   written to a binary file so that it can be
+   {@link TrafficReplay replayed} against a server.
+   <p>
+   Traffic is recorded as a sequence of records, each with a type,
+   the id of the exchange or connection it belongs to,
+   the time it was recorded, and the bytes sent or received (if any).
+   Each {@link Proxy#handleRequest(String) request} is an exchange,
+   recorded as a {@link #REQUEST REQUEST}, any number of
+   {@link #RESPONSE RESPONSE} chunks, and an {@link #END END};
+   the persistent connection is recorded as an {@link #OPEN OPEN},
+   any number of {@link #SENT SENT} and {@link #RECEIVED RECEIVED} chunks,
+   and a {@link #CLOSE CLOSE}.
+   </p><p>
+   The file starts with a header: the int {@link #MAGIC MAGIC},
+   a {@link #VERSION VERSION} byte, and the time the capture started,
+   as a long in milliseconds since the epoch.
+   Each record is then written as its type byte, followed by its id,
+   the time in microseconds since the previous record, and the number
+   of bytes, each as an unsigned variable-length integer
+   (seven bits per byte, low bits first, top bit set on all but the last
+   byte), followed by the bytes themselves.
+   Small ids, short gaps and short chunks thus take a single byte each.
+   </p><p>
+   All recording methods may be called from any thread.
+   Records are buffered, and written to the file when the buffer fills
+   and when the capture is {@link #close() closed}.
+   </p>
+
+   @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+   @version 1.0
+ */
+public class TrafficCapture implements Closeable {
+
+   /**
+      Value at the start of every capture file.
+      This value is set to 0x4D434150 ("MCAP").
+    */
+   public static final int MAGIC = 0x4D434150;
+
+   /**
+      Version of the file format.
+      This value is set to 1.
+    */
+   public static final int VERSION = 1;
+
+   /**
+      Record type for a request sent to the server.
+      This value is set to 1.
+    */
+   public static final int REQUEST = 1;
+
+   /**
+      Record type for a chunk of a response received from the server.
+      This value is set to 2.
+    */
+   public static final int RESPONSE = 2;
+
+   /**
+      Record type for the end of an exchange: the server has closed the
+      connection, or the exchange has failed.
+      This value is set to 3.
+    */
+   public static final int END = 3;
+
+   /**
+      Record type for the persistent connection being opened;
+      the bytes are the server address, in <code>host:port</code> format.
+      This value is set to 4.
+    */
+   public static final int OPEN = 4;
+
+   /**
+      Record type for data sent on the persistent connection.
+      This value is set to 5.
+    */
+   public static final int SENT = 5;
+
+   /**
+      Record type for data received on the persistent connection.
+      This value is set to 6.
+    */
+   public static final int RECEIVED = 6;
+
+   /**
+      Record type for the persistent connection being closed.
+      This value is set to 7.
+    */
+   public static final int CLOSE = 7;
+
+   /**
+      Size, in bytes, of the output buffer.
+    */
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   /**
+      A record read from a capture file.
+    */
+   public static class Record {
+
+      /**
+         The type of the record.
+       */
+      public final int type;
+
+      /**
+         The id of the exchange or connection the record belongs to.
+       */
+      public final int id;
+
+      /**
+         Time the record was made, in microseconds since the
+         capture started.
+       */
+      public final long micros;
+
+      /**
+         The bytes sent or received; empty if none.
+       */
+      public final byte[] data;
+
+      /**
+         Creates a new <code>Record</code> instance.
+
+         @param type the type of the record
+         @param id the id of the exchange or connection
+         @param micros time of the record, in microseconds since the
+            capture started
+         @param data the bytes sent or received
+       */
+      Record(final int type, final int id, final long micros,
+             final byte[] data) {
+         this.type = type;
+         this.id = id;
+         this.micros = micros;
+         this.data = data;
+      }
+   }
+
+   /**
+      Reads the records from a capture file, in the order they were made.
+    */
+   public static class Reader implements Closeable {
+
+      /**
+         The capture file.
+       */
+      private final DataInputStream in;
+
+      /**
+         Time the capture started, in milliseconds since the epoch.
+       */
+      private final long started;
+
+      /**
+         Time of the last record read, in microseconds since the
+         capture started.
+       */
+      private long micros = 0;
+
+      /**
+         Open a capture file and read its header.
+
+         @param file the capture file
+         @exception IOException if the file cannot be read,
+            or is not a capture file
+       */
+      public Reader(final File file) throws IOException {
+         this.in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
+         try {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+               throw new IOException(file + " is not a capture file");
+            }
+            this.started = in.readLong();
+         } catch (IOException ioe) {
+            in.close();
+            throw ioe;
+         }
+      }
+
+      /**
+         The time the capture started.
+
+         @return the time the capture started, in milliseconds since
+            the epoch
+       */
+      public long getStarted() {
+         return this.started;
+      }
+
+      /**
+         Read the next record.
+
+         @return the next record; null if there are no more
+         @exception IOException if the file cannot be read,
+            or ends part-way through a record
+       */
+      public Record next() throws IOException {
+         int type = in.read();
+         if (type < 0) {
+            return null;
+         }
+         int id = (int)readVarLong(in);
+         this.micros += readVarLong(in);
+         byte[] data = new byte[(int)readVarLong(in)];
+         in.readFully(data);
+         return new Record(type, id, this.micros, data);
+      }
+
+      /**
+         Close the capture file.
+
+         @exception IOException if the file cannot be closed
+       */
+      public void close() throws IOException {
+         in.close();
+      }
+   }
+
+   /**
+      The capture file.
+      All accesses are synchronized on this instance.
+    */
+   private final DataOutputStream out;
+
+   /**
+      Value of <code>System.nanoTime()</code> when the capture started.
+    */
+   private final long startNanos;
+
+   /**
+      Time of the last record written, in microseconds since the
+      capture started.
+      All accesses are synchronized on this instance.
+    */
+   private long lastMicros = 0;
+
+   /**
+      Source of ids for exchanges and connections.
+    */
+   private final AtomicInteger ids = new AtomicInteger(0);
+
+   /**
+      The first error in writing the file; null if none.
+      Once writing has failed, nothing more is recorded.
+      All accesses are synchronized on this instance.
+    */
+   private IOException error;
+
+
+   /**
+      Creates a new <code>TrafficCapture</code> instance writing to the
+      given file.
+      Any existing file is overwritten.
+
+      @param file the capture file
+      @exception IOException if the file cannot be created
+    */
+   public TrafficCapture(final File file) throws IOException {
+      this.out = new DataOutputStream(new BufferedOutputStream(
+         new FileOutputStream(file), BUFFER_SIZE));
+      this.startNanos = System.nanoTime();
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeLong(System.currentTimeMillis());
+   }
+
+   // --- public methods ------------------------------------------------------
+
+   /**
+      Get an id for a new exchange or connection.
+
+      @return an id not used before in this capture
+    */
+   public int newId() {
+      return ids.incrementAndGet();
+   }
+
+   /**
+      Record a message sent to or received from the server.
+
+      @param type the type of record
+      @param id the id of the exchange or connection
+      @param data array holding the bytes sent or received
+      @param offset index in <code>data</code> of the first byte
+      @param length number of bytes
+    */
+   public synchronized void record(final int type, final int id,
+                                   final byte[] data, final int offset,
+                                   final int length) {
+      if (this.error != null) {
+         return;
+      }
+      long micros = (System.nanoTime() - this.startNanos) / 1000;
+      try {
+         out.writeByte(type);
+         writeVarLong(out, id);
+         writeVarLong(out, micros - this.lastMicros);
+         writeVarLong(out, length);
+         out.write(data, offset, length);
+         this.lastMicros = micros;
+      } catch (IOException ioe) {
+         this.error = ioe;
+      }
+   }
+
+   /**
+      Record a message sent to or received from the server.
+
+      @param type the type of record
+      @param id the id of the exchange or connection
+      @param data the bytes sent or received
+    */
+   public void record(final int type, final int id, final byte[] data) {
+      this.record(type, id, data, 0, data.length);
+   }
+
+   /**
+      Record an event with no data, such as the end of an exchange.
+
+      @param type the type of record
+      @param id the id of the exchange or connection
+    */
+   public void record(final int type, final int id) {
+      this.record(type, id, new byte[0], 0, 0);
+   }
+
+   /**
+      Write any buffered records and close the file.
+
+      @exception IOException if writing to the file has failed
+    */
+   public synchronized void close() throws IOException {
+      try {
+         out.close();
+      } catch (IOException ioe) {
+         if (this.error == null) {
+            this.error = ioe;
+         }
+      }
+      if (this.error != null) {
+         throw this.error;
+      }
+   }
+
+   // --- private methods -----------------------------------------------------
+
+   /**
+      Write an unsigned variable-length integer.
+
+      @param out the stream to write to
+      @param value the value to write; should not be negative
+      @exception IOException if the value cannot be written
+    */
+   private static void writeVarLong(final OutputStream out, long value)
+      throws IOException {
+      while ((value & ~0x7FL) != 0) {
+         out.write((int)(value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      out.write((int)value);
+   }
+
+   /**
+      Read an unsigned variable-length integer.
+
+      @param in the stream to read from
+      @return the value read
+      @exception IOException if the value cannot be read
+    */
+   private static long readVarLong(final InputStream in) throws IOException {
+      long value = 0;
+      int shift = 0;
+      int b;
+      do {
+         if ((b = in.read()) < 0) {
+            throw new EOFException("capture file ends mid-record");
+         }
+         value |= (long)(b & 0x7F) << shift;
+         shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+   }
+}
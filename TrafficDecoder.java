@@ -0,0 +1,264 @@
+/*
+ * /home/grant/JavaClasses/Comp213/MetaClient/TrafficDecoder.java
+ *
+ * Created: Tue Oct 20 14:40:02 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.MetaClient;
+
+import java.util.function.Consumer;
+
+/**
+   Decodes the traffic on one connection to a server, according to the
+   server's protocol, and describes it in a line of text for each
+   exchange or message: what the command was, how large the request and
+   response were, and how long the server took to respond.
+   <p>
+   Traffic is given to a decoder in chunks, as it is
+   {@link #sent(String) sent} and {@link #received(String) received},
+   and the decoder is told when the connection has {@link #ended() ended}.
+   The chunks are split into lines as they arrive, and each line is
+   passed to the protocol-specific subclass as soon as it is complete;
+   only the start of the current line in each direction is kept,
+   so a decoder uses the same small amount of memory however large the
+   responses are.
+   </p><p>
+   Decoders for the servers in these examples are made by
+   {@link #create(String,Consumer) create()}.
+   The methods that take traffic are synchronized, so traffic may be
+   sent and received on different threads.
+   </p>
+
+   @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+   @version 1.0
+ */
+public abstract class TrafficDecoder {
+
+   /**
+      Names of the protocols that can be decoded, for
+      {@link #create(String,Consumer) create()};
+      "none" is for traffic that is not to be decoded.
+    */
+   public static final String[] PROTOCOLS =
+      {"none", "friendface", "liketunes", "chat"};
+
+   /**
+      Number of characters kept from the start of each line.
+      This value is set to 80.
+    */
+   public static final int LINE_START = 80;
+
+   /**
+      A decoder that ignores all traffic.
+    */
+   public static final TrafficDecoder NONE =
+      new TrafficDecoder(null) {
+         public void sent(String chunk) {
+         }
+         public void received(String chunk) {
+         }
+         public void ended() {
+         }
+         protected void sentLine(String start, int length, long nanos) {
+         }
+         protected void receivedLine(String start, int length, long nanos) {
+         }
+         protected void ended(long nanos) {
+         }
+      };
+
+   /**
+      Splits a stream of chunks into lines, keeping only the start of
+      the current line.
+    */
+   private static class Lines {
+
+      /**
+         The start of the current line.
+       */
+      private final StringBuilder start = new StringBuilder(LINE_START);
+
+      /**
+         The length of the current line.
+       */
+      private int length = 0;
+
+      /**
+         Add a chunk, and pass each line completed to the decoder.
+
+         @param chunk the chunk
+         @param decoder the decoder
+         @param sent whether the chunk was sent, rather than received
+         @param nanos time of the chunk, from <code>System.nanoTime()</code>
+       */
+      void add(final String chunk, final TrafficDecoder decoder,
+               final boolean sent, final long nanos) {
+         int len = chunk.length();
+         for (int i = 0; i < len; i++) {
+            char c = chunk.charAt(i);
+            if (c == '\n') {
+               String line = start.toString();
+               if (sent) {
+                  decoder.sentLine(line, length, nanos);
+               } else {
+                  decoder.receivedLine(line, length, nanos);
+               }
+               start.setLength(0);
+               length = 0;
+            } else {
+               if (length < LINE_START) {
+                  start.append(c);
+               }
+               length++;
+            }
+         }
+      }
+   }
+
+   /**
+      Where descriptions of the traffic are sent.
+    */
+   private final Consumer<String> out;
+
+   /**
+      Number of descriptions sent.
+    */
+   private long messages = 0;
+
+   /**
+      Lines sent to the server.
+    */
+   private final Lines sentLines = new Lines();
+
+   /**
+      Lines received from the server.
+    */
+   private final Lines receivedLines = new Lines();
+
+
+   /**
+      Creates a new <code>TrafficDecoder</code> instance.
+
+      @param out where to send descriptions of the traffic
+    */
+   protected TrafficDecoder(final Consumer<String> out) {
+      this.out = out;
+   }
+
+   /**
+      Create a decoder for the given protocol.
+
+      @param protocol one of the {@link #PROTOCOLS PROTOCOLS}
+      @param out where to send descriptions of the traffic
+      @return a new decoder; {@link #NONE NONE} if the protocol is
+         "none" or not known
+    */
+   public static TrafficDecoder create(final String protocol,
+                                       final Consumer<String> out) {
+      if (protocol.equals("friendface")) {
+         return new FriendFaceDecoder(out);
+      } else if (protocol.equals("liketunes")) {
+         return new LikeTunesDecoder(out);
+      } else if (protocol.equals("chat")) {
+         return new ChatDecoder(out);
+      } else {
+         return NONE;
+      }
+   }
+
+   // --- public methods ------------------------------------------------------
+
+   /**
+      Take a chunk of traffic sent to the server.
+
+      @param chunk the traffic
+    */
+   public synchronized void sent(final String chunk) {
+      sentLines.add(chunk, this, true, System.nanoTime());
+   }
+
+   /**
+      Take a chunk of traffic received from the server.
+
+      @param chunk the traffic
+    */
+   public synchronized void received(final String chunk) {
+      receivedLines.add(chunk, this, false, System.nanoTime());
+   }
+
+   /**
+      Take the end of the connection.
+      Any incomplete lines are ignored.
+    */
+   public synchronized void ended() {
+      ended(System.nanoTime());
+   }
+
+   /**
+      Get the number of messages, notices or exchanges described so far.
+
+      @return the number of descriptions sent
+    */
+   public synchronized long getMessages() {
+      return messages;
+   }
+
+   // --- protocol-specific methods -------------------------------------------
+
+   /**
+      Decode a line sent to the server.
+
+      @param start the start of the line, without the newline;
+         at most {@link #LINE_START LINE_START} characters
+      @param length the full length of the line, without the newline
+      @param nanos the time the line was completed,
+         from <code>System.nanoTime()</code>
+    */
+   protected abstract void sentLine(String start, int length, long nanos);
+
+   /**
+      Decode a line received from the server.
+
+      @param start the start of the line, without the newline;
+         at most {@link #LINE_START LINE_START} characters
+      @param length the full length of the line, without the newline
+      @param nanos the time the line was completed,
+         from <code>System.nanoTime()</code>
+    */
+   protected abstract void receivedLine(String start, int length, long nanos);
+
+   /**
+      Decode the end of the connection.
+
+      @param nanos the time the connection ended,
+         from <code>System.nanoTime()</code>
+    */
+   protected abstract void ended(long nanos);
+
+   /**
+      Send a description of a message, notice or exchange.
+
+      @param line the description
+    */
+   protected void describe(final String line) {
+      messages++;
+      out.accept(line);
+   }
+
+   /**
+      Format a time interval in milliseconds.
+
+      @param from start of the interval, from <code>System.nanoTime()</code>
+      @param to end of the interval, from <code>System.nanoTime()</code>
+      @return the interval in milliseconds, e.g. "1.234 ms"
+    */
+   protected static String millis(final long from, final long to) {
+      return String.format("%.3f ms", (to - from) / 1e6);
+   }
+}
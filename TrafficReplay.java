@@ -0,0 +1,406 @@
+/*
+ * /home/grant/JavaClasses/Comp213/MetaClient/TrafficReplay.java
+ *
+ * Created: Tue Oct 20 10:03:21 2026
+ *
+ * copyright Grant Malcolm
+ *
+ *   This source code may be freely used, modified, or distributed
+ *   provided due credit is given.
+ *
+ */
+
+package Comp213.MetaClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+   Headless tool to replay a {@link TrafficCapture traffic capture}
+   against a server, and report how long the server took to respond.
+   <p>
+   Records are replayed at the times they were captured,
+   divided by a speed-up factor (so a factor of 2 replays the traffic
+   twice as fast); a factor of 0 replays the traffic as fast as possible.
+   Each captured exchange is replayed on a new connection, from a pool
+   of threads, and its latency is measured from sending the request to
+   the server closing the connection, as it was when it was captured.
+   Each captured persistent connection is replayed on a connection of
+   its own, sending the same data at the same times; its latency is
+   measured from sending data to the next data being received.
+   </p><p>
+   Usage:
+   <code>TrafficReplay capture host port [-speed x] [-threads n]</code>
+   </p>
+
+   @author <a href="mailto:grant@liverpool.ac.uk">Grant Malcolm</a>
+   @version 1.0
+ */
+public class TrafficReplay {
+
+   /**
+      Default number of threads replaying exchanges at the same time.
+      This value is set to 16.
+    */
+   public static final int DEFAULT_THREADS = 16;
+
+   /**
+      Time, in milliseconds, to wait for a connection to be set up.
+      This value is set to 5000.
+    */
+   public static final int CONNECT_TIMEOUT = 5000;
+
+   /**
+      Time, in milliseconds, that persistent connections are left open
+      after the last record, so that late responses can be received.
+      This value is set to 1000.
+    */
+   public static final long GRACE_MILLIS = 1000;
+
+   /**
+      Usage message.
+    */
+   private static final String USAGE =
+      "usage: TrafficReplay capture host port [-speed x] [-threads n]";
+
+   /**
+      A replayed persistent connection.
+      A thread reads and counts everything the server sends,
+      and records the time from each send to the first data received
+      after it.
+    */
+   private class Session extends Thread {
+
+      /**
+         The connection to the server.
+       */
+      private final Socket socket;
+
+      /**
+         Time, from <code>System.nanoTime()</code>, of the last send
+         that has not yet had a response; 0 if none.
+       */
+      private final AtomicLong sentAt = new AtomicLong(0);
+
+      /**
+         Open a connection to the server.
+
+         @exception IOException if the connection cannot be opened
+       */
+      Session() throws IOException {
+         this.socket = new Socket();
+         this.socket.connect(server, CONNECT_TIMEOUT);
+         this.setDaemon(true);
+      }
+
+      /**
+         Send data to the server.
+
+         @param data the data to send
+       */
+      void send(final byte[] data) {
+         try {
+            sentAt.compareAndSet(0, System.nanoTime());
+            socket.getOutputStream().write(data);
+            sessionSends.incrementAndGet();
+         } catch (IOException ioe) {
+            failures.incrementAndGet();
+         }
+      }
+
+      /**
+         Close the connection to the server.
+       */
+      void close() {
+         try {
+            socket.close();
+         } catch (IOException ioe) {
+            // nothing useful to do
+         }
+      }
+
+      /**
+         Read from the server until the connection is closed.
+       */
+      public void run() {
+         byte[] buf = new byte[MetaClient.READ_BUFFER_SIZE];
+         try {
+            InputStream in = socket.getInputStream();
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+               long sent = sentAt.getAndSet(0);
+               if (sent != 0) {
+                  sessionLatencies.record(System.nanoTime() - sent);
+               }
+               received.addAndGet(n);
+            }
+         } catch (IOException ioe) {
+            // closed at the end of the replay
+         }
+      }
+   }
+
+   /**
+      Address of the server.
+    */
+   private final InetSocketAddress server;
+
+   /**
+      Factor by which to speed up the replay; 0 for as fast as possible.
+    */
+   private final double speed;
+
+   /**
+      Threads replaying exchanges.
+    */
+   private final ExecutorService pool;
+
+   /**
+      Latencies of the exchanges when they were captured.
+    */
+   private final LatencyHistogram originalLatencies =
+      new LatencyHistogram();
+
+   /**
+      Latencies of the replayed exchanges.
+    */
+   private final LatencyHistogram latencies = new LatencyHistogram();
+
+   /**
+      Latencies of the replayed persistent connections.
+    */
+   private final LatencyHistogram sessionLatencies =
+      new LatencyHistogram();
+
+   /**
+      Number of exchanges or sends that failed.
+    */
+   private final AtomicInteger failures = new AtomicInteger(0);
+
+   /**
+      Number of sends on persistent connections.
+    */
+   private final AtomicInteger sessionSends = new AtomicInteger(0);
+
+   /**
+      Number of bytes received from the server.
+    */
+   private final AtomicLong received = new AtomicLong(0);
+
+
+   /**
+      Creates a new <code>TrafficReplay</code> instance.
+
+      @param server the address of the server
+      @param speed the factor by which to speed up the replay;
+         0 to replay as fast as possible; should not be negative
+      @param threads number of exchanges to replay at the same time;
+         should be positive
+
+      @throws IllegalArgumentException if <code>speed</code> is negative,
+         or <code>threads</code> is not positive
+    */
+   public TrafficReplay(final InetSocketAddress server, final double speed,
+                        final int threads) {
+      if (speed < 0) {
+         throw new IllegalArgumentException("speed should not be negative");
+      } else if (threads <= 0) {
+         throw new IllegalArgumentException(
+            "number of threads should be positive");
+      }
+      this.server = server;
+      this.speed = speed;
+      this.pool = Executors.newFixedThreadPool(threads);
+   }
+
+   /**
+      Replay a capture, and print a report of the latencies.
+
+      @param capture the capture to replay
+      @param report where to print the report
+      @exception IOException if the capture cannot be read
+      @exception InterruptedException if interrupted while waiting
+         to replay a record
+    */
+   public void replay(final TrafficCapture.Reader capture,
+                      final PrintStream report)
+      throws IOException, InterruptedException {
+      // time each exchange started, when captured, by id
+      final Map<Integer, Long> captured = new HashMap<Integer, Long>();
+      final Map<Integer, Session> sessions = new HashMap<Integer, Session>();
+      int exchanges = 0;
+      final long start = System.nanoTime();
+      TrafficCapture.Record r;
+      while ((r = capture.next()) != null) {
+         if (speed > 0) { // wait until the record is due
+            long due = start + (long)(r.micros * 1000 / speed);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+               TimeUnit.NANOSECONDS.sleep(wait);
+            }
+         }
+         switch (r.type) {
+         case TrafficCapture.REQUEST:
+            captured.put(r.id, r.micros);
+            this.submit(r.data);
+            exchanges++;
+            break;
+         case TrafficCapture.END:
+            Long began = captured.remove(r.id);
+            if (began != null) {
+               originalLatencies.record((r.micros - began) * 1000);
+            }
+            break;
+         case TrafficCapture.OPEN:
+            try {
+               Session s = new Session();
+               s.start();
+               sessions.put(r.id, s);
+            } catch (IOException ioe) {
+               failures.incrementAndGet();
+            }
+            break;
+         case TrafficCapture.SENT:
+            Session s = sessions.get(r.id);
+            if (s != null) {
+               s.send(r.data);
+            }
+            break;
+         case TrafficCapture.CLOSE:
+            Session closed = sessions.remove(r.id);
+            if (closed != null) {
+               closed.close();
+            }
+            break;
+         default:
+            // responses and received data are not replayed
+            break;
+         }
+      }
+      // wait for exchanges to finish, and for late data on sessions
+      pool.shutdown();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      if (! sessions.isEmpty()) {
+         Thread.sleep(GRACE_MILLIS);
+         for (Session s : sessions.values()) {
+            s.close();
+         }
+      }
+      double secs = (System.nanoTime() - start) / 1e9;
+      report.printf("replayed %d exchanges and %d sends in %.3f s"
+                    + " (%.1f exchanges/s), %d failed, %d bytes received%n",
+                    exchanges, sessionSends.get(), secs,
+                    exchanges / secs, failures.get(), received.get());
+      report.println("latency (ms)           p50       p90       p99"
+                     + "     p99.9       max");
+      report.println(originalLatencies.summary("captured"));
+      report.println(latencies.summary("replayed"));
+      if (sessionLatencies.getCount() > 0) {
+         report.println(sessionLatencies.summary("persistent"));
+      }
+   }
+
+   /**
+      Replay an exchange on a pool thread: connect, send the request,
+      and read the response until the server closes the connection.
+
+      @param request the request to send
+    */
+   private void submit(final byte[] request) {
+      pool.execute(
+         new Runnable() {
+            public void run() {
+               byte[] buf = new byte[MetaClient.READ_BUFFER_SIZE];
+               Socket s = new Socket();
+               try {
+                  s.connect(server, CONNECT_TIMEOUT);
+                  long sent = System.nanoTime();
+                  OutputStream out = s.getOutputStream();
+                  out.write(request);
+                  InputStream in = s.getInputStream();
+                  int n;
+                  while ((n = in.read(buf)) >= 0) {
+                     received.addAndGet(n);
+                  }
+                  latencies.record(System.nanoTime() - sent);
+               } catch (IOException ioe) {
+                  failures.incrementAndGet();
+               } finally {
+                  try {
+                     s.close();
+                  } catch (IOException ioe) {
+                     // nothing useful to do
+                  }
+               }
+            }
+         });
+   }
+
+   /**
+      Replay a capture file against a server.
+
+      @param args command line arguments: the capture file,
+                  the server host and port number, then
+                  "<code>-speed x</code>" to replay x times as fast as
+                  captured (0 for as fast as possible; default 1);
+                  "<code>-threads n</code>" to replay up to n exchanges
+                  at the same time
+    */
+   public static void main(String[] args) {
+      if (args.length < 3 || args.length % 2 != 1) {
+         System.err.println(USAGE);
+         System.exit(2);
+      }
+      double speed = 1;
+      int threads = DEFAULT_THREADS;
+      TrafficReplay replay = null;
+      try {
+         for (int i = 3; i < args.length; i += 2) {
+            if (args[i].equals("-speed")) {
+               speed = Double.parseDouble(args[i + 1]);
+            } else if (args[i].equals("-threads")) {
+               threads = Integer.parseInt(args[i + 1]);
+            } else {
+               System.err.println(USAGE);
+               System.exit(2);
+            }
+         }
+         InetSocketAddress server =
+            new InetSocketAddress(args[1], Integer.parseInt(args[2]));
+         if (server.isUnresolved()) {
+            System.err.println("Host not recognized: " + args[1]);
+            System.exit(2);
+         }
+         replay = new TrafficReplay(server, speed, threads);
+      } catch (IllegalArgumentException iae) {
+         // includes NumberFormatException
+         System.err.println(USAGE);
+         System.err.println(iae.getMessage());
+         System.exit(2);
+      }
+      TrafficCapture.Reader capture = null;
+      try {
+         capture = new TrafficCapture.Reader(new File(args[0]));
+         replay.replay(capture, System.out);
+         capture.close();
+      } catch (IOException ioe) {
+         System.err.println("Can't read capture: " + ioe.getMessage());
+         System.exit(1);
+      } catch (InterruptedException ie) {
+         System.exit(1);
+      }
+      System.exit(0);
+   }
+}